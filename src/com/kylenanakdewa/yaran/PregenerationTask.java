@@ -0,0 +1,458 @@
+package com.kylenanakdewa.yaran;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+import com.kylenanakdewa.yaran.generators.YaranChunkGenerator;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Generates every chunk within a radius of a world's spawn, in a spiral
+ * starting at spawn.
+ * <p>
+ * For worlds using the Yaran generator, the noise for upcoming chunks is
+ * generated in advance on a fork-join pool. The main thread then generates the
+ * prepared chunks in batches, spending at most a set amount of time each tick.
+ * <p>
+ * Progress is saved to a checkpoint file, so pregeneration resumes where it
+ * stopped if it is started again with the same world and radius.
+ *
+ * @author Kyle Nanakdewa
+ */
+final class PregenerationTask implements Runnable {
+
+    /** The number of batches of chunks to prepare ahead of the main thread. */
+    private static final int BATCHES_AHEAD = 4;
+    /** The largest number of chunks prepared by each fork-join task. */
+    private static final int CHUNKS_PER_TASK = 4;
+
+    /** How often to save progress to the checkpoint file, in nanoseconds. */
+    private static final long CHECKPOINT_INTERVAL = 5_000_000_000L;
+    /** How often to report progress, in nanoseconds. */
+    private static final long REPORT_INTERVAL = 10_000_000_000L;
+    /** The longest to wait for chunks being prepared when stopping, in milliseconds. */
+    private static final long STOP_TIMEOUT = 1000;
+    /**
+     * The largest radius to pregenerate, in blocks. Chunks are counted with ints,
+     * and this keeps the count, about 156 million chunks, well within range.
+     */
+    static final int MAX_RADIUS = 100_000;
+
+    private final YaranPlugin plugin;
+    private final World world;
+    private final CommandSender sender;
+
+    /** Whether the world uses the Yaran generator, so noise can be prepared. */
+    private final boolean canPrepare;
+
+    /** The chunk at the centre of the spiral. */
+    private final int centreChunkX;
+    private final int centreChunkZ;
+    /** The radius to generate, in blocks. */
+    private final int radius;
+    /** The total number of chunks in the spiral. */
+    private final int totalChunks;
+
+    /** The most time to spend generating chunks each tick, in nanoseconds. */
+    private final long tickBudget;
+    /** The number of chunks in each batch. */
+    private final int batchSize;
+
+    /** The file progress is saved to. */
+    private final File checkpointFile;
+
+    /** Prepares noise for upcoming chunks. */
+    private final ForkJoinPool pool;
+    /** The batches of chunks being prepared, in spiral order. */
+    private final Deque<Batch> batches = new ArrayDeque<Batch>();
+    /** Whether the task has stopped, so no more chunks should be prepared. */
+    private volatile boolean stopped;
+
+    /** The spiral index of the first chunk that may not have been generated. */
+    private int nextIndex;
+    /** The spiral index of the first chunk not yet added to a batch. */
+    private int batchedIndex;
+
+    private BukkitTask task;
+
+    // Statistics
+    private final int startIndex;
+    private final long startTime;
+    private long lastCheckpointTime;
+    private long lastReportTime;
+    private int ticksSinceReport;
+    private long busyTimeSinceReport;
+
+    /**
+     * Creates a pregeneration task. If a checkpoint exists for the same world,
+     * centre and radius, the task resumes from the checkpoint.
+     *
+     * @param plugin the plugin
+     * @param world  the world to generate chunks in
+     * @param radius the distance from spawn to generate chunks, in blocks, from 0
+     *               to {@link #MAX_RADIUS}
+     * @param sender the sender to report progress to
+     * @throws IllegalArgumentException if the radius is out of range
+     */
+    PregenerationTask(YaranPlugin plugin, World world, int radius, CommandSender sender) {
+        if (radius < 0 || radius > MAX_RADIUS) {
+            throw new IllegalArgumentException("Pregeneration radius must be between 0 and " + MAX_RADIUS);
+        }
+        this.plugin = plugin;
+        this.world = world;
+        this.radius = radius;
+        this.sender = sender;
+
+        canPrepare = world.getGenerator() instanceof YaranChunkGenerator;
+
+        centreChunkX = world.getSpawnLocation().getBlockX() >> 4;
+        centreChunkZ = world.getSpawnLocation().getBlockZ() >> 4;
+        long chunkDiameter = 2L * ((radius + 15) / 16) + 1;
+        totalChunks = Math.toIntExact(chunkDiameter * chunkDiameter);
+
+        ConfigurationSection config = plugin.getConfig().getConfigurationSection("pregeneration");
+        tickBudget = (long) ((config != null ? config.getDouble("tick-budget-ms", 25) : 25) * 1_000_000);
+        batchSize = Math.max(config != null ? config.getInt("batch-size", 64) : 64, 1);
+
+        checkpointFile = new File(new File(plugin.getDataFolder(), "pregeneration"), world.getName() + ".properties");
+        nextIndex = loadCheckpoint();
+        batchedIndex = nextIndex;
+        startIndex = nextIndex;
+
+        pool = new ForkJoinPool(Math.max(Runtime.getRuntime().availableProcessors() - 1, 1));
+
+        startTime = System.nanoTime();
+        lastCheckpointTime = startTime;
+        lastReportTime = startTime;
+    }
+
+    /**
+     * @return the world this task is generating chunks in
+     */
+    World getWorld() {
+        return world;
+    }
+
+    /**
+     * @return the spiral index of the first chunk that may not have been
+     *         generated, which is 0 unless resuming from a checkpoint
+     */
+    int getNextIndex() {
+        return nextIndex;
+    }
+
+    /**
+     * @return the total number of chunks to generate
+     */
+    int getTotalChunks() {
+        return totalChunks;
+    }
+
+    /**
+     * Starts generating chunks, once per tick.
+     */
+    void start() {
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this, 1, 1);
+    }
+
+    /**
+     * Stops generating chunks, and saves progress to the checkpoint file.
+     */
+    void stop() {
+        task.cancel();
+        stopped = true;
+        pool.shutdownNow();
+
+        // Wait for chunks already being prepared, so they aren't added after clearing
+        try {
+            if (!pool.awaitTermination(STOP_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                Bukkit.getLogger().warning("[Yaran] Pregeneration threads didn't stop in time, "
+                        + "some prepared chunks may be kept until they are generated.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (canPrepare) {
+            YaranChunkGenerator.clearPreparedChunks(world);
+        }
+        saveCheckpoint();
+    }
+
+    @Override
+    public void run() {
+        long tickStart = System.nanoTime();
+        ticksSinceReport++;
+
+        prepareBatches();
+
+        // Generate prepared chunks until this tick's time is used up
+        while (System.nanoTime() - tickStart < tickBudget) {
+            Batch batch = batches.peek();
+            if (batch == null || !batch.task.isDone()) {
+                break;
+            }
+
+            if (batch.position == batch.chunkX.length) {
+                nextIndex = batch.endIndex;
+                batches.poll();
+                prepareBatches();
+                continue;
+            }
+
+            int chunkX = batch.chunkX[batch.position];
+            int chunkZ = batch.chunkZ[batch.position];
+            batch.position++;
+            world.loadChunk(chunkX, chunkZ, true);
+            world.unloadChunkRequest(chunkX, chunkZ);
+        }
+
+        long now = System.nanoTime();
+        busyTimeSinceReport += now - tickStart;
+
+        if (nextIndex == totalChunks) {
+            finish();
+            return;
+        }
+        if (now - lastCheckpointTime > CHECKPOINT_INTERVAL) {
+            saveCheckpoint();
+            lastCheckpointTime = now;
+        }
+        if (now - lastReportTime > REPORT_INTERVAL) {
+            report(now);
+        }
+    }
+
+    /**
+     * Adds batches of upcoming chunks, and starts preparing their noise, until
+     * enough batches are queued.
+     */
+    private void prepareBatches() {
+        while (batches.size() < BATCHES_AHEAD && batchedIndex < totalChunks) {
+            int endIndex = Math.min(batchedIndex + batchSize, totalChunks);
+
+            // Skip chunks that already exist
+            int[] chunkX = new int[endIndex - batchedIndex];
+            int[] chunkZ = new int[endIndex - batchedIndex];
+            int count = 0;
+            for (int index = batchedIndex; index < endIndex; index++) {
+                int[] offset = getSpiralOffset(index);
+                int x = centreChunkX + offset[0];
+                int z = centreChunkZ + offset[1];
+                if (!world.isChunkGenerated(x, z)) {
+                    chunkX[count] = x;
+                    chunkZ[count] = z;
+                    count++;
+                }
+            }
+
+            batches.add(new Batch(endIndex, Arrays.copyOf(chunkX, count), Arrays.copyOf(chunkZ, count)));
+            batchedIndex = endIndex;
+        }
+    }
+
+    /**
+     * Gets the offset of a chunk in the spiral, from the centre. Each ring of the
+     * spiral is a square, one chunk further from the centre than the last.
+     *
+     * @param index the index of the chunk in the spiral
+     * @return the X and Z offset of the chunk, in chunks
+     */
+    static int[] getSpiralOffset(int index) {
+        if (index == 0) {
+            return new int[] { 0, 0 };
+        }
+
+        // Ring k starts at index (2k - 1)^2, and has 2k chunks on each side
+        int ring = (int) Math.ceil((Math.sqrt(index + 1) - 1) / 2);
+        int position = index - (2 * ring - 1) * (2 * ring - 1);
+        int side = position / (2 * ring);
+        int offset = position % (2 * ring);
+
+        switch (side) {
+            case 0:
+                return new int[] { ring, -ring + 1 + offset };
+            case 1:
+                return new int[] { ring - 1 - offset, ring };
+            case 2:
+                return new int[] { -ring, ring - 1 - offset };
+            default:
+                return new int[] { -ring + 1 + offset, -ring };
+        }
+    }
+
+    /**
+     * Reports progress to the sender, including the generation rate, estimated
+     * time remaining, and the server's ticks per second.
+     */
+    private void report(long now) {
+        double seconds = (now - startTime) / 1e9;
+        double chunksPerSecond = (nextIndex - startIndex) / seconds;
+        long remainingSeconds = chunksPerSecond > 0 ? (long) ((totalChunks - nextIndex) / chunksPerSecond) : -1;
+
+        double secondsSinceReport = (now - lastReportTime) / 1e9;
+        double ticksPerSecond = Math.min(ticksSinceReport / secondsSinceReport, 20);
+        double busyMillisPerTick = busyTimeSinceReport / 1e6 / ticksSinceReport;
+
+        sender.sendMessage(String.format("Pregenerating %s: %.1f%% (%d of %d chunks), %.1f chunks/sec, ETA %s",
+                world.getName(), 100d * nextIndex / totalChunks, nextIndex, totalChunks, chunksPerSecond,
+                remainingSeconds >= 0 ? formatDuration(remainingSeconds) : "unknown"));
+        sender.sendMessage(String.format("- Server at %.1f TPS, pregeneration using %.1f ms per tick",
+                ticksPerSecond, busyMillisPerTick));
+
+        lastReportTime = now;
+        ticksSinceReport = 0;
+        busyTimeSinceReport = 0;
+    }
+
+    private static String formatDuration(long seconds) {
+        if (seconds >= 3600) {
+            return seconds / 3600 + "h " + seconds % 3600 / 60 + "m";
+        }
+        if (seconds >= 60) {
+            return seconds / 60 + "m " + seconds % 60 + "s";
+        }
+        return seconds + "s";
+    }
+
+    /**
+     * Stops the task once every chunk is generated, and removes the checkpoint.
+     */
+    private void finish() {
+        task.cancel();
+        pool.shutdown();
+        if (canPrepare) {
+            YaranChunkGenerator.clearPreparedChunks(world);
+        }
+        checkpointFile.delete();
+        plugin.finishPregeneration(this);
+
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        sender.sendMessage(String.format("Pregeneration of %s finished: %d chunks in %s.", world.getName(),
+                totalChunks, formatDuration((long) seconds)));
+    }
+
+    /**
+     * Loads the spiral index to resume from, if a checkpoint exists for the same
+     * world, centre and radius.
+     */
+    private int loadCheckpoint() {
+        if (!checkpointFile.exists()) {
+            return 0;
+        }
+
+        Properties checkpoint = new Properties();
+        try (InputStream in = new FileInputStream(checkpointFile)) {
+            checkpoint.load(in);
+        } catch (IOException e) {
+            Bukkit.getLogger().warning("Unable to load pregeneration checkpoint: " + e.getLocalizedMessage());
+            return 0;
+        }
+
+        try {
+            if (Integer.parseInt(checkpoint.getProperty("centre-x")) == centreChunkX
+                    && Integer.parseInt(checkpoint.getProperty("centre-z")) == centreChunkZ
+                    && Integer.parseInt(checkpoint.getProperty("radius")) == radius) {
+                return Math.min(Integer.parseInt(checkpoint.getProperty("next-index")), totalChunks);
+            }
+        } catch (NumberFormatException e) {
+            Bukkit.getLogger().warning("Invalid pregeneration checkpoint: " + e.getLocalizedMessage());
+        }
+        return 0;
+    }
+
+    /**
+     * Saves progress to the checkpoint file.
+     */
+    private void saveCheckpoint() {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("centre-x", Integer.toString(centreChunkX));
+        checkpoint.setProperty("centre-z", Integer.toString(centreChunkZ));
+        checkpoint.setProperty("radius", Integer.toString(radius));
+        checkpoint.setProperty("next-index", Integer.toString(nextIndex));
+
+        checkpointFile.getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(checkpointFile)) {
+            checkpoint.store(out, "Yaran pregeneration progress for " + world.getName());
+        } catch (IOException e) {
+            Bukkit.getLogger().severe("Unable to save pregeneration checkpoint: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * A batch of chunks to generate, which are prepared together.
+     */
+    private final class Batch {
+        /** The spiral index after the last chunk in this batch. */
+        private final int endIndex;
+        /** The chunks to generate, excluding chunks that already exist. */
+        private final int[] chunkX;
+        private final int[] chunkZ;
+        /** Prepares the noise for the chunks in this batch. */
+        private final ForkJoinTask<?> task;
+        /** The index of the next chunk to generate. */
+        private int position;
+
+        private Batch(int endIndex, int[] chunkX, int[] chunkZ) {
+            this.endIndex = endIndex;
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            task = pool.submit(new PrepareAction(chunkX, chunkZ, 0, chunkX.length));
+        }
+    }
+
+    /**
+     * Prepares the noise for a range of chunks, splitting the range between
+     * threads.
+     */
+    private final class PrepareAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] chunkX;
+        private final int[] chunkZ;
+        private final int start;
+        private final int end;
+
+        private PrepareAction(int[] chunkX, int[] chunkZ, int start, int end) {
+            this.chunkX = chunkX;
+            this.chunkZ = chunkZ;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (!canPrepare || stopped) {
+                return;
+            }
+
+            if (end - start > CHUNKS_PER_TASK) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new PrepareAction(chunkX, chunkZ, start, middle),
+                        new PrepareAction(chunkX, chunkZ, middle, end));
+                return;
+            }
+
+            for (int i = start; i < end && !stopped; i++) {
+                YaranChunkGenerator.prepareChunk(world, chunkX[i], chunkZ[i]);
+            }
+        }
+    }
+
+}
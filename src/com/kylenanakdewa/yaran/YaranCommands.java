@@ -4,11 +4,16 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
+import com.kylenanakdewa.yaran.generation.NoiseTileCache;
+import com.kylenanakdewa.yaran.generators.SimplexNoiseChunkGenerator;
 import com.kylenanakdewa.yaran.generators.YaranChunkGenerator;
+import com.kylenanakdewa.yaran.utils.imagemaps.TiledRaster;
 
 import org.bukkit.World;
 import org.bukkit.WorldCreator;
@@ -26,6 +31,9 @@ import org.bukkit.generator.ChunkGenerator;
  */
 public final class YaranCommands implements TabExecutor {
 
+    /** The largest radius for comparing fast math, in blocks. */
+    private static final int MAX_VALIDATE_RADIUS = 8192;
+
     private final YaranPlugin plugin;
 
     public YaranCommands(YaranPlugin plugin) {
@@ -121,8 +129,205 @@ public final class YaranCommands implements TabExecutor {
 
         // Save debug maps command
         if (args.length == 1 && args[0].equalsIgnoreCase("savedebugmaps")) {
-            YaranChunkGenerator.saveDebugMaps(plugin.getDataFolder());
-            sender.sendMessage("Saved debug maps to Yaran plugin folder.");
+            CompletableFuture<Integer> export = YaranChunkGenerator.saveDebugMaps(plugin.getDataFolder());
+            if (export == null) {
+                sender.sendMessage("Debug maps are disabled. Enable them with image-maps.draw-debug-maps.");
+                return true;
+            }
+            sender.sendMessage("Saving debug maps...");
+
+            // Report back on the main thread, once the maps are saved
+            export.whenComplete((savedFiles, error) -> {
+                if (!plugin.isEnabled()) {
+                    return;
+                }
+                plugin.getServer().getScheduler().runTask(plugin, () -> {
+                    if (error != null) {
+                        sender.sendMessage("Unable to save debug maps: " + error.getLocalizedMessage());
+                    } else {
+                        sender.sendMessage("Saved " + savedFiles + " debug map images to Yaran plugin folder.");
+                    }
+                });
+            });
+            return true;
+        }
+
+        // Validate fast math command
+        if ((args.length == 2 || args.length == 3) && args[0].equalsIgnoreCase("validatefastmath")) {
+            plugin.reload();
+
+            long seed;
+            int radius;
+            try {
+                seed = Long.parseLong(args[1]);
+                radius = args.length == 3 ? Integer.parseInt(args[2]) : 512;
+            } catch (NumberFormatException e) {
+                sender.sendMessage("Invalid number: " + e.getLocalizedMessage());
+                return false;
+            }
+            if (radius < 1 || radius > MAX_VALIDATE_RADIUS) {
+                sender.sendMessage("Radius must be between 1 and " + MAX_VALIDATE_RADIUS + ".");
+                return false;
+            }
+
+            sender.sendMessage("Comparing fast math terrain heights within " + radius + " blocks of 0,0...");
+
+            // Run comparison asynchronously, it generates a lot of noise
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                long[] results = YaranChunkGenerator.validateFastMath(seed, 0, 0, radius);
+                double percentage = 100d * results[0] / results[1];
+
+                if (!plugin.isEnabled()) {
+                    return;
+                }
+                plugin.getServer().getScheduler().runTask(plugin, () -> {
+                    sender.sendMessage("Fast math changed the height of " + results[0] + " of " + results[1]
+                            + " columns (" + String.format("%.4f", percentage) + "%).");
+                    sender.sendMessage("Largest height difference: " + results[2] + " blocks.");
+                });
+            });
+            return true;
+        }
+
+        // Convert image map command
+        if ((args.length == 2 || args.length == 3) && args[0].equalsIgnoreCase("convertmap")) {
+            File imageFile = new File(plugin.getDataFolder(), args[1]);
+            if (!imageFile.isFile()) {
+                sender.sendMessage("Unknown image file " + args[1] + " in the Yaran plugin folder.");
+                return false;
+            }
+            String rasterName = args.length == 3 ? args[2]
+                    : args[1].replaceFirst("\\.[^.]*$", "") + TiledRaster.FILE_EXTENSION;
+            if (!rasterName.toLowerCase().endsWith(TiledRaster.FILE_EXTENSION)) {
+                sender.sendMessage("Map raster file names must end with " + TiledRaster.FILE_EXTENSION);
+                return false;
+            }
+            File rasterFile = new File(plugin.getDataFolder(), rasterName);
+
+            sender.sendMessage("Converting " + args[1] + " to " + rasterName + "...");
+
+            // Run conversion asynchronously, large images take a while to decode
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                String result;
+                try {
+                    int colors = TiledRaster.convert(imageFile, rasterFile);
+                    result = "Converted " + args[1] + " to " + rasterName + " ("
+                            + (colors < 0 ? "full color" : colors + " colors") + "). Use " + rasterName
+                            + " in the config instead of the image.";
+                } catch (IOException e) {
+                    result = "Unable to convert " + args[1] + ": " + e.getLocalizedMessage();
+                }
+
+                String message = result;
+                if (plugin.isEnabled()) {
+                    plugin.getServer().getScheduler().runTask(plugin, () -> sender.sendMessage(message));
+                }
+            });
+            return true;
+        }
+
+        // Pack image maps command
+        if ((args.length == 1 || args.length == 2) && args[0].equalsIgnoreCase("packmaps")) {
+            String rasterName = args.length == 2 ? args[1] : "map_packed" + TiledRaster.FILE_EXTENSION;
+            if (!rasterName.toLowerCase().endsWith(TiledRaster.FILE_EXTENSION)) {
+                sender.sendMessage("Map raster file names must end with " + TiledRaster.FILE_EXTENSION);
+                return false;
+            }
+            File rasterFile = new File(plugin.getDataFolder(), rasterName);
+
+            sender.sendMessage("Packing simplex-noise image maps into " + rasterName + "...");
+
+            // Run packing asynchronously, it reads every pixel of every map
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                String result;
+                try {
+                    int packedMaps = SimplexNoiseChunkGenerator.packImageMaps(rasterFile);
+                    result = packedMaps == 0
+                            ? "No simplex-noise image maps are loaded. Set them in image-maps, and use /yaran reload."
+                            : "Packed " + packedMaps + " image maps into " + rasterName + ". Set image-maps.packed to "
+                                    + rasterName + " to use it.";
+                } catch (IOException e) {
+                    result = "Unable to pack image maps: " + e.getLocalizedMessage();
+                }
+
+                String message = result;
+                if (plugin.isEnabled()) {
+                    plugin.getServer().getScheduler().runTask(plugin, () -> sender.sendMessage(message));
+                }
+            });
+            return true;
+        }
+
+        // Stop pregeneration command
+        if (args.length == 2 && args[0].equalsIgnoreCase("pregen") && args[1].equalsIgnoreCase("stop")) {
+            PregenerationTask task = plugin.stopPregeneration();
+            if (task == null) {
+                sender.sendMessage("Pregeneration is not running.");
+                return true;
+            }
+            sender.sendMessage("Pregeneration of " + task.getWorld().getName()
+                    + " stopped. Use the same command again to resume.");
+            return true;
+        }
+
+        // Pregeneration command
+        if (args.length == 3 && args[0].equalsIgnoreCase("pregen")) {
+            World world = plugin.getServer().getWorld(args[1]);
+            if (world == null) {
+                sender.sendMessage("Unknown world " + args[1]);
+                return false;
+            }
+
+            int radius;
+            try {
+                radius = Integer.parseInt(args[2]);
+            } catch (NumberFormatException e) {
+                sender.sendMessage("Invalid number: " + e.getLocalizedMessage());
+                return false;
+            }
+            if (radius < 0 || radius > PregenerationTask.MAX_RADIUS) {
+                sender.sendMessage("Radius must be between 0 and " + PregenerationTask.MAX_RADIUS + ".");
+                return false;
+            }
+
+            PregenerationTask task = new PregenerationTask(plugin, world, radius, sender);
+            if (!plugin.startPregeneration(task)) {
+                sender.sendMessage("Pregeneration is already running. Use /yaran pregen stop to stop it.");
+                return true;
+            }
+
+            sender.sendMessage("Pregenerating " + task.getTotalChunks() + " chunks within " + radius
+                    + " blocks of spawn in " + world.getName() + ".");
+            if (task.getNextIndex() > 0) {
+                sender.sendMessage("Resuming from chunk " + task.getNextIndex() + ".");
+            }
+            return true;
+        }
+
+        // Noise cache statistics command
+        if ((args.length == 1 || args.length == 2) && args[0].equalsIgnoreCase("cache")) {
+            NoiseTileCache cache = YaranChunkGenerator.getTileCache();
+            if (cache == null) {
+                sender.sendMessage("The noise cache is disabled. Enable it with noise-cache.enabled in the config.");
+                return true;
+            }
+
+            if (args.length == 2 && args[1].equalsIgnoreCase("clear")) {
+                cache.clear();
+                sender.sendMessage("Noise cache cleared.");
+                return true;
+            }
+
+            long hits = cache.getHits();
+            long requests = hits + cache.getMisses();
+            double hitRate = requests == 0 ? 0 : 100d * hits / requests;
+            sender.sendMessage("Noise cache: " + cache.getTileCount() + " tiles of " + cache.getTileSize() + "x"
+                    + cache.getTileSize() + " blocks");
+            sender.sendMessage("- Memory: " + cache.getUsedBytes() / (1024 * 1024) + " of "
+                    + cache.getMaxBytes() / (1024 * 1024) + " MB");
+            sender.sendMessage("- Hits: " + hits + ", misses: " + cache.getMisses() + " ("
+                    + String.format("%.1f", hitRate) + "% hit rate)");
+            sender.sendMessage("- Evicted tiles: " + cache.getEvictions());
             return true;
         }
 
@@ -140,7 +345,29 @@ public final class YaranCommands implements TabExecutor {
 
         // Main command - return each sub-command
         if (args.length <= 1)
-            return Arrays.asList("version", "reload", "create", "recreate", "savedebugmaps");
+            return Arrays.asList("version", "reload", "create", "recreate", "savedebugmaps", "validatefastmath",
+                    "convertmap", "packmaps", "cache", "pregen");
+
+        // Pregeneration command
+        if (args.length == 2 && args[0].equalsIgnoreCase("pregen")) {
+            List<String> options = new ArrayList<String>();
+            options.add("stop");
+            for (World world : plugin.getServer().getWorlds()) {
+                options.add(world.getName());
+            }
+            return options;
+        }
+
+        // Convert image map command - return images in the plugin folder
+        if (args.length == 2 && args[0].equalsIgnoreCase("convertmap")) {
+            String[] images = plugin.getDataFolder().list((folder, name) -> name.toLowerCase().endsWith(".png"));
+            return images != null ? Arrays.asList(images) : Arrays.asList("");
+        }
+
+        // Cache command
+        if (args.length == 2 && args[0].equalsIgnoreCase("cache")) {
+            return Arrays.asList("clear");
+        }
 
         // Otherwise return nothing
         return Arrays.asList("");
@@ -28,21 +28,58 @@ public final class YaranPlugin extends JavaPlugin {
 		reload();
 	}
 
+	/** The pregeneration task that is running, or null. */
+	private PregenerationTask pregeneration;
+
 	@Override
 	public void onDisable() {
-
+		// Save pregeneration progress, and write any cached noise to disk
+		stopPregeneration();
+		YaranChunkGenerator.close();
 	}
 
 	/** Reloads the plugin. */
 	void reload() {
-		// Disable/cleanup
-		onDisable();
-
-		// Load config
+		// Load config, replacing the generator settings
 		saveDefaultConfig();
 		loadConfig();
 	}
 
+	/**
+	 * Starts a pregeneration task, if no other task is running.
+	 *
+	 * @return false if another task is already running
+	 */
+	boolean startPregeneration(PregenerationTask task) {
+		if (pregeneration != null) {
+			return false;
+		}
+		pregeneration = task;
+		task.start();
+		return true;
+	}
+
+	/**
+	 * Stops the running pregeneration task, saving its progress.
+	 *
+	 * @return the task that was stopped, or null if no task was running
+	 */
+	PregenerationTask stopPregeneration() {
+		PregenerationTask task = pregeneration;
+		if (task != null) {
+			task.stop();
+			pregeneration = null;
+		}
+		return task;
+	}
+
+	/** Called by a pregeneration task when it has generated every chunk. */
+	void finishPregeneration(PregenerationTask task) {
+		if (pregeneration == task) {
+			pregeneration = null;
+		}
+	}
+
 	/** Retrieve values from config. */
 	private void loadConfig() {
 		reloadConfig();
@@ -50,7 +87,7 @@ public final class YaranPlugin extends JavaPlugin {
 		ConfigurationSection generatorSettings = getConfig().getConfigurationSection("generator-settings");
 		SimplexOctaveChunkGenerator.setParameters(generatorSettings);
 		SimplexNoiseChunkGenerator.setParameters(generatorSettings);
-		YaranChunkGenerator.setParameters(generatorSettings);
+		YaranChunkGenerator.setParameters(generatorSettings, getDataFolder());
 	}
 
 	@Override
@@ -0,0 +1,243 @@
+package com.kylenanakdewa.yaran.generation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bukkit.util.noise.NoiseGenerator;
+
+/**
+ * 3D cutout noise for a world, sampled on a coarse lattice and interpolated
+ * between lattice points, which is much faster than generating noise at every
+ * block.
+ * <p>
+ * The lattice is made of vertical columns of samples, every few blocks along
+ * the X and Z axes. Each lattice column is generated once, and cached, so
+ * columns on the border between two chunks are shared by both chunks. Columns
+ * are only generated as high as chunks need them, and extended when a higher
+ * chunk needs more. When the cache is full, the least recently used columns
+ * are removed.
+ * <p>
+ * The grid can be used from multiple threads at once.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class CutoutDensityGrid {
+
+    /** The most lattice columns to keep in the cache. */
+    private static final int MAX_CACHED_COLUMNS = 4096;
+
+    /**
+     * Generates the noise value at a lattice point.
+     */
+    @FunctionalInterface
+    public interface Sampler {
+        /**
+         * @return the noise value at the block coordinates
+         */
+        double sample(int x, int y, int z);
+    }
+
+    private final Sampler sampler;
+
+    /** The distance between lattice columns along the X and Z axes, in blocks. */
+    private final int horizontalSpacing;
+    /** The distance between samples in each lattice column, in blocks. */
+    private final int verticalSpacing;
+    /** The number of samples in each lattice column. */
+    private final int samplesPerColumn;
+
+    /** The cached lattice columns, from least to most recently used. */
+    private final LinkedHashMap<Long, double[]> columns = new LinkedHashMap<Long, double[]>(256, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, double[]> eldest) {
+            return size() > MAX_CACHED_COLUMNS;
+        }
+    };
+
+    /**
+     * Creates a density grid.
+     *
+     * @param generator         the noise generator for the world
+     * @param octaves           the cutout octaves
+     * @param horizontalSpacing the distance between lattice columns along the X
+     *                          and Z axes, in blocks
+     * @param verticalSpacing   the distance between samples in each lattice
+     *                          column, in blocks
+     * @param maxHeight         the height of the world, in blocks
+     * @throws IllegalArgumentException if a spacing is less than 1
+     */
+    public CutoutDensityGrid(NoiseGenerator generator, OctaveStack octaves, int horizontalSpacing,
+            int verticalSpacing, int maxHeight) {
+        this((x, y, z) -> octaves.normalizedSum(generator, x, y, z), horizontalSpacing, verticalSpacing, maxHeight);
+    }
+
+    /**
+     * Creates a density grid, using any noise.
+     *
+     * @param sampler           generates the noise value at each lattice point
+     * @param horizontalSpacing the distance between lattice columns along the X
+     *                          and Z axes, in blocks
+     * @param verticalSpacing   the distance between samples in each lattice
+     *                          column, in blocks
+     * @param maxHeight         the height of the world, in blocks
+     * @throws IllegalArgumentException if a spacing is less than 1
+     */
+    public CutoutDensityGrid(Sampler sampler, int horizontalSpacing, int verticalSpacing, int maxHeight) {
+        if (horizontalSpacing < 1 || verticalSpacing < 1) {
+            throw new IllegalArgumentException("Cutout grid spacing must be at least 1, found " + horizontalSpacing
+                    + " and " + verticalSpacing);
+        }
+        this.sampler = sampler;
+        this.horizontalSpacing = horizontalSpacing;
+        this.verticalSpacing = verticalSpacing;
+        // Samples cover the whole world height, including the top block
+        samplesPerColumn = (maxHeight - 1 + verticalSpacing - 1) / verticalSpacing + 1;
+    }
+
+    /**
+     * Gets a lattice column, generating or extending it if the cached column
+     * doesn't have enough samples.
+     *
+     * @param latticeX the X coordinate of the column, in lattice columns
+     * @param latticeZ the Z coordinate of the column, in lattice columns
+     * @param samples  the number of samples needed, from the bottom up
+     * @return the noise at each sample, from the bottom up, with at least the
+     *         number of samples needed
+     */
+    private double[] getColumn(int latticeX, int latticeZ, int samples) {
+        Long key = (long) latticeX << 32 | latticeZ & 0xFFFFFFFFL;
+        double[] cached;
+        synchronized (columns) {
+            cached = columns.get(key);
+        }
+        if (cached != null && cached.length >= samples) {
+            return cached;
+        }
+
+        // Generated outside the lock, so other threads aren't blocked. Two threads may
+        // generate the same column, but they will generate the same values.
+        double[] column = new double[samples];
+        int start = 0;
+        if (cached != null) {
+            System.arraycopy(cached, 0, column, 0, cached.length);
+            start = cached.length;
+        }
+        int worldX = latticeX * horizontalSpacing;
+        int worldZ = latticeZ * horizontalSpacing;
+        for (int sample = start; sample < samples; sample++) {
+            column[sample] = sampler.sample(worldX, sample * verticalSpacing, worldZ);
+        }
+        synchronized (columns) {
+            // Keep the longest column, if another thread extended it further
+            double[] current = columns.get(key);
+            if (current == null || current.length < column.length) {
+                columns.put(key, column);
+            }
+        }
+        return column;
+    }
+
+    /**
+     * Gets the cutout noise for every column in a chunk, interpolated from the
+     * lattice.
+     *
+     * @param chunkX the X coordinate of the chunk, in chunks
+     * @param chunkZ the Z coordinate of the chunk, in chunks
+     * @return the cutout noise for the chunk
+     */
+    public ChunkDensity getChunk(int chunkX, int chunkZ) {
+        return getChunk(chunkX, chunkZ, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets the cutout noise for every column in a chunk, interpolated from the
+     * lattice, up to a height. Lattice samples above that height are not
+     * generated, so the noise above it is not accurate.
+     *
+     * @param chunkX the X coordinate of the chunk, in chunks
+     * @param chunkZ the Z coordinate of the chunk, in chunks
+     * @param maxY   the highest Y value that will be used
+     * @return the cutout noise for the chunk
+     */
+    public ChunkDensity getChunk(int chunkX, int chunkZ, int maxY) {
+        // The samples at or above the highest Y value are needed for interpolation
+        int samples = maxY < 0 ? 1
+                : (int) Math.min(samplesPerColumn, ((long) maxY + verticalSpacing - 1) / verticalSpacing + 1);
+
+        int minLatticeX = Math.floorDiv(chunkX * 16, horizontalSpacing);
+        int minLatticeZ = Math.floorDiv(chunkZ * 16, horizontalSpacing);
+        int latticeWidth = Math.floorDiv(chunkX * 16 + 15, horizontalSpacing) - minLatticeX + 2;
+        int latticeDepth = Math.floorDiv(chunkZ * 16 + 15, horizontalSpacing) - minLatticeZ + 2;
+
+        // Fetch every lattice column around the chunk once
+        double[][] lattice = new double[latticeWidth * latticeDepth][];
+        for (int z = 0; z < latticeDepth; z++) {
+            for (int x = 0; x < latticeWidth; x++) {
+                lattice[z * latticeWidth + x] = getColumn(minLatticeX + x, minLatticeZ + z, samples);
+            }
+        }
+
+        // Interpolate the lattice columns horizontally, to get samples for each block column
+        double[][] blockColumns = new double[16 * 16][];
+        for (int z = 0; z < 16; z++) {
+            int offsetZ = chunkZ * 16 + z - minLatticeZ * horizontalSpacing;
+            int cellZ = offsetZ / horizontalSpacing;
+            double tz = (double) (offsetZ % horizontalSpacing) / horizontalSpacing;
+            for (int x = 0; x < 16; x++) {
+                int offsetX = chunkX * 16 + x - minLatticeX * horizontalSpacing;
+                int cellX = offsetX / horizontalSpacing;
+                double tx = (double) (offsetX % horizontalSpacing) / horizontalSpacing;
+
+                double[] c00 = lattice[cellZ * latticeWidth + cellX];
+                double[] c10 = lattice[cellZ * latticeWidth + cellX + 1];
+                double[] c01 = lattice[(cellZ + 1) * latticeWidth + cellX];
+                double[] c11 = lattice[(cellZ + 1) * latticeWidth + cellX + 1];
+
+                double[] blockSamples = new double[samples];
+                for (int sample = 0; sample < samples; sample++) {
+                    double near = c00[sample] + (c10[sample] - c00[sample]) * tx;
+                    double far = c01[sample] + (c11[sample] - c01[sample]) * tx;
+                    blockSamples[sample] = near + (far - near) * tz;
+                }
+                blockColumns[z * 16 + x] = blockSamples;
+            }
+        }
+        return new ChunkDensity(blockColumns, verticalSpacing);
+    }
+
+    /**
+     * The cutout noise for every block column in a chunk.
+     */
+    public static final class ChunkDensity {
+        /** The samples of each block column, interpolated from the lattice. */
+        private final double[][] columns;
+        private final int verticalSpacing;
+
+        private ChunkDensity(double[][] columns, int verticalSpacing) {
+            this.columns = columns;
+            this.verticalSpacing = verticalSpacing;
+        }
+
+        /**
+         * Gets the cutout noise at a block, interpolated from the lattice. Blocks
+         * above the top sample generated for the chunk use the top sample.
+         *
+         * @param x the X coordinate within the chunk, 0-15
+         * @param y the Y coordinate, 0 or more
+         * @param z the Z coordinate within the chunk, 0-15
+         * @return the cutout noise
+         */
+        public double getDensity(int x, int y, int z) {
+            double[] samples = columns[z * 16 + x];
+            int sample = y / verticalSpacing;
+            if (sample >= samples.length - 1) {
+                return samples[samples.length - 1];
+            }
+            double ty = (double) (y % verticalSpacing) / verticalSpacing;
+            return samples[sample] + (samples[sample + 1] - samples[sample]) * ty;
+        }
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.kylenanakdewa.yaran.generation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.bukkit.util.noise.NoiseGenerator;
+
+/**
+ * Generates several noise layers over the same grid of coordinates, with one
+ * call, and can skip layers that aren't needed for a grid.
+ * <p>
+ * Each layer uses its own noise generator, so the results are identical to
+ * generating each layer on its own, and nearly all of the time is spent in the
+ * noise generators either way. Only the scaled coordinates are shared, between
+ * layers that happen to use the same frequency, which saves a multiplication
+ * per sample and is not a meaningful speedup on its own.
+ * <p>
+ * Layers that use a sample spacing are generated on their own lattice, with
+ * {@link YaranNoiseGenerator#fillNoise(int, int, int, int, double[])}.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class FusedNoiseEvaluator {
+
+    /** The noise layers to generate. */
+    private final YaranNoiseGenerator[] layers;
+
+    /** The distinct frequencies used by layers sampled every block, lowest first. */
+    private final double[] frequencies;
+
+    /** For each distinct frequency, the layer index of each octave that uses it. */
+    private final int[][] octaveLayers;
+
+    /** For each distinct frequency, the size of each octave that uses it. */
+    private final double[][] octaveWeights;
+
+    /** For each distinct frequency, the noise generator of each octave that uses it. */
+    private final NoiseGenerator[][] octaveGenerators;
+
+    /**
+     * Creates an evaluator for the specified noise layers.
+     *
+     * @param layers the noise layers to generate, null layers are skipped
+     */
+    public FusedNoiseEvaluator(YaranNoiseGenerator... layers) {
+        this.layers = layers.clone();
+
+        // Group octaves by frequency. Within a layer, octaves are added lowest
+        // frequency first, so each layer is still summed in the same order.
+        TreeMap<Double, List<Integer>> layersByFrequency = new TreeMap<Double, List<Integer>>();
+        TreeMap<Double, List<Double>> weightsByFrequency = new TreeMap<Double, List<Double>>();
+        for (int layer = 0; layer < layers.length; layer++) {
+            if (layers[layer] == null || layers[layer].getSampleSpacing() > 1) {
+                continue;
+            }
+            OctaveStack octaves = layers[layer].getOctaves();
+            for (int octave = 0; octave < octaves.size(); octave++) {
+                double frequency = octaves.getFrequency(octave);
+                layersByFrequency.computeIfAbsent(frequency, f -> new ArrayList<Integer>()).add(layer);
+                weightsByFrequency.computeIfAbsent(frequency, f -> new ArrayList<Double>())
+                        .add(octaves.getWeight(octave));
+            }
+        }
+
+        int count = layersByFrequency.size();
+        frequencies = new double[count];
+        octaveLayers = new int[count][];
+        octaveWeights = new double[count][];
+        octaveGenerators = new NoiseGenerator[count][];
+        int index = 0;
+        for (double frequency : layersByFrequency.keySet()) {
+            List<Integer> frequencyLayers = layersByFrequency.get(frequency);
+            List<Double> frequencyWeights = weightsByFrequency.get(frequency);
+
+            frequencies[index] = frequency;
+            octaveLayers[index] = new int[frequencyLayers.size()];
+            octaveWeights[index] = new double[frequencyLayers.size()];
+            octaveGenerators[index] = new NoiseGenerator[frequencyLayers.size()];
+            for (int i = 0; i < frequencyLayers.size(); i++) {
+                octaveLayers[index][i] = frequencyLayers.get(i);
+                octaveWeights[index][i] = frequencyWeights.get(i);
+                octaveGenerators[index][i] = layers[frequencyLayers.get(i)].getGenerator();
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Generates every layer for a grid of coordinates, in the range 0..1. Each
+     * layer gives the same values as
+     * {@link YaranNoiseGenerator#fillNoise(int, int, int, int, double[])}.
+     * <p>
+     * Results are stored in rows of increasing Z, so the noise for a layer at (x,
+     * z) is stored at index {@code (z - originZ) * width + (x - originX)}.
+     *
+     * @param originX the lowest X coordinate of the grid
+     * @param originZ the lowest Z coordinate of the grid
+     * @param width   the number of samples along the X axis
+     * @param depth   the number of samples along the Z axis
+     * @return the noise for each layer, in the same order as the layers were
+     *         provided, or null for null layers
+     */
+    public double[][] fillNoise(int originX, int originZ, int width, int depth) {
+        return fillNoise(originX, originZ, width, depth, 1);
+    }
+
+    /**
+     * Generates every layer for a grid of samples taken every step blocks,
+     * starting at the origin, such as for a scaled-down preview. Each sample gives
+     * the same value as {@link #fillNoise(int, int, int, int)} at that block.
+     * <p>
+     * Results are stored in rows of increasing Z, so the noise for a layer at
+     * sample (x, z) is stored at index {@code z * width + x}.
+     *
+     * @param originX the lowest X coordinate of the grid
+     * @param originZ the lowest Z coordinate of the grid
+     * @param width   the number of samples along the X axis
+     * @param depth   the number of samples along the Z axis
+     * @param step    the distance between samples, in blocks
+     * @return the noise for each layer, in the same order as the layers were
+     *         provided, or null for null layers
+     */
+    public double[][] fillNoise(int originX, int originZ, int width, int depth, int step) {
+        return fillNoise(originX, originZ, width, depth, step, null);
+    }
+
+    /**
+     * Generates every layer except the skipped layers for a grid of samples, like
+     * {@link #fillNoise(int, int, int, int, int)}. Skipped layers are not
+     * generated at all.
+     *
+     * @param skippedLayers whether to skip each layer, or null to generate every
+     *                      layer
+     * @return the noise for each layer, in the same order as the layers were
+     *         provided, or null for null and skipped layers
+     */
+    public double[][] fillNoise(int originX, int originZ, int width, int depth, int step, boolean[] skippedLayers) {
+        int size = width * depth;
+        double[][] out = new double[layers.length][];
+
+        for (int layer = 0; layer < layers.length; layer++) {
+            if (layers[layer] == null || skippedLayers != null && skippedLayers[layer]) {
+                continue;
+            }
+            out[layer] = new double[size];
+
+            // Layers with their own lattice are generated separately
+            if (layers[layer].getSampleSpacing() > 1) {
+                if (step == 1) {
+                    layers[layer].fillNoise(originX, originZ, width, depth, out[layer]);
+                } else {
+                    for (int z = 0; z < depth; z++) {
+                        for (int x = 0; x < width; x++) {
+                            out[layer][z * width + x] = layers[layer].getNoise(originX + x * step,
+                                    originZ + z * step);
+                        }
+                    }
+                }
+                continue;
+            }
+
+            double removedWeight = layers[layer].getOctaves().getRemovedWeight();
+            for (int i = 0; i < size; i++) {
+                out[layer][i] = removedWeight;
+            }
+        }
+
+        double[] scaledX = new double[width];
+        for (int f = 0; f < frequencies.length; f++) {
+            double frequency = frequencies[f];
+            int[] fLayers = octaveLayers[f];
+            double[] fWeights = octaveWeights[f];
+            NoiseGenerator[] fGenerators = octaveGenerators[f];
+
+            // Scale the X coordinates once for every row and layer
+            for (int x = 0; x < width; x++) {
+                scaledX[x] = (originX + x * step) * frequency;
+            }
+
+            for (int z = 0; z < depth; z++) {
+                double scaledZ = (originZ + z * step) * frequency;
+                int row = z * width;
+
+                // Add this frequency to each layer that uses it
+                for (int octave = 0; octave < fLayers.length; octave++) {
+                    double[] layerOut = out[fLayers[octave]];
+                    if (layerOut == null) {
+                        continue;
+                    }
+                    NoiseGenerator generator = fGenerators[octave];
+                    double weight = fWeights[octave];
+                    for (int x = 0; x < width; x++) {
+                        double noiseLayer = generator.noise(scaledX[x], scaledZ);
+                        noiseLayer = (noiseLayer + 1) / 2;
+                        layerOut[row + x] += weight * noiseLayer;
+                    }
+                }
+            }
+        }
+
+        // Scale each layer back to the 0..1 range, and adjust it
+        for (int layer = 0; layer < layers.length; layer++) {
+            if (out[layer] == null || layers[layer].getSampleSpacing() > 1) {
+                continue;
+            }
+            double inverseTotalSize = layers[layer].getOctaves().getInverseTotalWeight();
+            double[] layerOut = out[layer];
+            for (int i = 0; i < size; i++) {
+                layerOut[i] = layers[layer].adjustNoise(layerOut[i] * inverseTotalSize);
+            }
+        }
+
+        return out;
+    }
+
+}
@@ -0,0 +1,389 @@
+package com.kylenanakdewa.yaran.generation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bukkit.Bukkit;
+
+/**
+ * A cache of generated column noise, stored on disk, so terrain can be
+ * generated again without generating noise.
+ * <p>
+ * Noise is stored in one memory-mapped file per region of 32x32 chunks, like
+ * Minecraft's own region files. The files are stored in a folder named after
+ * a hash of the world seed and generator settings, so changing the settings
+ * automatically starts a new cache. Old caches are deleted with
+ * {@link #deleteOldCaches(File, String)}, which skips caches that are still
+ * open.
+ * <p>
+ * Noise is stored at full precision, so cached terrain is identical to
+ * generated terrain, as long as the noise written is generated at full
+ * precision. Heights are not stored, as they are calculated from the noise.
+ * <p>
+ * The cache can be used from multiple threads at once. Once it is closed, it
+ * behaves as if it is empty, and ignores writes.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class HeightfieldDiskCache {
+
+    /** Identifies Yaran heightfield region files. */
+    private static final int MAGIC = 0x59524846;
+    /** The version of the region file format. */
+    private static final int VERSION = 1;
+
+    /** The number of chunks along each side of a region. */
+    private static final int REGION_CHUNKS = 32;
+    /** The number of columns in each chunk. */
+    private static final int CHUNK_COLUMNS = 16 * 16;
+
+    /** The size of the header, containing the magic number and version. */
+    private static final int HEADER_BYTES = 8;
+    /** The size of the table of flags marking which chunks have been stored. */
+    private static final int FLAGS_BYTES = REGION_CHUNKS * REGION_CHUNKS;
+
+    /**
+     * The number of open caches using each folder, in this server run, which
+     * aren't deleted as old caches. Also locked while deleting each old cache, so
+     * a cache can't be opened in a folder while it's being deleted.
+     */
+    private static final Map<File, Integer> openFolders = new HashMap<File, Integer>();
+
+    /** The number of noise layers stored for each column. */
+    private final int layerCount;
+
+    /** The size of the noise stored for each chunk. */
+    private final int chunkBytes;
+
+    /** The folder containing region files for this seed and settings. */
+    private final File folder;
+
+    /** The region files that are currently open, by region coordinates. */
+    private final Map<Long, Region> regions = new ConcurrentHashMap<Long, Region>();
+
+    /**
+     * Held while reading or writing chunks, and locked exclusively to close the
+     * cache, so closing waits for chunks being written.
+     */
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+
+    /** Whether the cache has been closed. Guarded by {@link #closeLock}. */
+    private boolean closed;
+
+    /**
+     * Creates a cache for the specified seed and settings. No files are created
+     * until noise is written.
+     *
+     * @param parentFolder the folder to store caches in
+     * @param seed         the world seed
+     * @param settingsKey  a description of all settings that affect the noise
+     * @param layerCount   the number of noise layers stored for each column
+     */
+    public HeightfieldDiskCache(File parentFolder, long seed, String settingsKey, int layerCount) {
+        this.layerCount = layerCount;
+        chunkBytes = CHUNK_COLUMNS * layerCount * 8;
+        folder = new File(new File(parentFolder, Long.toString(seed)), getFolderName(seed, settingsKey));
+        synchronized (openFolders) {
+            openFolders.merge(folder, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Deletes the caches in a parent folder that were generated with other
+     * settings, for every seed, as they are out of date. Caches that are still
+     * open, such as those of a newer reload, are kept. This may take a while, so
+     * it should not be called while generating chunks.
+     * <p>
+     * Closed caches are unmapped when their buffers are garbage collected, and
+     * some platforms, such as Windows, can't delete the files until then. Files
+     * that can't be deleted are left, and deleted by a later call.
+     *
+     * @param parentFolder the folder caches are stored in
+     * @param settingsKey  a description of the current settings that affect the
+     *                     noise
+     */
+    public static void deleteOldCaches(File parentFolder, String settingsKey) {
+        File[] seedFolders = parentFolder.listFiles(File::isDirectory);
+        if (seedFolders == null) {
+            return;
+        }
+
+        for (File seedFolder : seedFolders) {
+            long seed;
+            try {
+                seed = Long.parseLong(seedFolder.getName());
+            } catch (NumberFormatException e) {
+                continue;
+            }
+
+            String currentName = getFolderName(seed, settingsKey);
+            File[] oldFolders = seedFolder.listFiles(file -> file.isDirectory() && !file.getName().equals(currentName));
+            if (oldFolders == null) {
+                continue;
+            }
+            for (File oldFolder : oldFolders) {
+                synchronized (openFolders) {
+                    if (!openFolders.containsKey(oldFolder)) {
+                        deleteFolder(oldFolder);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes a folder and its files, warning if any can't be deleted.
+     */
+    private static void deleteFolder(File folder) {
+        try {
+            long failed = Files.walk(folder.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile)
+                    .filter(file -> !file.delete()).count();
+            if (failed > 0) {
+                Bukkit.getLogger().warning("[Yaran] Unable to delete " + failed + " files of old heightfield cache "
+                        + folder.getName() + ", they will be deleted after the next reload.");
+            }
+        } catch (IOException e) {
+            Bukkit.getLogger().warning("Unable to delete old heightfield cache: " + e.getLocalizedMessage());
+        }
+    }
+
+    private static String getFolderName(long seed, String settingsKey) {
+        return getHash(seed + "\n" + settingsKey);
+    }
+
+    private static String getHash(String text) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hash = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hash.append(String.format("%02x", digest[i]));
+            }
+            return hash.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the folder containing region files for this seed and settings
+     */
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * Reads the noise for a chunk from the cache.
+     * <p>
+     * Values for each layer are stored in rows of increasing Z, so the value at
+     * (x, z) within the chunk is stored at index {@code z * 16 + x}.
+     *
+     * @param chunkX the X coordinate of the chunk
+     * @param chunkZ the Z coordinate of the chunk
+     * @return the noise for each layer, or null if the chunk is not cached
+     */
+    public double[][] readChunk(int chunkX, int chunkZ) {
+        closeLock.readLock().lock();
+        try {
+            Region region = getRegion(chunkX, chunkZ, false);
+            if (region == null) {
+                return null;
+            }
+
+            // Reading the flag makes the noise written before it visible
+            int chunkIndex = getChunkIndex(chunkX, chunkZ);
+            if (region.stored.get(chunkIndex) == 0) {
+                return null;
+            }
+
+            double[][] noise = new double[layerCount][CHUNK_COLUMNS];
+            int position = getChunkPosition(chunkIndex);
+            for (int layer = 0; layer < layerCount; layer++) {
+                for (int i = 0; i < CHUNK_COLUMNS; i++) {
+                    noise[layer][i] = region.buffer.getDouble(position);
+                    position += 8;
+                }
+            }
+            return noise;
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the noise for a chunk to the cache.
+     *
+     * @param chunkX the X coordinate of the chunk
+     * @param chunkZ the Z coordinate of the chunk
+     * @param noise  the noise for each layer, with null for layers that aren't
+     *               generated
+     */
+    public void writeChunk(int chunkX, int chunkZ, double[][] noise) {
+        closeLock.readLock().lock();
+        try {
+            Region region = getRegion(chunkX, chunkZ, true);
+            if (region == null) {
+                return;
+            }
+
+            int chunkIndex = getChunkIndex(chunkX, chunkZ);
+            int position = getChunkPosition(chunkIndex);
+            for (int layer = 0; layer < layerCount; layer++) {
+                for (int i = 0; i < CHUNK_COLUMNS; i++) {
+                    region.buffer.putDouble(position, noise[layer] != null ? noise[layer][i] : Double.NaN);
+                    position += 8;
+                }
+            }
+
+            // Only mark the chunk as stored once all of its noise is written. Setting
+            // the in-memory flag publishes the noise to other threads.
+            region.buffer.put(HEADER_BYTES + chunkIndex, (byte) 1);
+            region.stored.set(chunkIndex, 1);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+    }
+
+    private static int getChunkIndex(int chunkX, int chunkZ) {
+        return Math.floorMod(chunkZ, REGION_CHUNKS) * REGION_CHUNKS + Math.floorMod(chunkX, REGION_CHUNKS);
+    }
+
+    private int getChunkPosition(int chunkIndex) {
+        return HEADER_BYTES + FLAGS_BYTES + chunkIndex * chunkBytes;
+    }
+
+    /**
+     * Gets the region file containing a chunk, opening it if needed.
+     *
+     * Must be called while holding the read lock.
+     *
+     * @param create whether to create the region file if it doesn't exist
+     * @return the mapped region file, or null if it doesn't exist, couldn't be
+     *         opened, or the cache is closed
+     */
+    private Region getRegion(int chunkX, int chunkZ, boolean create) {
+        if (closed) {
+            return null;
+        }
+
+        int regionX = Math.floorDiv(chunkX, REGION_CHUNKS);
+        int regionZ = Math.floorDiv(chunkZ, REGION_CHUNKS);
+        long key = ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+
+        Region region = regions.get(key);
+        if (region != null) {
+            return region;
+        }
+
+        synchronized (regions) {
+            region = regions.get(key);
+            if (region == null) {
+                region = openRegion(regionX, regionZ, create);
+                if (region != null) {
+                    regions.put(key, region);
+                }
+            }
+            return region;
+        }
+    }
+
+    private Region openRegion(int regionX, int regionZ, boolean create) {
+        File file = new File(folder, "r." + regionX + "." + regionZ + ".dat");
+        if (!create && !file.exists()) {
+            return null;
+        }
+        folder.mkdirs();
+        long size = HEADER_BYTES + FLAGS_BYTES + (long) REGION_CHUNKS * REGION_CHUNKS * chunkBytes;
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            // New files are sparse, so unused chunks don't use disk space
+            boolean isNew = randomAccessFile.length() == 0;
+            if (isNew) {
+                randomAccessFile.setLength(size);
+            } else if (randomAccessFile.length() != size) {
+                Bukkit.getLogger().warning("Heightfield cache file " + file.getName() + " is corrupt, ignoring it.");
+                return null;
+            }
+
+            MappedByteBuffer region = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (isNew) {
+                region.putInt(0, MAGIC);
+                region.putInt(4, VERSION);
+            } else if (region.getInt(0) != MAGIC || region.getInt(4) != VERSION) {
+                Bukkit.getLogger().warning("Heightfield cache file " + file.getName() + " is corrupt, ignoring it.");
+                return null;
+            }
+
+            AtomicIntegerArray stored = new AtomicIntegerArray(FLAGS_BYTES);
+            for (int chunkIndex = 0; chunkIndex < FLAGS_BYTES; chunkIndex++) {
+                stored.set(chunkIndex, region.get(HEADER_BYTES + chunkIndex));
+            }
+            return new Region(region, stored);
+        } catch (IOException e) {
+            Bukkit.getLogger().severe("Unable to open heightfield cache file: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Waits for any chunks being written, writes all changes to disk, and closes
+     * all region files, dropping their buffers so they can be unmapped.
+     * Afterwards, the cache behaves as if it is empty, and ignores writes, and it
+     * can be deleted as an old cache.
+     */
+    public void close() {
+        closeLock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Region region : regions.values()) {
+                region.buffer.force();
+            }
+            regions.clear();
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+
+        synchronized (openFolders) {
+            openFolders.computeIfPresent(folder, (openFolder, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    /**
+     * An open region file.
+     */
+    private static final class Region {
+        /** The mapped region file. */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Whether each chunk has been stored, which is set after the chunk's noise
+         * is written to the buffer, so threads that see the flag also see the
+         * noise.
+         */
+        private final AtomicIntegerArray stored;
+
+        private Region(MappedByteBuffer buffer, AtomicIntegerArray stored) {
+            this.buffer = buffer;
+            this.stored = stored;
+        }
+    }
+
+}
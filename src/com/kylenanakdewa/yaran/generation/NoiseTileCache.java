@@ -0,0 +1,291 @@
+package com.kylenanakdewa.yaran.generation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of generated noise values, stored in square tiles of
+ * blocks. Tiles are identified by world seed and tile coordinates, and each
+ * tile holds every noise layer, so the layers of a tile are always cached and
+ * removed together.
+ * <p>
+ * Values are stored as floats, to halve memory use. When the cache grows beyond
+ * its memory limit, tiles are removed, least recently used first.
+ * <p>
+ * The cache can be used from multiple threads at once. Tiles are spread over
+ * several segments, each with its own lock, so threads working on different
+ * tiles rarely wait for each other. Each segment removes its own least recently
+ * used tiles, so the order tiles are removed in is close to, but not exactly,
+ * least recently used across the whole cache. Tiles should not be modified
+ * after they are added to the cache.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class NoiseTileCache {
+
+    /** The approximate memory used by each tile, in addition to its values. */
+    private static final long TILE_OVERHEAD_BYTES = 96;
+
+    /** The approximate memory used by each layer of a tile, in addition to its values. */
+    private static final long LAYER_OVERHEAD_BYTES = 16;
+
+    /** The number of segments, which must be a power of two. */
+    private static final int SEGMENT_COUNT = 16;
+
+    /** The width and depth of each tile, in blocks. */
+    private final int tileSize;
+
+    /** The maximum memory used by cached values, in bytes. */
+    private final long maxBytes;
+
+    /** The segments that tiles are stored in, chosen by the hash of each tile's key. */
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+
+    /** The memory currently used by cached tiles, in bytes. */
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /** The next segment to remove a tile from, when the cache is full. */
+    private final AtomicInteger evictionCursor = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param tileSize the width and depth of each tile, in blocks
+     * @param maxBytes the maximum memory to use for cached values, in bytes
+     * @throws IllegalArgumentException if the tile size is less than 1
+     */
+    public NoiseTileCache(int tileSize, long maxBytes) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be at least 1, found " + tileSize);
+        }
+        this.tileSize = tileSize;
+        this.maxBytes = maxBytes;
+        for (int segment = 0; segment < SEGMENT_COUNT; segment++) {
+            segments[segment] = new Segment();
+        }
+    }
+
+    /**
+     * @return the width and depth of each tile, in blocks
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * Gets a tile of noise values from the cache, with the values of every layer.
+     * <p>
+     * Values are stored in rows of increasing Z, so the value of a layer at (x, z)
+     * within the tile is stored at index {@code z * tileSize + x}.
+     *
+     * @param seed  the world seed
+     * @param tileX the X coordinate of the tile, in tiles
+     * @param tileZ the Z coordinate of the tile, in tiles
+     * @return the noise values of each layer in the tile, or null if the tile is
+     *         not cached
+     */
+    public float[][] getTile(long seed, int tileX, int tileZ) {
+        TileKey key = new TileKey(seed, tileX, tileZ);
+        Segment segment = getSegment(key);
+        float[][] layers;
+        synchronized (segment) {
+            layers = segment.tiles.get(key);
+        }
+
+        if (layers != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return layers;
+    }
+
+    /**
+     * Adds a tile of noise values to the cache, replacing any existing values for
+     * the tile. Tiles are removed if the cache is full.
+     *
+     * @param seed   the world seed
+     * @param tileX  the X coordinate of the tile, in tiles
+     * @param tileZ  the Z coordinate of the tile, in tiles
+     * @param layers the noise values of each layer, with tileSize * tileSize
+     *               values, or null for layers that aren't generated
+     */
+    public void putTile(long seed, int tileX, int tileZ, float[][] layers) {
+        TileKey key = new TileKey(seed, tileX, tileZ);
+        Segment segment = getSegment(key);
+        long addedBytes = getTileBytes(layers);
+        synchronized (segment) {
+            float[][] old = segment.tiles.put(key, layers);
+            if (old != null) {
+                addedBytes -= getTileBytes(old);
+            }
+            segment.usedBytes += addedBytes;
+        }
+        usedBytes.addAndGet(addedBytes);
+
+        evict(key);
+    }
+
+    /**
+     * Removes tiles until the cache fits, taking the least recently used tile
+     * from each segment in turn. The tile that was just added is kept.
+     */
+    private void evict(TileKey addedKey) {
+        int emptySegments = 0;
+        while (usedBytes.get() > maxBytes && emptySegments < SEGMENT_COUNT) {
+            Segment segment = segments[evictionCursor.getAndIncrement() & (SEGMENT_COUNT - 1)];
+            long removedBytes = 0;
+            synchronized (segment) {
+                Iterator<Entry<TileKey, float[][]>> iterator = segment.tiles.entrySet().iterator();
+                if (iterator.hasNext()) {
+                    Entry<TileKey, float[][]> eldest = iterator.next();
+                    if (!eldest.getKey().equals(addedKey)) {
+                        removedBytes = getTileBytes(eldest.getValue());
+                        iterator.remove();
+                        segment.usedBytes -= removedBytes;
+                    }
+                }
+            }
+
+            if (removedBytes == 0) {
+                emptySegments++;
+            } else {
+                emptySegments = 0;
+                usedBytes.addAndGet(-removedBytes);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private Segment getSegment(TileKey key) {
+        int hash = key.hashCode();
+        return segments[(hash ^ hash >>> 16) & (SEGMENT_COUNT - 1)];
+    }
+
+    private static long getTileBytes(float[][] layers) {
+        long bytes = TILE_OVERHEAD_BYTES;
+        for (float[] values : layers) {
+            if (values != null) {
+                bytes += values.length * 4L + LAYER_OVERHEAD_BYTES;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Removes all tiles from the cache, and resets the statistics.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.tiles.clear();
+                usedBytes.addAndGet(-segment.usedBytes);
+                segment.usedBytes = 0;
+            }
+        }
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    /**
+     * @return the number of tiles in the cache
+     */
+    public int getTileCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                count += segment.tiles.size();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the approximate memory used by cached tiles, in bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return the maximum memory to use for cached tiles, in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of requested tiles that were found in the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of requested tiles that were not found in the cache
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of tiles removed to keep the cache within its memory
+     *         limit
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * A part of the cache, with its own lock. Tiles are kept from least to most
+     * recently used.
+     */
+    private static final class Segment {
+        private final LinkedHashMap<TileKey, float[][]> tiles = new LinkedHashMap<TileKey, float[][]>(16, 0.75f,
+                true);
+
+        /** The memory used by tiles in this segment, in bytes. */
+        private long usedBytes;
+    }
+
+    /**
+     * Identifies a tile in the cache.
+     */
+    private static final class TileKey {
+        private final long seed;
+        private final int tileX;
+        private final int tileZ;
+
+        private TileKey(long seed, int tileX, int tileZ) {
+            this.seed = seed;
+            this.tileX = tileX;
+            this.tileZ = tileZ;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) obj;
+            return seed == other.seed && tileX == other.tileX && tileZ == other.tileZ;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Long.hashCode(seed);
+            hash = 31 * hash + tileX;
+            hash = 31 * hash + tileZ;
+            return hash;
+        }
+    }
+
+}
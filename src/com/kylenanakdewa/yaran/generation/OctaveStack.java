@@ -0,0 +1,295 @@
+package com.kylenanakdewa.yaran.generation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.bukkit.util.noise.NoiseGenerator;
+
+/**
+ * An immutable set of noise frequencies (octaves), and their relative
+ * size/weight.
+ * <p>
+ * Octaves are sorted from lowest to highest frequency, so noise is always
+ * summed in the same order, and the results are deterministic regardless of
+ * how the octaves were configured.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class OctaveStack {
+
+    /** The frequencies, sorted from lowest to highest. */
+    private final double[] frequencies;
+
+    /** The size/weight of each frequency. */
+    private final double[] weights;
+
+    /** The total size of all frequencies. */
+    private final double totalWeight;
+
+    /** The reciprocal of the total size, used to normalize noise. */
+    private final double inverseTotalWeight;
+
+    /**
+     * The average value of octaves that were removed from this stack, which is
+     * added to all noise instead of generating them.
+     */
+    private final double removedWeight;
+
+    /**
+     * Creates an octave stack from a list of frequencies, and their sizes.
+     *
+     * @param frequencies the frequencies to use
+     * @param weights     the size of each frequency, must be the same length as
+     *                    frequencies
+     * @throws IllegalArgumentException if the arrays are different lengths, or no
+     *                                  frequencies are provided
+     */
+    public OctaveStack(double[] frequencies, double[] weights) {
+        if (frequencies.length != weights.length) {
+            throw new IllegalArgumentException("Found " + frequencies.length + " frequencies, but " + weights.length
+                    + " sizes. There must be one size per frequency.");
+        }
+        if (frequencies.length == 0) {
+            throw new IllegalArgumentException("At least one frequency is required.");
+        }
+
+        // Sort octaves by frequency, keeping each size with its frequency
+        Integer[] order = new Integer[frequencies.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> frequencies[i]));
+
+        this.frequencies = new double[order.length];
+        this.weights = new double[order.length];
+        double total = 0;
+        for (int i = 0; i < order.length; i++) {
+            this.frequencies[i] = frequencies[order[i]];
+            this.weights[i] = weights[order[i]];
+            total += this.weights[i];
+        }
+
+        totalWeight = total;
+        inverseTotalWeight = 1 / total;
+        removedWeight = 0;
+    }
+
+    private OctaveStack(double[] frequencies, double[] weights, double totalWeight, double removedWeight) {
+        this.frequencies = frequencies;
+        this.weights = weights;
+        this.totalWeight = totalWeight;
+        this.inverseTotalWeight = 1 / totalWeight;
+        this.removedWeight = removedWeight;
+    }
+
+    /**
+     * Creates an octave stack from a map of frequencies and their sizes.
+     *
+     * @param frequencies a map of frequencies and their relative size/weight
+     */
+    public OctaveStack(Map<Double, Double> frequencies) {
+        this(toArray(frequencies, true), toArray(frequencies, false));
+    }
+
+    /**
+     * Creates an octave stack from a list of frequencies, and a list of their
+     * sizes.
+     *
+     * @param frequencies the frequencies to use
+     * @param weights     the size of each frequency, must be the same number of
+     *                    values as frequencies
+     */
+    public OctaveStack(List<Double> frequencies, List<Double> weights) {
+        this(toArray(frequencies), toArray(weights));
+    }
+
+    /**
+     * Creates an octave stack from a list of "frequency:size" strings, as used in
+     * the config file.
+     *
+     * @param entries the frequency entries, in "frequency:size" format
+     * @return the octave stack
+     * @throws NumberFormatException if an entry is not in "frequency:size" format
+     */
+    public static OctaveStack fromStrings(List<String> entries) {
+        double[] frequencies = new double[entries.size()];
+        double[] weights = new double[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            String[] entry = entries.get(i).split(":");
+            if (entry.length != 2) {
+                throw new NumberFormatException("Invalid frequency " + entries.get(i) + ", expected frequency:size");
+            }
+            frequencies[i] = Double.parseDouble(entry[0]);
+            weights[i] = Double.parseDouble(entry[1]);
+        }
+        return new OctaveStack(frequencies, weights);
+    }
+
+    private static double[] toArray(Map<Double, Double> map, boolean keys) {
+        double[] array = new double[map.size()];
+        int i = 0;
+        for (Entry<Double, Double> entry : map.entrySet()) {
+            array[i++] = keys ? entry.getKey() : entry.getValue();
+        }
+        return array;
+    }
+
+    private static double[] toArray(List<Double> list) {
+        double[] array = new double[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    /**
+     * Creates a copy of this octave stack without the specified octaves. Each
+     * removed octave is replaced by its average value, and the total size is
+     * kept, so the noise stays in the same range, and differs from the full stack
+     * by at most half the size of the removed octaves.
+     *
+     * @param removed whether to remove each octave, from lowest to highest
+     *                frequency
+     * @return the reduced octave stack
+     */
+    public OctaveStack withoutOctaves(boolean[] removed) {
+        int kept = 0;
+        for (int i = 0; i < frequencies.length; i++) {
+            if (!removed[i]) {
+                kept++;
+            }
+        }
+
+        double[] keptFrequencies = new double[kept];
+        double[] keptWeights = new double[kept];
+        double removedAverage = removedWeight;
+        int index = 0;
+        for (int i = 0; i < frequencies.length; i++) {
+            if (removed[i]) {
+                // Noise in each octave averages 0.5, once converted to the 0..1 range
+                removedAverage += weights[i] / 2;
+            } else {
+                keptFrequencies[index] = frequencies[i];
+                keptWeights[index] = weights[i];
+                index++;
+            }
+        }
+
+        return new OctaveStack(keptFrequencies, keptWeights, totalWeight, removedAverage);
+    }
+
+    /**
+     * @return the number of octaves
+     */
+    public int size() {
+        return frequencies.length;
+    }
+
+    /**
+     * @param octave the index of the octave, from lowest to highest frequency
+     * @return the frequency of the octave
+     */
+    public double getFrequency(int octave) {
+        return frequencies[octave];
+    }
+
+    /**
+     * @param octave the index of the octave, from lowest to highest frequency
+     * @return the size/weight of the octave
+     */
+    public double getWeight(int octave) {
+        return weights[octave];
+    }
+
+    /**
+     * @return the combined average value of octaves removed from this stack, which
+     *         is added to all noise
+     */
+    public double getRemovedWeight() {
+        return removedWeight;
+    }
+
+    /**
+     * @return the total size of all octaves, including removed octaves
+     */
+    public double getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * @return the reciprocal of the total size of all octaves
+     */
+    public double getInverseTotalWeight() {
+        return inverseTotalWeight;
+    }
+
+    /**
+     * Generates 2D noise at each frequency, converts each layer to the 0..1 range,
+     * and adds them together using the size of each frequency.
+     * <p>
+     * The result is in the range 0..total size.
+     *
+     * @param generator the noise generator algorithm to use
+     * @param x         the X coordinate to generate noise at
+     * @param z         the Z coordinate to generate noise at
+     * @return the sum of all noise layers
+     */
+    public double sum(NoiseGenerator generator, double x, double z) {
+        double noise = removedWeight;
+        for (int i = 0; i < frequencies.length; i++) {
+            double frequency = frequencies[i];
+            noise += weights[i] * ((generator.noise(x * frequency, z * frequency) + 1) / 2);
+        }
+        return noise;
+    }
+
+    /**
+     * Generates 3D noise at each frequency, converts each layer to the 0..1 range,
+     * and adds them together using the size of each frequency.
+     * <p>
+     * The result is in the range 0..total size.
+     *
+     * @param generator the noise generator algorithm to use
+     * @param x         the X coordinate to generate noise at
+     * @param y         the Y coordinate to generate noise at
+     * @param z         the Z coordinate to generate noise at
+     * @return the sum of all noise layers
+     */
+    public double sum(NoiseGenerator generator, double x, double y, double z) {
+        double noise = removedWeight;
+        for (int i = 0; i < frequencies.length; i++) {
+            double frequency = frequencies[i];
+            noise += weights[i] * ((generator.noise(x * frequency, y * frequency, z * frequency) + 1) / 2);
+        }
+        return noise;
+    }
+
+    /**
+     * Generates 2D noise at each frequency, weighted by size, in the range 0..1.
+     *
+     * @param generator the noise generator algorithm to use
+     * @param x         the X coordinate to generate noise at
+     * @param z         the Z coordinate to generate noise at
+     * @return resulting noise at given location, in the range 0..1
+     */
+    public double normalizedSum(NoiseGenerator generator, double x, double z) {
+        return sum(generator, x, z) * inverseTotalWeight;
+    }
+
+    /**
+     * Generates 3D noise at each frequency, weighted by size, in the range 0..1.
+     *
+     * @param generator the noise generator algorithm to use
+     * @param x         the X coordinate to generate noise at
+     * @param y         the Y coordinate to generate noise at
+     * @param z         the Z coordinate to generate noise at
+     * @return resulting noise at given location, in the range 0..1
+     */
+    public double normalizedSum(NoiseGenerator generator, double x, double y, double z) {
+        return sum(generator, x, y, z) * inverseTotalWeight;
+    }
+
+}
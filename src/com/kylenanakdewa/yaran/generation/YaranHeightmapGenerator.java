@@ -1,9 +1,12 @@
 package com.kylenanakdewa.yaran.generation;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import com.kylenanakdewa.yaran.utils.YaranMath;
 
 import org.bukkit.configuration.ConfigurationSection;
-import org.bukkit.util.noise.SimplexNoiseGenerator;
 
 /**
  * Generates a heightmap using multiple Simplex Noise generators.
@@ -12,6 +15,38 @@ import org.bukkit.util.noise.SimplexNoiseGenerator;
  */
 public class YaranHeightmapGenerator {
 
+    /**
+     * The range of block heights that minimum height noise is rescaled to.
+     * <p>
+     * The minimum height is also the lower bound that maximum and final height
+     * noise are rescaled from. Each rescaled height is a weighted average of its
+     * bounds, so a change in the minimum height changes the maximum and final
+     * heights by no more than the same amount, and the errors of each layer add
+     * up in the final height.
+     */
+    private static final double MIN_HEIGHT_RANGE = 128 - 45;
+
+    /**
+     * The largest range of block heights that maximum and final height noise are
+     * rescaled to.
+     */
+    private static final double MAX_HEIGHT_RANGE = 224 - 45;
+
+    /**
+     * The number of noise layers generated for each column. Layers are generated
+     * in the order continent, minimum height, maximum height, final height,
+     * temperature, flying hills.
+     */
+    public static final int LAYER_COUNT = 6;
+    private static final int TEMPERATURE_LAYER = 4;
+    private static final int FLYING_HILLS_LAYER = 5;
+
+    /**
+     * The width and depth of the cells that flying hills noise is bounded over, in
+     * blocks.
+     */
+    private static final int FLYING_HILLS_BOUND_CELL = 4;
+
     /**
      * The noise generator for the continent map. Controls land vs water.
      */
@@ -34,20 +69,174 @@ public class YaranHeightmapGenerator {
      */
     private final YaranNoiseGenerator finalHeightGenerator;
 
+    /**
+     * The noise generator for the temperature map, or null if not configured.
+     */
+    private final YaranNoiseGenerator temperatureMapGenerator;
+
+    /**
+     * The noise generator for flying hills, or null if not enabled.
+     */
+    private final YaranNoiseGenerator flyingHillsGenerator;
+
+    /**
+     * Generates every noise layer for a grid of columns.
+     */
+    private final FusedNoiseEvaluator evaluator;
+
+    /**
+     * The seed used to generate noise, which identifies cached tiles.
+     */
+    private final long seed;
+
+    /**
+     * The cache of generated noise layers, or null to generate all noise.
+     */
+    private NoiseTileCache tileCache;
+
+    /**
+     * The disk cache of generated chunk noise, or null to generate all noise.
+     */
+    private HeightfieldDiskCache diskCache;
+
+    /**
+     * Flying hills noise at or below this value has no effect, or NaN if all
+     * flying hills noise is needed.
+     */
+    private double flyingHillsCutoff = Double.NaN;
+
     public YaranHeightmapGenerator(long seed, ConfigurationSection finalHeightConfig,
             ConfigurationSection continentMapConfig, ConfigurationSection minHeightConfig,
             ConfigurationSection maxHeightConfig) {
-        finalHeightGenerator = new YaranNoiseGenerator(finalHeightConfig, new SimplexNoiseGenerator(seed));
+        this(seed, finalHeightConfig, continentMapConfig, minHeightConfig, maxHeightConfig, false);
+    }
 
+    /**
+     * Creates a heightmap generator, optionally using fast approximations of the
+     * exponent and sigmoid functions in each noise layer.
+     */
+    public YaranHeightmapGenerator(long seed, ConfigurationSection finalHeightConfig,
+            ConfigurationSection continentMapConfig, ConfigurationSection minHeightConfig,
+            ConfigurationSection maxHeightConfig, boolean fastMath) {
+        this(seed, finalHeightConfig, continentMapConfig, minHeightConfig, maxHeightConfig, null, null, fastMath);
+    }
+
+    /**
+     * Creates a heightmap generator that also generates temperature and flying
+     * hills noise for each column, alongside the heightmap layers.
+     *
+     * @param temperatureMapConfig the temperature map settings, or null to skip
+     *                             the temperature map
+     * @param flyingHillsConfig    the flying hills settings, or null to skip
+     *                             flying hills
+     */
+    public YaranHeightmapGenerator(long seed, ConfigurationSection finalHeightConfig,
+            ConfigurationSection continentMapConfig, ConfigurationSection minHeightConfig,
+            ConfigurationSection maxHeightConfig, ConfigurationSection temperatureMapConfig,
+            ConfigurationSection flyingHillsConfig, boolean fastMath) {
+        this.seed = seed;
+
+        finalHeightGenerator = new YaranNoiseGenerator(finalHeightConfig, new YaranSimplexNoiseGenerator(seed),
+                fastMath, MAX_HEIGHT_RANGE);
+
+        // Continent noise isn't culled, as it decides between land and ocean, which
+        // can move the terrain height by 100+ blocks for any change in noise
         long continentMapSeed = seed * "CONTINENT".hashCode();
         continentMapGenerator = new YaranNoiseGenerator(continentMapConfig,
-                new SimplexNoiseGenerator(continentMapSeed));
+                new YaranSimplexNoiseGenerator(continentMapSeed), fastMath);
 
         long minHeightSeed = seed * "MINIMUM".hashCode();
-        minHeightGenerator = new YaranNoiseGenerator(minHeightConfig, new SimplexNoiseGenerator(minHeightSeed));
+        minHeightGenerator = new YaranNoiseGenerator(minHeightConfig, new YaranSimplexNoiseGenerator(minHeightSeed),
+                fastMath, MIN_HEIGHT_RANGE);
 
         long maxHeightSeed = seed * "MAXIMUM".hashCode();
-        maxHeightGenerator = new YaranNoiseGenerator(maxHeightConfig, new SimplexNoiseGenerator(maxHeightSeed));
+        maxHeightGenerator = new YaranNoiseGenerator(maxHeightConfig, new YaranSimplexNoiseGenerator(maxHeightSeed),
+                fastMath, MAX_HEIGHT_RANGE);
+
+        if (temperatureMapConfig != null) {
+            long temperatureSeed = seed * "TEMPERATURE".hashCode();
+            temperatureMapGenerator = new YaranNoiseGenerator(temperatureMapConfig,
+                    new YaranSimplexNoiseGenerator(temperatureSeed), fastMath);
+        } else {
+            temperatureMapGenerator = null;
+        }
+
+        if (flyingHillsConfig != null && flyingHillsConfig.getBoolean("enabled")) {
+            long flyingHillsSeed = seed * "FLYING_HILLS".hashCode();
+            flyingHillsGenerator = new YaranNoiseGenerator(flyingHillsConfig,
+                    new YaranSimplexNoiseGenerator(flyingHillsSeed), fastMath);
+        } else {
+            flyingHillsGenerator = null;
+        }
+
+        evaluator = new FusedNoiseEvaluator(continentMapGenerator, minHeightGenerator, maxHeightGenerator,
+                finalHeightGenerator, temperatureMapGenerator, flyingHillsGenerator);
+    }
+
+    /**
+     * Sets the cache to use for noise generated by
+     * {@link #getHeightData(int, int, int, int)}. Noise is generated a whole tile
+     * at a time, and stored in the cache with reduced precision.
+     * <p>
+     * The cache must only be shared by heightmap generators with the same
+     * settings, as tiles are identified only by seed and position.
+     *
+     * @param tileCache the cache to use, or null to generate all noise
+     */
+    public void setTileCache(NoiseTileCache tileCache) {
+        this.tileCache = tileCache;
+    }
+
+    /**
+     * Sets the disk cache to use for noise generated by
+     * {@link #getHeightData(int, int, int, int)}, when the grid is a single chunk.
+     * Noise for the disk cache is generated at full precision, without the tile
+     * cache.
+     * <p>
+     * The cache must have been created for the same seed and settings as this
+     * generator.
+     *
+     * @param diskCache the disk cache to use, or null to generate all noise
+     */
+    public void setDiskCache(HeightfieldDiskCache diskCache) {
+        this.diskCache = diskCache;
+    }
+
+    /**
+     * Sets the flying hills noise value, at or below which flying hills have no
+     * effect. Where the flying hills noise can't be above this value, it isn't
+     * generated, and is NaN instead. With the tile cache, this is decided for
+     * each whole tile.
+     *
+     * @param cutoff the cutoff value, or NaN to always generate flying hills noise
+     */
+    public void setFlyingHillsCutoff(double cutoff) {
+        this.flyingHillsCutoff = cutoff;
+    }
+
+    /**
+     * Gets a description of the octaves culled from each noise layer, for
+     * logging.
+     *
+     * @return a description of each layer that had octaves culled
+     */
+    public List<String> getCullingSummaries() {
+        List<String> summaries = new ArrayList<String>();
+        double totalError = 0;
+        for (YaranNoiseGenerator generator : new YaranNoiseGenerator[] { minHeightGenerator, maxHeightGenerator,
+                finalHeightGenerator }) {
+            if (generator.getCullingSummary() != null) {
+                summaries.add(generator.getCullingSummary());
+                totalError += generator.getMaxCullingError();
+            }
+        }
+
+        // Errors in the minimum and maximum heights carry through to the final height
+        if (summaries.size() > 1) {
+            summaries.add("Culled octaves change the final terrain height by at most "
+                    + String.format("%.2f", totalError) + " blocks in total, before rounding");
+        }
+        return summaries;
     }
 
     /**
@@ -81,6 +270,205 @@ public class YaranHeightmapGenerator {
         return new HeightData(x, z);
     }
 
+    /**
+     * Generates the terrain height data for a grid of coordinates, such as a
+     * chunk. Each noise layer is generated for the whole grid at once.
+     * <p>
+     * Results are stored in rows of increasing Z, so the height data at (x, z) is
+     * stored at index {@code (z - originZ) * width + (x - originX)}.
+     *
+     * @param originX the lowest X coordinate of the grid
+     * @param originZ the lowest Z coordinate of the grid
+     * @param width   the number of columns along the X axis
+     * @param depth   the number of columns along the Z axis
+     * @return the terrain height data for each column in the grid
+     */
+    public HeightData[] getHeightData(int originX, int originZ, int width, int depth) {
+        return toHeightData(getNoise(originX, originZ, width, depth), width * depth);
+    }
+
+    /**
+     * Generates the terrain height data for a grid of samples taken every step
+     * blocks, starting at the origin, such as for a scaled-down preview of the
+     * terrain. Caches are not used, as the samples don't line up with cached
+     * tiles or chunks.
+     * <p>
+     * Results are stored in rows of increasing Z, so the height data for sample
+     * (x, z) is stored at index {@code z * width + x}.
+     *
+     * @param originX the lowest X coordinate of the grid
+     * @param originZ the lowest Z coordinate of the grid
+     * @param width   the number of samples along the X axis
+     * @param depth   the number of samples along the Z axis
+     * @param step    the distance between samples, in blocks
+     * @return the terrain height data for each sample in the grid
+     */
+    public HeightData[] getHeightData(int originX, int originZ, int width, int depth, int step) {
+        if (step == 1) {
+            return getHeightData(originX, originZ, width, depth);
+        }
+        return toHeightData(evaluator.fillNoise(originX, originZ, width, depth, step), width * depth);
+    }
+
+    private HeightData[] toHeightData(double[][] noise, int size) {
+        HeightData[] heightData = new HeightData[size];
+        for (int i = 0; i < size; i++) {
+            heightData[i] = new HeightData(noise[0][i], noise[1][i], noise[2][i], noise[3][i],
+                    noise[TEMPERATURE_LAYER] != null ? noise[TEMPERATURE_LAYER][i] : Double.NaN,
+                    noise[FLYING_HILLS_LAYER] != null ? noise[FLYING_HILLS_LAYER][i] : Double.NaN);
+        }
+        return heightData;
+    }
+
+    /**
+     * Gets every noise layer for a grid of coordinates, using the disk cache if
+     * the grid is a single chunk, and the tile cache otherwise.
+     */
+    private double[][] getNoise(int originX, int originZ, int width, int depth) {
+        boolean isChunk = width == 16 && depth == 16 && Math.floorMod(originX, 16) == 0
+                && Math.floorMod(originZ, 16) == 0;
+        if (diskCache != null && isChunk) {
+            double[][] noise = diskCache.readChunk(originX >> 4, originZ >> 4);
+            if (noise == null) {
+                // The tile cache is skipped, so the disk cache keeps noise at full precision
+                noise = generateNoise(originX, originZ, width, depth);
+                diskCache.writeChunk(originX >> 4, originZ >> 4, noise);
+            }
+            return noise;
+        }
+        if (tileCache != null) {
+            return getCachedNoise(originX, originZ, width, depth);
+        }
+        return generateNoise(originX, originZ, width, depth);
+    }
+
+    /**
+     * Generates every noise layer for a grid of coordinates, without using any
+     * cache.
+     */
+    private double[][] generateNoise(int originX, int originZ, int width, int depth) {
+        return evaluator.fillNoise(originX, originZ, width, depth, 1,
+                getSkippedLayers(originX, originZ, width, depth));
+    }
+
+    /**
+     * Gets the layers that don't need to be generated for a grid, which is the
+     * flying hills layer if flying hills can't generate anywhere in the grid.
+     *
+     * @return whether to skip each layer, or null to generate every layer
+     */
+    private boolean[] getSkippedLayers(int originX, int originZ, int width, int depth) {
+        if (canHaveFlyingHills(originX, originZ, width, depth)) {
+            return null;
+        }
+        boolean[] skippedLayers = new boolean[LAYER_COUNT];
+        skippedLayers[FLYING_HILLS_LAYER] = true;
+        return skippedLayers;
+    }
+
+    /**
+     * Checks whether flying hills noise could be above the cutoff anywhere in a
+     * grid, by bounding the noise over small square cells of the grid.
+     *
+     * @return false if flying hills can't generate anywhere in the grid
+     */
+    private boolean canHaveFlyingHills(int originX, int originZ, int width, int depth) {
+        if (flyingHillsGenerator == null || Double.isNaN(flyingHillsCutoff)) {
+            return true;
+        }
+
+        // The distance from the centre of a cell to its furthest column
+        double distance = (FLYING_HILLS_BOUND_CELL - 1) / 2.0 * Math.sqrt(2);
+        for (int cellZ = originZ; cellZ < originZ + depth; cellZ += FLYING_HILLS_BOUND_CELL) {
+            for (int cellX = originX; cellX < originX + width; cellX += FLYING_HILLS_BOUND_CELL) {
+                // Cells at the edge of the grid may be smaller, but the same distance covers them
+                double centreX = cellX + (FLYING_HILLS_BOUND_CELL - 1) / 2.0;
+                double centreZ = cellZ + (FLYING_HILLS_BOUND_CELL - 1) / 2.0;
+                if (flyingHillsGenerator.getMaxNoise(centreX, centreZ, distance) > flyingHillsCutoff) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets every noise layer for a grid of coordinates from the tile cache,
+     * generating and caching any missing tiles.
+     */
+    private double[][] getCachedNoise(int originX, int originZ, int width, int depth) {
+        int tileSize = tileCache.getTileSize();
+        double[][] noise = new double[LAYER_COUNT][];
+
+        int minTileX = Math.floorDiv(originX, tileSize);
+        int maxTileX = Math.floorDiv(originX + width - 1, tileSize);
+        int minTileZ = Math.floorDiv(originZ, tileSize);
+        int maxTileZ = Math.floorDiv(originZ + depth - 1, tileSize);
+
+        for (int tileZ = minTileZ; tileZ <= maxTileZ; tileZ++) {
+            for (int tileX = minTileX; tileX <= maxTileX; tileX++) {
+                float[][] tile = getCachedTile(tileX, tileZ);
+
+                // Copy the part of the tile that overlaps the grid
+                int startX = Math.max(originX, tileX * tileSize);
+                int endX = Math.min(originX + width, (tileX + 1) * tileSize);
+                int startZ = Math.max(originZ, tileZ * tileSize);
+                int endZ = Math.min(originZ + depth, (tileZ + 1) * tileSize);
+                for (int layer = 0; layer < LAYER_COUNT; layer++) {
+                    if (tile[layer] == null) {
+                        continue;
+                    }
+                    if (noise[layer] == null) {
+                        // Parts of the grid from tiles without the layer are NaN
+                        noise[layer] = new double[width * depth];
+                        Arrays.fill(noise[layer], Double.NaN);
+                    }
+                    for (int z = startZ; z < endZ; z++) {
+                        int tileRow = (z - tileZ * tileSize) * tileSize - tileX * tileSize;
+                        int row = (z - originZ) * width - originX;
+                        for (int x = startX; x < endX; x++) {
+                            noise[layer][row + x] = tile[layer][tileRow + x];
+                        }
+                    }
+                }
+            }
+        }
+        return noise;
+    }
+
+    /**
+     * Gets every noise layer for a tile from the cache. If the tile is missing,
+     * every layer of the tile is generated and cached together. The flying hills
+     * layer is skipped for tiles where flying hills can't generate.
+     *
+     * @return the values of each layer, or null for layers that aren't generated
+     */
+    private float[][] getCachedTile(int tileX, int tileZ) {
+        float[][] tile = tileCache.getTile(seed, tileX, tileZ);
+        if (tile != null) {
+            return tile;
+        }
+
+        int tileSize = tileCache.getTileSize();
+        int originX = tileX * tileSize;
+        int originZ = tileZ * tileSize;
+        double[][] noise = evaluator.fillNoise(originX, originZ, tileSize, tileSize, 1,
+                getSkippedLayers(originX, originZ, tileSize, tileSize));
+        tile = new float[LAYER_COUNT][];
+        for (int layer = 0; layer < LAYER_COUNT; layer++) {
+            if (noise[layer] == null) {
+                continue;
+            }
+            float[] values = new float[noise[layer].length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = (float) noise[layer][i];
+            }
+            tile[layer] = values;
+        }
+        tileCache.putTile(seed, tileX, tileZ, tile);
+        return tile;
+    }
+
     /**
      * Contains the minimum height, maximum height, and final height of the terrain.
      */
@@ -90,6 +478,14 @@ public class YaranHeightmapGenerator {
         public final double maxHeightNoise;
         public final double finalHeightNoise;
 
+        /** The temperature noise, or NaN if the temperature map isn't configured. */
+        public final double temperatureNoise;
+        /**
+         * The flying hills noise, or NaN if flying hills aren't enabled, or can't
+         * generate in this column.
+         */
+        public final double flyingHillsNoise;
+
         public final int minHeight;
         public final int maxHeight;
         public final int finalHeight;
@@ -101,10 +497,20 @@ public class YaranHeightmapGenerator {
          */
 
         private HeightData(int x, int z) {
-            continentNoise = continentMapGenerator.getNoise(x, z);
-            minHeightNoise = minHeightGenerator.getNoise(x, z);
-            maxHeightNoise = maxHeightGenerator.getNoise(x, z);
-            finalHeightNoise = finalHeightGenerator.getNoise(x, z);
+            this(continentMapGenerator.getNoise(x, z), minHeightGenerator.getNoise(x, z),
+                    maxHeightGenerator.getNoise(x, z), finalHeightGenerator.getNoise(x, z),
+                    temperatureMapGenerator != null ? temperatureMapGenerator.getNoise(x, z) : Double.NaN,
+                    flyingHillsGenerator != null ? flyingHillsGenerator.getNoise(x, z) : Double.NaN);
+        }
+
+        private HeightData(double continentNoise, double minHeightNoise, double maxHeightNoise,
+                double finalHeightNoise, double temperatureNoise, double flyingHillsNoise) {
+            this.continentNoise = continentNoise;
+            this.minHeightNoise = minHeightNoise;
+            this.maxHeightNoise = maxHeightNoise;
+            this.finalHeightNoise = finalHeightNoise;
+            this.temperatureNoise = temperatureNoise;
+            this.flyingHillsNoise = flyingHillsNoise;
 
             minHeight = YaranMath.rescaleToInt(minHeightNoise, 0, 1, 45, 128);
             maxHeight = YaranMath.rescaleToInt(maxHeightNoise, 0, 1, minHeight, 224);
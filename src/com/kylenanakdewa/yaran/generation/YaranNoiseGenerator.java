@@ -1,8 +1,7 @@
 package com.kylenanakdewa.yaran.generation;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
-import java.util.Map.Entry;
 
 import com.kylenanakdewa.yaran.utils.YaranMath;
 
@@ -25,7 +24,7 @@ public class YaranNoiseGenerator {
      * The frequencies to use, and their sizes. At least one is required. More will
      * increase terrain variation.
      */
-    private final Map<Double, Double> frequencies;
+    private final OctaveStack octaves;
 
     /**
      * The exponent to raise noise to.
@@ -44,6 +43,29 @@ public class YaranNoiseGenerator {
      */
     private final double sigmoidScale;
 
+    /**
+     * Whether to use fast approximations of the exponent and sigmoid functions.
+     */
+    private final boolean fastMath;
+
+    /**
+     * The distance between noise samples, in blocks. Noise between samples is
+     * interpolated. Set to 1 to sample every block.
+     */
+    private final int sampleSpacing;
+
+    /**
+     * A description of the octaves that were culled from this generator, or null
+     * if no octaves were culled.
+     */
+    private final String cullingSummary;
+
+    /**
+     * The most that culled octaves can change the output, or 0 if no octaves were
+     * culled.
+     */
+    private final double maxCullingError;
+
     /**
      * Creates a noise generator with the specified settings and the specified noise
      * generator algorithm.
@@ -59,10 +81,33 @@ public class YaranNoiseGenerator {
      */
     public YaranNoiseGenerator(Map<Double, Double> frequencies, double exponent, double sigmoidMultiplier,
             NoiseGenerator generator) {
-        this.frequencies = frequencies;
+        this(new OctaveStack(frequencies), exponent, sigmoidMultiplier, generator);
+    }
+
+    /**
+     * Creates a noise generator with the specified settings and the specified noise
+     * generator algorithm.
+     *
+     * @param octaves           the frequencies to use, and their relative
+     *                          size/weight
+     * @param exponent          the exponent to raise noise to, higher values will
+     *                          create flatter valleys and steeper cliffs
+     * @param sigmoidMultiplier the sigmoid function multiplier, higher values will
+     *                          create flatter peaks and valleys, and steeper
+     *                          cliffs, use 0 to disable
+     * @param generator         the noise generator algorithm to use, typically
+     *                          Simplex Noise
+     */
+    public YaranNoiseGenerator(OctaveStack octaves, double exponent, double sigmoidMultiplier,
+            NoiseGenerator generator) {
+        this.octaves = octaves;
         this.exponent = exponent;
         this.sigmoidMultiplier = sigmoidMultiplier;
         this.sigmoidScale = 0;
+        this.fastMath = false;
+        this.sampleSpacing = 1;
+        this.cullingSummary = null;
+        this.maxCullingError = 0;
         this.generator = generator;
     }
 
@@ -76,13 +121,51 @@ public class YaranNoiseGenerator {
      *                  Noise
      */
     public YaranNoiseGenerator(ConfigurationSection config, NoiseGenerator generator) {
+        this(config, generator, false);
+    }
+
+    /**
+     * Creates a noise generator with the settings specified in a config file and
+     * the specified noise generator algorithm.
+     * <p>
+     * When fast math is enabled, the exponent and sigmoid functions are replaced
+     * with the fast approximations in {@link YaranMath}, which differ from the
+     * exact functions by at most {@link YaranMath#FAST_SIGMOID_MAX_ERROR}.
+     *
+     * @param config    the configuration section containing the settings for this
+     *                  generator
+     * @param generator the noise generator algorithm to use, typically Simplex
+     *                  Noise
+     * @param fastMath  whether to use fast approximations of the exponent and
+     *                  sigmoid functions
+     */
+    public YaranNoiseGenerator(ConfigurationSection config, NoiseGenerator generator, boolean fastMath) {
+        this(config, generator, fastMath, 0);
+    }
+
+    /**
+     * Creates a noise generator with the settings specified in a config file and
+     * the specified noise generator algorithm.
+     * <p>
+     * If the config sets a culling tolerance, octaves that can only change the
+     * output by a small amount are culled (not generated), and replaced with their
+     * average value. The output range is used to work out how much each octave
+     * can change the output, for example the range of block heights that the
+     * noise will be rescaled to.
+     *
+     * @param config      the configuration section containing the settings for
+     *                    this generator
+     * @param generator   the noise generator algorithm to use, typically Simplex
+     *                    Noise
+     * @param fastMath    whether to use fast approximations of the exponent and
+     *                    sigmoid functions
+     * @param outputRange the size of the range the noise will be rescaled to, or
+     *                    0 to disable octave culling
+     */
+    public YaranNoiseGenerator(ConfigurationSection config, NoiseGenerator generator, boolean fastMath,
+            double outputRange) {
         // Frequencies
-        frequencies = new HashMap<Double, Double>();
-        for (String entry : config.getStringList("frequencies")) {
-            double frequency = Double.parseDouble(entry.split(":")[0]);
-            double size = Double.parseDouble(entry.split(":")[1]);
-            frequencies.put(frequency, size);
-        }
+        OctaveStack configuredOctaves = OctaveStack.fromStrings(config.getStringList("frequencies"));
 
         // Exponent
         exponent = config.getDouble("exponent", 1);
@@ -92,6 +175,17 @@ public class YaranNoiseGenerator {
         // Sigmoid scale
         sigmoidScale = config.getDouble("sigmoid-scale", 0);
 
+        // Sample spacing
+        sampleSpacing = Math.max(config.getInt("sample-spacing", 1), 1);
+
+        // Octave culling
+        double cullingTolerance = config.getDouble("culling-tolerance", 0);
+        boolean[] culled = findCulledOctaves(configuredOctaves, outputRange, cullingTolerance);
+        octaves = configuredOctaves.withoutOctaves(culled);
+        maxCullingError = getCullingError(configuredOctaves, culled, outputRange);
+        cullingSummary = summarizeCulledOctaves(config.getName(), configuredOctaves, culled, outputRange);
+
+        this.fastMath = fastMath;
         this.generator = generator;
     }
 
@@ -104,8 +198,154 @@ public class YaranNoiseGenerator {
      *                  Noise
      */
     public YaranNoiseGenerator(double frequency, double exponent, double sigmoidMultiplier, NoiseGenerator generator) {
-        this(new HashMap<Double, Double>(), exponent, sigmoidMultiplier, generator);
-        frequencies.put(frequency, 1d);
+        this(Collections.singletonMap(frequency, 1d), exponent, sigmoidMultiplier, generator);
+    }
+
+    /**
+     * Calculates the steepest slope of {@link #adjustNoise(double)}, which is the
+     * most that adjusting can magnify a change in raw noise.
+     *
+     * @return the maximum slope, or infinity if the slope is unbounded
+     */
+    private double getMaxAdjustmentSlope() {
+        // The staircase sigmoid jumps between steps, so its slope is unbounded
+        if (sigmoidMultiplier != 0 && sigmoidScale != 0 && sigmoidScale != 1) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // x^e has slope e at x = 1, but is unbounded near 0 when e < 1
+        double slope = exponent >= 1 ? exponent : exponent == 0 ? 0 : Double.POSITIVE_INFINITY;
+
+        // Sigmoid functions are steepest in the middle, with slope steepness / 2
+        if (sigmoidMultiplier != 0) {
+            slope *= Math.abs(sigmoidMultiplier) / 2;
+        }
+
+        return slope;
+    }
+
+    /**
+     * Finds the octaves that can be culled without changing the output by more
+     * than the tolerance. Octaves are culled starting with the smallest, and each
+     * culled octave can move the output by at most half of its maximum
+     * contribution, since it is replaced by its average value.
+     *
+     * @param octaves     the configured octaves
+     * @param outputRange the size of the range the noise will be rescaled to
+     * @param tolerance   the largest total change allowed in the output
+     * @return whether each octave should be culled
+     */
+    private boolean[] findCulledOctaves(OctaveStack octaves, double outputRange, double tolerance) {
+        boolean[] culled = new boolean[octaves.size()];
+        if (tolerance <= 0 || outputRange <= 0) {
+            return culled;
+        }
+
+        double outputPerWeight = getMaxAdjustmentSlope() * outputRange * octaves.getInverseTotalWeight();
+        double totalError = 0;
+        while (true) {
+            // Find the smallest remaining octave, always keeping at least one
+            int smallest = -1;
+            int remaining = 0;
+            for (int i = 0; i < culled.length; i++) {
+                if (!culled[i]) {
+                    remaining++;
+                    if (smallest == -1 || octaves.getWeight(i) < octaves.getWeight(smallest)) {
+                        smallest = i;
+                    }
+                }
+            }
+            if (remaining <= 1) {
+                return culled;
+            }
+
+            double error = outputPerWeight * octaves.getWeight(smallest) / 2;
+            if (!(totalError + error <= tolerance)) {
+                return culled;
+            }
+            totalError += error;
+            culled[smallest] = true;
+        }
+    }
+
+    /**
+     * Calculates the most that the culled octaves can change the output.
+     *
+     * @return the maximum change, or 0 if no octaves were culled
+     */
+    private double getCullingError(OctaveStack octaves, boolean[] culled, double outputRange) {
+        double maxError = 0;
+        double outputPerWeight = getMaxAdjustmentSlope() * outputRange * octaves.getInverseTotalWeight();
+        for (int i = 0; i < culled.length; i++) {
+            if (culled[i]) {
+                maxError += outputPerWeight * octaves.getWeight(i) / 2;
+            }
+        }
+        return maxError;
+    }
+
+    /**
+     * Describes the culled octaves, and the estimated savings, for logging.
+     *
+     * @return the summary, or null if no octaves were culled
+     */
+    private String summarizeCulledOctaves(String name, OctaveStack octaves, boolean[] culled, double outputRange) {
+        StringBuilder culledOctaves = new StringBuilder();
+        int culledCount = 0;
+        for (int i = 0; i < culled.length; i++) {
+            if (culled[i]) {
+                culledOctaves.append(culledCount == 0 ? "" : ", ").append(octaves.getFrequency(i)).append(':')
+                        .append(octaves.getWeight(i));
+                culledCount++;
+            }
+        }
+        if (culledCount == 0) {
+            return null;
+        }
+
+        int samplesPerOctave = (int) Math.ceil(256d / (sampleSpacing * sampleSpacing));
+        return "Culled octaves " + culledOctaves + " from " + name + " (changes output by at most "
+                + String.format("%.2f of %.0f", maxCullingError, outputRange) + "), saving "
+                + culledCount * samplesPerOctave + " of " + culled.length * samplesPerOctave
+                + " noise samples per chunk ("
+                + (100 * culledCount / culled.length) + "%)";
+    }
+
+    /**
+     * @return a description of the octaves that were culled from this generator,
+     *         or null if no octaves were culled
+     */
+    public String getCullingSummary() {
+        return cullingSummary;
+    }
+
+    /**
+     * @return the most that culled octaves can change the output, in the units of
+     *         the output range, or 0 if no octaves were culled
+     */
+    public double getMaxCullingError() {
+        return maxCullingError;
+    }
+
+    /**
+     * @return the noise generator algorithm used by this generator
+     */
+    NoiseGenerator getGenerator() {
+        return generator;
+    }
+
+    /**
+     * @return the frequencies used by this generator, excluding culled octaves
+     */
+    OctaveStack getOctaves() {
+        return octaves;
+    }
+
+    /**
+     * @return the distance between noise samples, in blocks
+     */
+    int getSampleSpacing() {
+        return sampleSpacing;
     }
 
     /**
@@ -115,7 +355,11 @@ public class YaranNoiseGenerator {
      * @param noise the value to adjust, in the range 0..1
      * @return the adjusted value
      */
-    private double adjustNoise(double noise) {
+    double adjustNoise(double noise) {
+        if (fastMath) {
+            return adjustNoiseFast(noise);
+        }
+
         // Raise noise to a power (redistribution)
         noise = Math.pow(noise, exponent);
 
@@ -131,6 +375,71 @@ public class YaranNoiseGenerator {
         return noise;
     }
 
+    /**
+     * Adjusts a noise value in the 0..1 range, like {@link #adjustNoise(double)},
+     * using fast approximations of the exponent and sigmoid functions.
+     *
+     * @param noise the value to adjust, in the range 0..1
+     * @return the adjusted value
+     */
+    private double adjustNoiseFast(double noise) {
+        noise = YaranMath.fastPow(noise, exponent);
+
+        if (sigmoidMultiplier != 0) {
+            if (sigmoidScale != 0 && sigmoidScale != 1) {
+                noise = YaranMath.fastStaircaseSigmoid(noise, sigmoidMultiplier, sigmoidScale);
+            } else {
+                noise = YaranMath.fastSigmoid(noise, sigmoidMultiplier);
+            }
+        }
+
+        return noise;
+    }
+
+    /**
+     * Calculates an upper bound on {@link #getNoise(int, int)} for every column
+     * within a distance of a point, using far fewer samples than generating the
+     * noise.
+     * <p>
+     * Low frequency octaves are sampled once at the point, and can only change by
+     * their steepest slope over the distance. Octaves that could change by their
+     * whole range over the distance aren't sampled, and are assumed to be at their
+     * maximum.
+     *
+     * @param x        the X coordinate of the point
+     * @param z        the Z coordinate of the point
+     * @param distance the distance from the point to the furthest column
+     * @return the upper bound, or infinity if the noise can't be bounded
+     */
+    public double getMaxNoise(double x, double z, double distance) {
+        // Adjusting only keeps the order of noise values if it never decreases
+        if (exponent < 0 || sigmoidMultiplier < 0 || !(generator instanceof YaranSimplexNoiseGenerator)) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        // Interpolated noise is a blend of lattice samples, up to a lattice cell away
+        if (sampleSpacing > 1) {
+            distance += sampleSpacing * Math.sqrt(2);
+        }
+
+        double noise = octaves.getRemovedWeight();
+        for (int octave = 0; octave < octaves.size(); octave++) {
+            double frequency = octaves.getFrequency(octave);
+            // Noise is rescaled from -1..1 to 0..1, which halves the slope
+            double maxChange = YaranSimplexNoiseGenerator.MAX_SLOPE_2D * frequency * distance / 2;
+            double maxLayer = 1;
+            if (maxChange < 1) {
+                double noiseLayer = (generator.noise(x * frequency, z * frequency) + 1) / 2;
+                maxLayer = Math.min(1, noiseLayer + maxChange);
+            }
+            noise += octaves.getWeight(octave) * maxLayer;
+        }
+
+        // Allow for rounding, as generated noise is summed in a different order
+        noise = Math.min(1, noise * octaves.getInverseTotalWeight() + 1e-9);
+        return adjustNoise(noise);
+    }
+
     /**
      * Generates raw/non-adjusted 2D noise for the specified coordinates, in the
      * range 0..1.
@@ -143,34 +452,15 @@ public class YaranNoiseGenerator {
      * @return resulting noise at given location, in the range 0..1
      */
     public double getRawNoise(int x, int z) {
-        double noise = 0;
-
-        // Generate multiple layers of noise, in various frequencies
-        double totalSize = 0;
-        for (Entry<Double, Double> entry : frequencies.entrySet()) {
-            double frequency = entry.getKey();
-            double size = entry.getValue();
-
-            // Generate a single noise layer
-            double noiseLayer = generator.noise(x * frequency, z * frequency);
-
-            // Noise function generates in -1..1 range, need to convert to 0..1 range
-            noiseLayer = (noiseLayer + 1) / 2;
-
-            // Adjust the relative size/weight of this layer
-            noiseLayer = size * noiseLayer;
-
-            // Add to total noise (this will be outside 0..1 range for now)
-            noise += noiseLayer;
-
-            // Calculate the total size, so it can be adjusted back to 0..1 range
-            totalSize += size;
+        // Interpolate between the surrounding samples
+        if (sampleSpacing > 1) {
+            double[] noise = new double[1];
+            fillRawNoise(x, z, 1, 1, noise);
+            return noise[0];
         }
 
-        // Divide noise by sizes, to get back to 0..1 range
-        noise /= totalSize;
-
-        return noise;
+        // Generate multiple layers of noise, in various frequencies, scaled to 0..1
+        return octaves.normalizedSum(generator, x, z);
     }
 
     /**
@@ -191,6 +481,133 @@ public class YaranNoiseGenerator {
         return noise;
     }
 
+    /**
+     * Generates raw/non-adjusted 2D noise for a grid of coordinates, in the range
+     * 0..1. This gives the same values as {@link #getRawNoise(int, int)}, but
+     * the octave setup and coordinate scaling are done once per grid, instead of
+     * once per sample.
+     * <p>
+     * Results are stored in rows of increasing Z, so the noise at (x, z) is
+     * stored at index {@code (z - originZ) * width + (x - originX)}.
+     *
+     * @param originX the lowest X coordinate of the grid
+     * @param originZ the lowest Z coordinate of the grid
+     * @param width   the number of samples along the X axis
+     * @param depth   the number of samples along the Z axis
+     * @param out     the array to store results in, at least width * depth long
+     */
+    public void fillRawNoise(int originX, int originZ, int width, int depth, double[] out) {
+        if (sampleSpacing > 1) {
+            fillInterpolatedRawNoise(originX, originZ, width, depth, out);
+        } else {
+            fillSampledRawNoise(originX, originZ, 1, width, depth, out);
+        }
+    }
+
+    /**
+     * Generates raw/non-adjusted 2D noise for a grid of samples, in the range
+     * 0..1. Samples are taken every spacing blocks, starting at the origin, and
+     * laid out as described in {@link #fillRawNoise(int, int, int, int, double[])}.
+     */
+    private void fillSampledRawNoise(int originX, int originZ, int spacing, int width, int depth, double[] out) {
+        int size = width * depth;
+        double removedWeight = octaves.getRemovedWeight();
+        for (int i = 0; i < size; i++) {
+            out[i] = removedWeight;
+        }
+
+        double[] scaledX = new double[width];
+        for (int octave = 0; octave < octaves.size(); octave++) {
+            double frequency = octaves.getFrequency(octave);
+            double octaveSize = octaves.getWeight(octave);
+
+            // Scale the X coordinates once, every row shares them
+            for (int x = 0; x < width; x++) {
+                scaledX[x] = (originX + x * spacing) * frequency;
+            }
+
+            // Walk each row, adding this layer to the total noise
+            for (int z = 0; z < depth; z++) {
+                double scaledZ = (originZ + z * spacing) * frequency;
+                int row = z * width;
+                for (int x = 0; x < width; x++) {
+                    double noiseLayer = generator.noise(scaledX[x], scaledZ);
+                    noiseLayer = (noiseLayer + 1) / 2;
+                    out[row + x] += octaveSize * noiseLayer;
+                }
+            }
+        }
+
+        // Scale noise by total size, to get back to 0..1 range
+        double inverseTotalSize = octaves.getInverseTotalWeight();
+        for (int i = 0; i < size; i++) {
+            out[i] *= inverseTotalSize;
+        }
+    }
+
+    /**
+     * Generates raw/non-adjusted 2D noise for a grid of coordinates, by sampling
+     * noise on a lattice every {@link #sampleSpacing} blocks, and bilinearly
+     * interpolating between lattice points.
+     * <p>
+     * The lattice is aligned to world coordinates, so neighbouring grids share
+     * the same samples and join seamlessly.
+     */
+    private void fillInterpolatedRawNoise(int originX, int originZ, int width, int depth, double[] out) {
+        int spacing = sampleSpacing;
+
+        // Find the lattice points surrounding the grid
+        int latticeX = Math.floorDiv(originX, spacing);
+        int latticeZ = Math.floorDiv(originZ, spacing);
+        int latticeWidth = Math.floorDiv(originX + width - 1, spacing) - latticeX + 2;
+        int latticeDepth = Math.floorDiv(originZ + depth - 1, spacing) - latticeZ + 2;
+
+        double[] lattice = new double[latticeWidth * latticeDepth];
+        fillSampledRawNoise(latticeX * spacing, latticeZ * spacing, spacing, latticeWidth, latticeDepth, lattice);
+
+        for (int z = 0; z < depth; z++) {
+            int worldZ = originZ + z;
+            int cellZ = Math.floorDiv(worldZ, spacing);
+            double fractionZ = (double) (worldZ - cellZ * spacing) / spacing;
+            int latticeRow = (cellZ - latticeZ) * latticeWidth;
+
+            for (int x = 0; x < width; x++) {
+                int worldX = originX + x;
+                int cellX = Math.floorDiv(worldX, spacing);
+                double fractionX = (double) (worldX - cellX * spacing) / spacing;
+                int corner = latticeRow + cellX - latticeX;
+
+                double north = lattice[corner] + fractionX * (lattice[corner + 1] - lattice[corner]);
+                double south = lattice[corner + latticeWidth]
+                        + fractionX * (lattice[corner + latticeWidth + 1] - lattice[corner + latticeWidth]);
+                out[z * width + x] = north + fractionZ * (south - north);
+            }
+        }
+    }
+
+    /**
+     * Generates 2D noise for a grid of coordinates, in the range 0..1. This gives
+     * the same values as {@link #getNoise(int, int)}, laid out as described in
+     * {@link #fillRawNoise(int, int, int, int, double[])}.
+     * <p>
+     * The noise will be adjusted using the exponent and sigmoid values configured
+     * in this generator.
+     *
+     * @param originX the lowest X coordinate of the grid
+     * @param originZ the lowest Z coordinate of the grid
+     * @param width   the number of samples along the X axis
+     * @param depth   the number of samples along the Z axis
+     * @param out     the array to store results in, at least width * depth long
+     */
+    public void fillNoise(int originX, int originZ, int width, int depth, double[] out) {
+        fillRawNoise(originX, originZ, width, depth, out);
+
+        int size = width * depth;
+        for (int i = 0; i < size; i++) {
+            out[i] = adjustNoise(out[i]);
+        }
+    }
+
     /**
      * Generates 2D noise for the specified coordinates, in the provided range.
      *
@@ -0,0 +1,287 @@
+package com.kylenanakdewa.yaran.generation;
+
+import java.util.Random;
+
+import org.bukkit.World;
+import org.bukkit.util.noise.NoiseGenerator;
+
+/**
+ * Generates 2D and 3D Simplex Noise. This is a drop-in replacement for Bukkit's
+ * SimplexNoiseGenerator, and produces the same noise for the same seed, so
+ * existing worlds will generate identically.
+ * <p>
+ * The permutation and gradient tables are stored in flat primitive arrays, and
+ * the gradient index for each permutation entry is precomputed, so no division
+ * or nested array lookups are needed when generating noise.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class YaranSimplexNoiseGenerator extends NoiseGenerator {
+
+    private static final double SQRT_3 = Math.sqrt(3);
+    private static final double F2 = 0.5 * (SQRT_3 - 1);
+    private static final double G2 = (3 - SQRT_3) / 6;
+    private static final double G22 = G2 * 2.0 - 1;
+    private static final double F3 = 1.0 / 3.0;
+    private static final double G3 = 1.0 / 6.0;
+    private static final double G33 = G3 * 3.0 - 1.0;
+
+    /**
+     * An upper bound on the steepest slope of 2D noise, in noise units per unit of
+     * input. Each of the 3 corners adds 70 * t^4 * (g . d), where t = 0.5 - |d|^2
+     * and |g| is at most sqrt(2). The slope of one corner is at most
+     * |g| * (t^4 + 8 * t^3 * |d|^2), which peaks at |d|^2 = 1/14.
+     */
+    public static final double MAX_SLOPE_2D = 3 * 70 * Math.sqrt(2)
+            * (Math.pow(3.0 / 7, 4) + 8 * Math.pow(3.0 / 7, 3) / 14);
+
+    /**
+     * The 12 gradient vectors, stored as consecutive X, Y, Z values.
+     */
+    private static final short[] GRADIENTS = { 1, 1, 0, -1, 1, 0, 1, -1, 0, -1, -1, 0, 1, 0, 1, -1, 0, 1, 1, 0, -1,
+            -1, 0, -1, 0, 1, 1, 0, -1, 1, 0, 1, -1, 0, -1, -1 };
+
+    /**
+     * The shuffled permutation table, repeated twice to avoid wrapping indices.
+     */
+    private final int[] permutation = new int[512];
+
+    /**
+     * The offset into {@link #GRADIENTS} for each entry in the permutation table.
+     */
+    private final short[] gradientOffset = new short[512];
+
+    /**
+     * Creates a noise generator using the seed of the specified world.
+     *
+     * @param world the world to use the seed of
+     */
+    public YaranSimplexNoiseGenerator(World world) {
+        this(new Random(world.getSeed()));
+    }
+
+    /**
+     * Creates a noise generator using the specified seed.
+     *
+     * @param seed the seed to use
+     */
+    public YaranSimplexNoiseGenerator(long seed) {
+        this(new Random(seed));
+    }
+
+    /**
+     * Creates a noise generator using the specified random number generator. This
+     * consumes the same random values as Bukkit's SimplexNoiseGenerator, so
+     * octaves sharing a random number generator will also match.
+     *
+     * @param rand the random number generator to use
+     */
+    public YaranSimplexNoiseGenerator(Random rand) {
+        offsetX = rand.nextDouble() * 256;
+        offsetY = rand.nextDouble() * 256;
+        offsetZ = rand.nextDouble() * 256;
+
+        for (int i = 0; i < 256; i++) {
+            permutation[i] = rand.nextInt(256);
+        }
+
+        for (int i = 0; i < 256; i++) {
+            int pos = rand.nextInt(256 - i) + i;
+            int old = permutation[i];
+
+            permutation[i] = permutation[pos];
+            permutation[pos] = old;
+            permutation[i + 256] = permutation[i];
+        }
+
+        // Bukkit's generator uses one more value for its 4D offset
+        rand.nextDouble();
+
+        for (int i = 0; i < 512; i++) {
+            perm[i] = permutation[i];
+            gradientOffset[i] = (short) (permutation[i] % 12 * 3);
+        }
+    }
+
+    @Override
+    public double noise(double xin, double yin) {
+        xin += offsetX;
+        yin += offsetY;
+
+        final int[] p = permutation;
+        final short[] g = gradientOffset;
+
+        // Skew the input space to determine which simplex cell we're in
+        double s = (xin + yin) * F2;
+        int i = floor(xin + s);
+        int j = floor(yin + s);
+        double t = (i + j) * G2;
+        double x0 = xin - (i - t);
+        double y0 = yin - (j - t);
+
+        // Determine which simplex we are in
+        int i1, j1;
+        if (x0 > y0) {
+            i1 = 1;
+            j1 = 0;
+        } else {
+            i1 = 0;
+            j1 = 1;
+        }
+
+        double x1 = x0 - i1 + G2;
+        double y1 = y0 - j1 + G2;
+        double x2 = x0 + G22;
+        double y2 = y0 + G22;
+
+        int ii = i & 255;
+        int jj = j & 255;
+
+        // Calculate the contribution from the three corners
+        double n = 0;
+
+        double t0 = 0.5 - x0 * x0 - y0 * y0;
+        if (t0 >= 0) {
+            int gi = g[ii + p[jj]];
+            t0 *= t0;
+            n += t0 * t0 * (GRADIENTS[gi] * x0 + GRADIENTS[gi + 1] * y0);
+        }
+
+        double t1 = 0.5 - x1 * x1 - y1 * y1;
+        if (t1 >= 0) {
+            int gi = g[ii + i1 + p[jj + j1]];
+            t1 *= t1;
+            n += t1 * t1 * (GRADIENTS[gi] * x1 + GRADIENTS[gi + 1] * y1);
+        }
+
+        double t2 = 0.5 - x2 * x2 - y2 * y2;
+        if (t2 >= 0) {
+            int gi = g[ii + 1 + p[jj + 1]];
+            t2 *= t2;
+            n += t2 * t2 * (GRADIENTS[gi] * x2 + GRADIENTS[gi + 1] * y2);
+        }
+
+        // Scale the result to the -1..1 range
+        return 70.0 * n;
+    }
+
+    @Override
+    public double noise(double xin, double yin, double zin) {
+        xin += offsetX;
+        yin += offsetY;
+        zin += offsetZ;
+
+        final int[] p = permutation;
+        final short[] g = gradientOffset;
+
+        // Skew the input space to determine which simplex cell we're in
+        double s = (xin + yin + zin) * F3;
+        int i = floor(xin + s);
+        int j = floor(yin + s);
+        int k = floor(zin + s);
+        double t = (i + j + k) * G3;
+        double x0 = xin - (i - t);
+        double y0 = yin - (j - t);
+        double z0 = zin - (k - t);
+
+        // Determine which simplex we are in
+        int i1, j1, k1;
+        int i2, j2, k2;
+        if (x0 >= y0) {
+            if (y0 >= z0) {
+                i1 = 1;
+                j1 = 0;
+                k1 = 0;
+                i2 = 1;
+                j2 = 1;
+                k2 = 0;
+            } else if (x0 >= z0) {
+                i1 = 1;
+                j1 = 0;
+                k1 = 0;
+                i2 = 1;
+                j2 = 0;
+                k2 = 1;
+            } else {
+                i1 = 0;
+                j1 = 0;
+                k1 = 1;
+                i2 = 1;
+                j2 = 0;
+                k2 = 1;
+            }
+        } else {
+            if (y0 < z0) {
+                i1 = 0;
+                j1 = 0;
+                k1 = 1;
+                i2 = 0;
+                j2 = 1;
+                k2 = 1;
+            } else if (x0 < z0) {
+                i1 = 0;
+                j1 = 1;
+                k1 = 0;
+                i2 = 0;
+                j2 = 1;
+                k2 = 1;
+            } else {
+                i1 = 0;
+                j1 = 1;
+                k1 = 0;
+                i2 = 1;
+                j2 = 1;
+                k2 = 0;
+            }
+        }
+
+        double x1 = x0 - i1 + G3;
+        double y1 = y0 - j1 + G3;
+        double z1 = z0 - k1 + G3;
+        double x2 = x0 - i2 + 2.0 * G3;
+        double y2 = y0 - j2 + 2.0 * G3;
+        double z2 = z0 - k2 + 2.0 * G3;
+        double x3 = x0 + G33;
+        double y3 = y0 + G33;
+        double z3 = z0 + G33;
+
+        int ii = i & 255;
+        int jj = j & 255;
+        int kk = k & 255;
+
+        // Calculate the contribution from the four corners
+        double n = 0;
+
+        double t0 = 0.6 - x0 * x0 - y0 * y0 - z0 * z0;
+        if (t0 >= 0) {
+            int gi = g[ii + p[jj + p[kk]]];
+            t0 *= t0;
+            n += t0 * t0 * (GRADIENTS[gi] * x0 + GRADIENTS[gi + 1] * y0 + GRADIENTS[gi + 2] * z0);
+        }
+
+        double t1 = 0.6 - x1 * x1 - y1 * y1 - z1 * z1;
+        if (t1 >= 0) {
+            int gi = g[ii + i1 + p[jj + j1 + p[kk + k1]]];
+            t1 *= t1;
+            n += t1 * t1 * (GRADIENTS[gi] * x1 + GRADIENTS[gi + 1] * y1 + GRADIENTS[gi + 2] * z1);
+        }
+
+        double t2 = 0.6 - x2 * x2 - y2 * y2 - z2 * z2;
+        if (t2 >= 0) {
+            int gi = g[ii + i2 + p[jj + j2 + p[kk + k2]]];
+            t2 *= t2;
+            n += t2 * t2 * (GRADIENTS[gi] * x2 + GRADIENTS[gi + 1] * y2 + GRADIENTS[gi + 2] * z2);
+        }
+
+        double t3 = 0.6 - x3 * x3 - y3 * y3 - z3 * z3;
+        if (t3 >= 0) {
+            int gi = g[ii + 1 + p[jj + 1 + p[kk + 1]]];
+            t3 *= t3;
+            n += t3 * t3 * (GRADIENTS[gi] * x3 + GRADIENTS[gi + 1] * y3 + GRADIENTS[gi + 2] * z3);
+        }
+
+        // Scale the result to stay just inside the -1..1 range
+        return 32.0 * n;
+    }
+
+}
@@ -0,0 +1,201 @@
+package com.kylenanakdewa.yaran.generators;
+
+import org.bukkit.Bukkit;
+import org.bukkit.block.Biome;
+import org.bukkit.generator.ChunkGenerator.BiomeGrid;
+
+/**
+ * Collects the biome of each column in a chunk, then writes them to the chunk's
+ * biome grid once per storage cell.
+ * <p>
+ * Biomes are stored in cells of 4x4x4 blocks, so setting a biome for every
+ * block only keeps the last biome set in each cell. Instead, one biome is
+ * chosen for each 4x4 column of cells, using a {@link Sampling} policy, and
+ * written to each cell exactly once.
+ * <p>
+ * A collector is used by a single thread, for a single chunk.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class BiomeCells {
+
+    /** The width and depth of a biome storage cell, in blocks. */
+    private static final int CELL_SIZE = 4;
+    /** The number of cells along the X and Z axes of a chunk. */
+    private static final int CELLS = 16 / CELL_SIZE;
+
+    /**
+     * How the biome of a cell is chosen from the biomes of its 16 columns.
+     * Columns without a biome are ignored.
+     */
+    public enum Sampling {
+        /**
+         * The column with the highest X and Z values. This is the same biome that
+         * setting every column in order would leave in the cell.
+         */
+        LEGACY,
+        /**
+         * The column at X 2, Z 2 in the cell, or the most common biome if that column
+         * has no biome.
+         */
+        CENTRE,
+        /**
+         * The most common biome in the cell. Ties go to the biome found first.
+         */
+        MAJORITY;
+
+        /**
+         * Gets a sampling policy from its name in the config. If the name is not
+         * valid, a warning is logged, and the legacy policy is used.
+         *
+         * @param name the name of the policy, in any case, or null for the default
+         */
+        public static Sampling fromConfig(String name) {
+            if (name == null) {
+                return LEGACY;
+            }
+            try {
+                return valueOf(name.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                Bukkit.getLogger().warning("[Yaran] Unknown biome sampling " + name + ", using legacy.");
+                return LEGACY;
+            }
+        }
+    }
+
+    /** The biome of each column, or null if none is set. */
+    private final Biome[] columnBiomes = new Biome[16 * 16];
+
+    /** The biome most recently set in each cell, or null if none is set. */
+    private final Biome[] lastCellBiomes = new Biome[CELLS * CELLS];
+
+    /**
+     * Sets the biome of a column.
+     *
+     * @param x     the X coordinate within the chunk, 0-15
+     * @param z     the Z coordinate within the chunk, 0-15
+     * @param biome the biome of the column
+     */
+    public void setBiome(int x, int z, Biome biome) {
+        columnBiomes[z * 16 + x] = biome;
+        lastCellBiomes[(z / CELL_SIZE) * CELLS + x / CELL_SIZE] = biome;
+    }
+
+    /**
+     * Gets the biome of a column.
+     *
+     * @param x the X coordinate within the chunk, 0-15
+     * @param z the Z coordinate within the chunk, 0-15
+     * @return the biome of the column, or null if none is set
+     */
+    public Biome getBiome(int x, int z) {
+        return columnBiomes[z * 16 + x];
+    }
+
+    /**
+     * Gets the biome most recently set in a column's cell, by any of its columns.
+     * This is the biome that setting every block of each column would have left
+     * in the cell so far.
+     *
+     * @param x the X coordinate within the chunk, 0-15
+     * @param z the Z coordinate within the chunk, 0-15
+     * @return the last biome set in the cell, or null if none is set
+     */
+    public Biome getLastCellBiome(int x, int z) {
+        return lastCellBiomes[(z / CELL_SIZE) * CELLS + x / CELL_SIZE];
+    }
+
+    /**
+     * Writes the chosen biome of each cell to a biome grid, for every cell from
+     * the bottom to the top of the chunk. Cells where no column has a biome are
+     * not written.
+     *
+     * @param grid      the biome grid to write to
+     * @param sampling  how to choose the biome of each cell
+     * @param maxHeight the height of the chunk, in blocks
+     * @return the number of cells written
+     */
+    public int apply(BiomeGrid grid, Sampling sampling, int maxHeight) {
+        int written = 0;
+        for (int cellX = 0; cellX < CELLS; cellX++) {
+            for (int cellZ = 0; cellZ < CELLS; cellZ++) {
+                Biome biome = getCellBiome(cellX * CELL_SIZE, cellZ * CELL_SIZE, sampling);
+                if (biome == null) {
+                    continue;
+                }
+                for (int y = 0; y < maxHeight; y += CELL_SIZE) {
+                    grid.setBiome(cellX * CELL_SIZE, y, cellZ * CELL_SIZE, biome);
+                    written++;
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Chooses the biome of a cell.
+     *
+     * @param minX the lowest X coordinate of the cell within the chunk
+     * @param minZ the lowest Z coordinate of the cell within the chunk
+     * @return the biome of the cell, or null if no column in the cell has a biome
+     */
+    private Biome getCellBiome(int minX, int minZ, Sampling sampling) {
+        switch (sampling) {
+            case CENTRE:
+                Biome centre = getBiome(minX + 2, minZ + 2);
+                return centre != null ? centre : getMostCommonBiome(minX, minZ);
+
+            case MAJORITY:
+                return getMostCommonBiome(minX, minZ);
+
+            default:
+                // Columns were set with X in the outer loop, so the last one set has the
+                // highest X, then the highest Z
+                for (int x = minX + CELL_SIZE - 1; x >= minX; x--) {
+                    for (int z = minZ + CELL_SIZE - 1; z >= minZ; z--) {
+                        Biome biome = getBiome(x, z);
+                        if (biome != null) {
+                            return biome;
+                        }
+                    }
+                }
+                return null;
+        }
+    }
+
+    /**
+     * @return the most common biome in a cell, or null if no column in the cell
+     *         has a biome
+     */
+    private Biome getMostCommonBiome(int minX, int minZ) {
+        Biome mostCommon = null;
+        int mostCommonCount = 0;
+        for (int x = minX; x < minX + CELL_SIZE; x++) {
+            for (int z = minZ; z < minZ + CELL_SIZE; z++) {
+                Biome biome = getBiome(x, z);
+                if (biome == null || biome == mostCommon) {
+                    continue;
+                }
+                int count = countBiome(minX, minZ, biome);
+                if (count > mostCommonCount) {
+                    mostCommon = biome;
+                    mostCommonCount = count;
+                }
+            }
+        }
+        return mostCommon;
+    }
+
+    private int countBiome(int minX, int minZ, Biome biome) {
+        int count = 0;
+        for (int x = minX; x < minX + CELL_SIZE; x++) {
+            for (int z = minZ; z < minZ + CELL_SIZE; z++) {
+                if (getBiome(x, z) == biome) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,248 @@
+package com.kylenanakdewa.yaran.generators;
+
+import org.bukkit.Material;
+import org.bukkit.generator.ChunkGenerator.ChunkData;
+
+/**
+ * Collects the blocks of a chunk as runs of the same material in each column,
+ * then places them in the chunk with as few calls as possible.
+ * <p>
+ * Runs are placed in the same way as individual blocks would be: later runs
+ * replace any blocks they overlap, and air removes blocks. When the chunk is
+ * built, identical runs in neighbouring columns are merged into boxes, and each
+ * box is placed with a single {@link ChunkData#setRegion} call.
+ * <p>
+ * A builder is used by a single thread, for a single chunk.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class ColumnBuilder {
+
+    /** The number of runs each column can hold before it needs to grow. */
+    private static final int INITIAL_RUNS = 8;
+
+    /** The lowest Y value of each run in each column, inclusive, lowest first. */
+    private final int[][] starts = new int[16 * 16][INITIAL_RUNS];
+    /** The highest Y value of each run in each column, exclusive. */
+    private final int[][] ends = new int[16 * 16][INITIAL_RUNS];
+    /** The material of each run in each column. */
+    private final Material[][] materials = new Material[16 * 16][INITIAL_RUNS];
+    /** The number of runs in each column. */
+    private final int[] runCounts = new int[16 * 16];
+
+    /** Scratch space for rebuilding a column, swapped with the column's arrays. */
+    private int[] nextStarts = new int[INITIAL_RUNS];
+    private int[] nextEnds = new int[INITIAL_RUNS];
+    private Material[] nextMaterials = new Material[INITIAL_RUNS];
+
+    /**
+     * Sets a block, replacing any block already there.
+     *
+     * @param x        the X coordinate within the chunk, 0-15
+     * @param y        the Y coordinate
+     * @param z        the Z coordinate within the chunk, 0-15
+     * @param material the material to place, or air to remove the block
+     */
+    public void setBlock(int x, int y, int z, Material material) {
+        setRun(x, z, y, y + 1, material);
+    }
+
+    /**
+     * Sets a run of blocks in a column, replacing any blocks already there.
+     *
+     * @param x        the X coordinate within the chunk, 0-15
+     * @param z        the Z coordinate within the chunk, 0-15
+     * @param yMin     the lowest Y value of the run, inclusive
+     * @param yMax     the highest Y value of the run, exclusive
+     * @param material the material to place, or air to remove the blocks
+     */
+    public void setRun(int x, int z, int yMin, int yMax, Material material) {
+        if (yMin >= yMax) {
+            return;
+        }
+        int column = z * 16 + x;
+        int[] columnStarts = starts[column];
+        int[] columnEnds = ends[column];
+        Material[] columnMaterials = materials[column];
+        int count = runCounts[column];
+
+        // Rebuild the column, trimming runs that overlap the new run
+        ensureScratchCapacity(count + 2);
+        int next = 0;
+        boolean added = material.isAir();
+        for (int run = 0; run < count; run++) {
+            int start = columnStarts[run];
+            int end = columnEnds[run];
+            Material runMaterial = columnMaterials[run];
+
+            // The part below the new run
+            if (start < yMin) {
+                next = appendRun(next, start, Math.min(end, yMin), runMaterial);
+            }
+            // The new run, once all runs below it are added
+            if (!added && end > yMin) {
+                next = appendRun(next, yMin, yMax, material);
+                added = true;
+            }
+            // The part above the new run
+            if (end > yMax) {
+                next = appendRun(next, Math.max(start, yMax), end, runMaterial);
+            }
+        }
+        if (!added) {
+            next = appendRun(next, yMin, yMax, material);
+        }
+
+        // Swap the rebuilt column in, and keep the old arrays as scratch space
+        starts[column] = nextStarts;
+        ends[column] = nextEnds;
+        materials[column] = nextMaterials;
+        runCounts[column] = next;
+        nextStarts = columnStarts;
+        nextEnds = columnEnds;
+        nextMaterials = columnMaterials;
+    }
+
+    /**
+     * Adds a run to the end of the scratch column, joining it to the previous run
+     * if they touch and have the same material.
+     *
+     * @return the new number of runs in the scratch column
+     */
+    private int appendRun(int count, int start, int end, Material material) {
+        if (count > 0 && nextEnds[count - 1] == start && nextMaterials[count - 1] == material) {
+            nextEnds[count - 1] = end;
+            return count;
+        }
+        nextStarts[count] = start;
+        nextEnds[count] = end;
+        nextMaterials[count] = material;
+        return count + 1;
+    }
+
+    private void ensureScratchCapacity(int capacity) {
+        if (nextStarts.length < capacity) {
+            int length = Math.max(capacity, nextStarts.length * 2);
+            nextStarts = new int[length];
+            nextEnds = new int[length];
+            nextMaterials = new Material[length];
+        }
+    }
+
+    /**
+     * Gets the material of a block that has been set.
+     *
+     * @param x the X coordinate within the chunk, 0-15
+     * @param y the Y coordinate
+     * @param z the Z coordinate within the chunk, 0-15
+     * @return the material of the block, or air if no block has been set
+     */
+    public Material getType(int x, int y, int z) {
+        int column = z * 16 + x;
+        for (int run = 0; run < runCounts[column]; run++) {
+            if (y < starts[column][run]) {
+                break;
+            }
+            if (y < ends[column][run]) {
+                return materials[column][run];
+            }
+        }
+        return Material.AIR;
+    }
+
+    /**
+     * Places every run in a chunk. Identical runs in neighbouring columns are
+     * merged into boxes, first along the X axis, then along the Z axis.
+     *
+     * @param chunk the chunk to place blocks in, which must be empty
+     * @return the number of boxes placed
+     */
+    public int build(ChunkData chunk) {
+        boolean[][] placed = new boolean[16 * 16][];
+        for (int column = 0; column < placed.length; column++) {
+            placed[column] = new boolean[runCounts[column]];
+        }
+
+        int boxes = 0;
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                int column = z * 16 + x;
+                for (int run = 0; run < runCounts[column]; run++) {
+                    if (placed[column][run]) {
+                        continue;
+                    }
+                    int start = starts[column][run];
+                    int end = ends[column][run];
+                    Material material = materials[column][run];
+                    placed[column][run] = true;
+
+                    // Extend the box along the X axis
+                    int maxX = x + 1;
+                    while (maxX < 16 && claimRun(placed, z * 16 + maxX, start, end, material)) {
+                        maxX++;
+                    }
+
+                    // Extend the box along the Z axis, while every column in the row matches
+                    int maxZ = z + 1;
+                    while (maxZ < 16 && isRowMatching(placed, x, maxX, maxZ, start, end, material)) {
+                        for (int rowX = x; rowX < maxX; rowX++) {
+                            claimRun(placed, maxZ * 16 + rowX, start, end, material);
+                        }
+                        maxZ++;
+                    }
+
+                    chunk.setRegion(x, start, z, maxX, end, maxZ, material);
+                    boxes++;
+                }
+            }
+        }
+        return boxes;
+    }
+
+    /**
+     * Marks a matching run in a column as placed.
+     *
+     * @return false if the column has no matching run that hasn't been placed
+     */
+    private boolean claimRun(boolean[][] placed, int column, int start, int end, Material material) {
+        int run = findRun(placed, column, start, end, material);
+        if (run < 0) {
+            return false;
+        }
+        placed[column][run] = true;
+        return true;
+    }
+
+    /**
+     * @return whether every column in a row has a matching run that hasn't been
+     *         placed
+     */
+    private boolean isRowMatching(boolean[][] placed, int minX, int maxX, int z, int start, int end,
+            Material material) {
+        for (int x = minX; x < maxX; x++) {
+            if (findRun(placed, z * 16 + x, start, end, material) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the matching run in a column that hasn't been placed,
+     *         or -1 if there isn't one
+     */
+    private int findRun(boolean[][] placed, int column, int start, int end, Material material) {
+        for (int run = 0; run < runCounts[column]; run++) {
+            if (starts[column][run] == start) {
+                return ends[column][run] == end && materials[column][run] == material && !placed[column][run]
+                        ? run
+                        : -1;
+            }
+            if (starts[column][run] > start) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -21,4 +21,9 @@ public class MinimalChunkGenerator extends ChunkGenerator {
         return createChunkData(world);
     }
 
+    @Override
+    public boolean isParallelCapable() {
+        return true;
+    }
+
 }
\ No newline at end of file
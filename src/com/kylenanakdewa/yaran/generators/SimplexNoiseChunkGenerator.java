@@ -1,12 +1,19 @@
 package com.kylenanakdewa.yaran.generators;
 
 import java.io.File;
-import java.util.List;
+import java.io.IOException;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.kylenanakdewa.yaran.generation.CutoutDensityGrid;
+import com.kylenanakdewa.yaran.generation.OctaveStack;
+import com.kylenanakdewa.yaran.generation.YaranSimplexNoiseGenerator;
+import com.kylenanakdewa.yaran.utils.PositionalRandom;
 import com.kylenanakdewa.yaran.utils.imagemaps.BiomeImageMap;
 import com.kylenanakdewa.yaran.utils.imagemaps.DyeColorImageMap;
 import com.kylenanakdewa.yaran.utils.imagemaps.GreyscaleImageMap;
+import com.kylenanakdewa.yaran.utils.imagemaps.PackedImageMap;
 
 import org.bukkit.Bukkit;
 import org.bukkit.DyeColor;
@@ -17,7 +24,6 @@ import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.generator.ChunkGenerator;
 import org.bukkit.material.Wool;
 import org.bukkit.plugin.Plugin;
-import org.bukkit.util.noise.SimplexNoiseGenerator;
 
 /**
  * A chunk generator that uses the SimplexNoiseGenerator. The parameters for the
@@ -30,104 +36,211 @@ import org.bukkit.util.noise.SimplexNoiseGenerator;
 public class SimplexNoiseChunkGenerator extends ChunkGenerator {
 
     /**
-     * The frequencies to use. At least one is required. More will increase terrain
-     * variation.
+     * The current settings. When the plugin is reloaded, the settings are replaced
+     * as a whole, so each chunk is generated using one consistent set of settings.
      */
-    protected static List<Double> frequencies;
-    /**
-     * The size of each frequency. Must be the same number of values as the list of
-     * frequencies.
-     */
-    protected static List<Double> sizes;
-    /**
-     * The exponent to raise noise to.
-     */
-    protected static double exponent;
+    protected static volatile Settings settings;
 
     /**
-     * How far the terrain can be above the minimum height * total sizes * 4.
-     */
-    protected static int finalAmplitude;
-    /**
-     * The minimum terrain height. All terrain will be generated at or above this
-     * level.
+     * The noise generator for each world seed, created when a world first
+     * generates a chunk, and shared by every chunk. Cleared when the settings are
+     * reloaded, so worlds that are no longer used don't keep their generators.
      */
-    protected static int minimumHeight;
+    private static final Map<Long, YaranSimplexNoiseGenerator> generators = new ConcurrentHashMap<>();
 
-    /**
-     * Whether to perform 3D cutouts, creating overhangs and large caves.
-     */
-    protected static boolean cutouts;
-    /**
-     * Threshold for cutting out terrain to create overhangs. Higher numbers = less
-     * cutouts.
-     */
-    protected static double cutoutThreshold;
-    /**
-     * The frequencies to use. At least one is required. More will increase terrain
-     * variation.
-     */
-    protected static List<Double> cutoutFrequencies;
-    /**
-     * The size of each frequency. Must be the same number of values as the list of
-     * frequencies.
-     */
-    protected static List<Double> cutoutSizes;
+    /** Salts for each random decision about surface blocks, see {@link PositionalRandom}. */
+    private static final int SALT_TOP_GRAVEL = 1;
+    private static final int SALT_SURFACE_DEPTH = 2;
+    private static final int SALT_ROCKY_SURFACE = 3;
+    private static final int SALT_SURFACE_GRAVEL = 4;
+
+    public static void setParameters(ConfigurationSection configSection) {
+        settings = new Settings(configSection.getConfigurationSection("simplex-noise"));
+        generators.clear();
+    }
 
     /**
-     * The image map to use for altitude changes.
-     */
-    protected static GreyscaleImageMap altitudeMap;
-    /**
-     * The image map to use for minimum height changes.
-     */
-    protected static GreyscaleImageMap minHeightMap;
-    /**
-     * The image map to use for biomes.
+     * Packs the current image maps into one packed map file, so every map can be
+     * read with a single lookup per column. Set image-maps.packed in the config
+     * to the file to use it.
+     *
+     * @param rasterFile the packed map file to create
+     * @return the number of maps packed, or 0 if no separate image maps are
+     *         loaded
+     * @throws IOException if the maps can't be packed
      */
-    protected static BiomeImageMap biomeMap;
+    public static int packImageMaps(File rasterFile) throws IOException {
+        Settings settings = SimplexNoiseChunkGenerator.settings;
+        if (settings.altitudeMap == null && settings.minHeightMap == null && settings.biomeMap == null
+                && settings.woolMap == null) {
+            return 0;
+        }
+        return PackedImageMap.pack(rasterFile, settings.altitudeMap, settings.minHeightMap, settings.biomeMap,
+                settings.woolMap);
+    }
+
     /**
-     * The image map to use for wool colors.
+     * The settings for the generator. Settings are never modified after they are
+     * loaded, so they can be used by multiple threads.
      */
-    protected static DyeColorImageMap woolMap;
-
-    public static void setParameters(ConfigurationSection configSection) {
-        configSection = configSection.getConfigurationSection("simplex-noise");
-
-        frequencies = configSection.getDoubleList("frequencies");
-        sizes = configSection.getDoubleList("sizes");
-        exponent = configSection.getDouble("exponent");
-
-        finalAmplitude = configSection.getInt("amplitude");
-        minimumHeight = configSection.getInt("minimum-height");
-
-        cutouts = configSection.getBoolean("cutouts");
-        cutoutThreshold = configSection.getDouble("cutout-threshold");
-        cutoutFrequencies = configSection.getDoubleList("cutout-frequencies");
-        cutoutSizes = configSection.getDoubleList("cutout-sizes");
-
-        if (configSection.contains("image-maps", true)) {
-            Plugin plugin = Bukkit.getPluginManager().getPlugin("Yaran");
-
-            int xOffset = configSection.getInt("image-maps.offset.x", 0);
-            int zOffset = configSection.getInt("image-maps.offset.z", 0);
-
-            if (configSection.contains("image-maps.amplitude", true)) {
-                String fileName = configSection.getString("image-maps.amplitude", "map_amplitude.png");
-                altitudeMap = new GreyscaleImageMap(new File(plugin.getDataFolder(), fileName), xOffset, zOffset);
-            }
-            if (configSection.contains("image-maps.minimum-height", true)) {
-                String fileName = configSection.getString("image-maps.minimum-height", "map_height.png");
-                minHeightMap = new GreyscaleImageMap(new File(plugin.getDataFolder(), fileName), xOffset, zOffset);
+    protected static final class Settings {
+
+        /**
+         * The frequencies to use, and their sizes. At least one is required. More will
+         * increase terrain variation.
+         */
+        protected final OctaveStack octaves;
+        /**
+         * The exponent to raise noise to.
+         */
+        protected final double exponent;
+
+        /**
+         * How far the terrain can be above the minimum height * total sizes * 4.
+         */
+        protected final int finalAmplitude;
+        /**
+         * The minimum terrain height. All terrain will be generated at or above this
+         * level.
+         */
+        protected final int minimumHeight;
+
+        /**
+         * Whether to perform 3D cutouts, creating overhangs and large caves.
+         */
+        protected final boolean cutouts;
+        /**
+         * Threshold for cutting out terrain to create overhangs. Higher numbers = less
+         * cutouts.
+         */
+        protected final double cutoutThreshold;
+        /**
+         * The frequencies to use for cutouts, and their sizes. At least one is
+         * required. More will increase terrain variation.
+         */
+        protected final OctaveStack cutoutOctaves;
+        /**
+         * Whether to sample cutout noise on a coarse grid, and interpolate in between,
+         * instead of generating it at every block. The grid is only used if it is fine
+         * enough to represent every cutout frequency.
+         */
+        protected final boolean cutoutGrid;
+        /**
+         * The distance between cutout grid samples along the X and Z axes, and along
+         * the Y axis, in blocks.
+         */
+        protected final int cutoutGridHorizontalSpacing;
+        protected final int cutoutGridVerticalSpacing;
+        /**
+         * The cutout density grid for each world seed, created when a world first
+         * generates a chunk, and shared by every chunk.
+         */
+        private final Map<Long, CutoutDensityGrid> cutoutGrids = new ConcurrentHashMap<>();
+
+        /**
+         * How the biome of each 4x4x4 biome cell is chosen from its columns.
+         */
+        protected final BiomeCells.Sampling biomeSampling;
+
+        /**
+         * The image map to use for altitude changes.
+         */
+        protected final GreyscaleImageMap altitudeMap;
+        /**
+         * The image map to use for minimum height changes.
+         */
+        protected final GreyscaleImageMap minHeightMap;
+        /**
+         * The image map to use for biomes.
+         */
+        protected final BiomeImageMap biomeMap;
+        /**
+         * The image map to use for wool colors.
+         */
+        protected final DyeColorImageMap woolMap;
+        /**
+         * The packed map to use instead of the separate image maps, or null to use
+         * the separate maps.
+         */
+        protected final PackedImageMap packedMap;
+
+        private Settings(ConfigurationSection configSection) {
+            octaves = new OctaveStack(configSection.getDoubleList("frequencies"),
+                    configSection.getDoubleList("sizes"));
+            exponent = configSection.getDouble("exponent");
+
+            finalAmplitude = configSection.getInt("amplitude");
+            minimumHeight = configSection.getInt("minimum-height");
+
+            cutouts = configSection.getBoolean("cutouts");
+            cutoutThreshold = configSection.getDouble("cutout-threshold");
+            cutoutOctaves = cutouts ? new OctaveStack(configSection.getDoubleList("cutout-frequencies"),
+                    configSection.getDoubleList("cutout-sizes")) : null;
+            boolean cutoutGrid = cutouts && configSection.getBoolean("cutout-grid.enabled", false);
+            cutoutGridHorizontalSpacing = configSection.getInt("cutout-grid.horizontal-spacing", 4);
+            cutoutGridVerticalSpacing = configSection.getInt("cutout-grid.vertical-spacing", 8);
+            if (cutoutGrid && (cutoutGridHorizontalSpacing < 1 || cutoutGridVerticalSpacing < 1)) {
+                throw new IllegalArgumentException("Cutout grid spacing must be at least 1.");
             }
-            if (configSection.contains("image-maps.wool", true)) {
-                String fileName = configSection.getString("image-maps.wool", "map_wool.png");
-                woolMap = new DyeColorImageMap(new File(plugin.getDataFolder(), fileName), xOffset, zOffset);
+            if (cutoutGrid) {
+                // Noise with a frequency of half a sample or more can't be interpolated from the grid
+                double maxFrequency = 0;
+                for (int octave = 0; octave < cutoutOctaves.size(); octave++) {
+                    maxFrequency = Math.max(maxFrequency, Math.abs(cutoutOctaves.getFrequency(octave)));
+                }
+                int spacing = Math.max(cutoutGridHorizontalSpacing, cutoutGridVerticalSpacing);
+                if (spacing * maxFrequency >= 0.5) {
+                    Bukkit.getLogger().warning("[Yaran] The cutout grid spacing of " + spacing
+                            + " blocks is too coarse for cutout frequency " + maxFrequency
+                            + " (spacing x frequency must be below 0.5), so cutout noise will be generated at "
+                            + "every block instead.");
+                    cutoutGrid = false;
+                }
             }
-            if (configSection.contains("image-maps.biomes", true)) {
-                String fileName = configSection.getString("image-maps.biomes", "map_biomes.png");
-                biomeMap = new BiomeImageMap(new File(plugin.getDataFolder(), fileName), xOffset, zOffset);
+            this.cutoutGrid = cutoutGrid;
+
+            biomeSampling = BiomeCells.Sampling.fromConfig(configSection.getString("biome-sampling"));
+
+            GreyscaleImageMap altitudeMap = null;
+            GreyscaleImageMap minHeightMap = null;
+            DyeColorImageMap woolMap = null;
+            BiomeImageMap biomeMap = null;
+            PackedImageMap packedMap = null;
+            if (configSection.contains("image-maps", true)) {
+                Plugin plugin = Bukkit.getPluginManager().getPlugin("Yaran");
+
+                int xOffset = configSection.getInt("image-maps.offset.x", 0);
+                int zOffset = configSection.getInt("image-maps.offset.z", 0);
+
+                // A packed map replaces the separate maps, so they aren't loaded
+                if (configSection.contains("image-maps.packed", true)) {
+                    String fileName = configSection.getString("image-maps.packed", "map_packed.yrm");
+                    packedMap = new PackedImageMap(new File(plugin.getDataFolder(), fileName), xOffset, zOffset);
+                } else {
+                    File folder = plugin.getDataFolder();
+                    if (configSection.contains("image-maps.amplitude", true)) {
+                        String fileName = configSection.getString("image-maps.amplitude", "map_amplitude.png");
+                        altitudeMap = new GreyscaleImageMap(new File(folder, fileName), xOffset, zOffset);
+                    }
+                    if (configSection.contains("image-maps.minimum-height", true)) {
+                        String fileName = configSection.getString("image-maps.minimum-height", "map_height.png");
+                        minHeightMap = new GreyscaleImageMap(new File(folder, fileName), xOffset, zOffset);
+                    }
+                    if (configSection.contains("image-maps.wool", true)) {
+                        String fileName = configSection.getString("image-maps.wool", "map_wool.png");
+                        woolMap = new DyeColorImageMap(new File(folder, fileName), xOffset, zOffset);
+                    }
+                    if (configSection.contains("image-maps.biomes", true)) {
+                        String fileName = configSection.getString("image-maps.biomes", "map_biomes.png");
+                        biomeMap = new BiomeImageMap(new File(folder, fileName), xOffset, zOffset);
+                    }
+                }
             }
+            this.altitudeMap = altitudeMap;
+            this.minHeightMap = minHeightMap;
+            this.woolMap = woolMap;
+            this.biomeMap = biomeMap;
+            this.packedMap = packedMap;
         }
     }
 
@@ -135,31 +248,86 @@ public class SimplexNoiseChunkGenerator extends ChunkGenerator {
     public ChunkData generateChunkData(World world, Random random, int chunkX, int chunkZ, BiomeGrid biome) {
         ChunkData chunk = createChunkData(world);
 
-        SimplexNoiseGenerator generator = new SimplexNoiseGenerator(world);
+        // Use the same settings for the whole chunk, even if the plugin is reloaded
+        Settings settings = SimplexNoiseChunkGenerator.settings;
+        YaranSimplexNoiseGenerator generator = generators.computeIfAbsent(world.getSeed(),
+                YaranSimplexNoiseGenerator::new);
+
+        // Blocks are collected as runs in each column, then placed at once
+        ColumnBuilder columns = new ColumnBuilder();
+
+        // Biomes are collected for each column, then written once per biome cell
+        BiomeCells biomeCells = new BiomeCells();
 
+        // The packed pixel, modified minimum height, and terrain height of each column
+        int[] packedPixels = new int[16 * 16];
+        int[] modifiedMinimumHeights = new int[16 * 16];
+        int[] heights = new int[16 * 16];
+        int chunkMaxHeight = 0;
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
                 // Calculate world co-ords, using chunk co-ords
                 int worldX = chunkX * 16 + x;
                 int worldZ = chunkZ * 16 + z;
 
+                // Read every layer of the packed map in one lookup, if there is one
+                int packed = settings.packedMap != null ? settings.packedMap.getPackedFromGame(worldX, worldZ) : 0;
+                int modifiedMinimumHeight = (int) (settings.minimumHeight
+                        * getTerrainHeightModifier(settings, packed, worldX, worldZ));
+
                 // Use noise to calculate terrain height
-                int height = getTerrainHeight(worldX, worldZ, generator);
+                int height = getTerrainHeight(settings, packed, worldX, worldZ, modifiedMinimumHeight, generator);
+
+                packedPixels[z * 16 + x] = packed;
+                modifiedMinimumHeights[z * 16 + x] = modifiedMinimumHeight;
+                heights[z * 16 + x] = height;
+                chunkMaxHeight = Math.max(chunkMaxHeight, height);
+            }
+        }
+
+        // Cutout noise for the whole chunk, up to its highest column, interpolated from a coarse grid, if enabled
+        CutoutDensityGrid.ChunkDensity cutoutDensity = null;
+        if (settings.cutoutGrid) {
+            cutoutDensity = settings.cutoutGrids.computeIfAbsent(world.getSeed(),
+                    seed -> new CutoutDensityGrid(generator, settings.cutoutOctaves,
+                            settings.cutoutGridHorizontalSpacing, settings.cutoutGridVerticalSpacing, 256))
+                    .getChunk(chunkX, chunkZ, chunkMaxHeight);
+        }
+
+        // The wool color of each column, placed once the terrain is built
+        DyeColor[] woolColors = new DyeColor[16 * 16];
+
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                int worldX = chunkX * 16 + x;
+                int worldZ = chunkZ * 16 + z;
+                int packed = packedPixels[z * 16 + x];
+                int modifiedMinimumHeight = modifiedMinimumHeights[z * 16 + x];
+                int height = heights[z * 16 + x];
 
                 // Place blocks
-                chunk = generateChunkBlocks(chunk, x, height, z);
+                generateChunkBlocks(world.getSeed(), columns, x, height, z, worldX, worldZ);
 
                 // 3D cutouts
-                chunk = generate3dCutouts(chunk, generator, x, z, worldX, height, worldZ);
+                generate3dCutouts(settings, columns, generator, cutoutDensity, x, z, worldX, height, worldZ,
+                        modifiedMinimumHeight);
 
                 // Set biomes
-                biome = setBiomes(biome, x, z, worldX, worldZ);
+                setBiomes(settings, packed, biomeCells, x, z, worldX, worldZ);
+                woolColors[z * 16 + x] = getWoolColor(settings, packed, worldX, worldZ);
 
                 // Place biome-specific blocks
-                chunk = setBiomeBlocks(chunk, biome, x, height, z);
+                setBiomeBlocks(world.getSeed(), columns, biomeCells, biome, x, height, z, worldX, worldZ);
+            }
+        }
 
-                // Wool color map
-                chunk = generateWoolOverlay(chunk, x, z, worldX, worldZ);
+        columns.build(chunk);
+        biomeCells.apply(biome, settings.biomeSampling, 256);
+
+        // Wool color map, placed after the terrain so it isn't replaced
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                chunk = generateWoolOverlay(chunk, x, z, woolColors[z * 16 + x]);
             }
         }
 
@@ -168,64 +336,56 @@ public class SimplexNoiseChunkGenerator extends ChunkGenerator {
 
     /**
      * Gets the amplitude modifier for the specified world coordinates, using the
-     * amplitude image map.
+     * amplitude image map, or the column's packed pixel.
      * <p>
      * If no map is available, will return 1.
      */
-    private double getTerrainAmplitudeModifier(int worldX, int worldZ) {
-        if (altitudeMap != null) {
-            double heightModifier = altitudeMap.getPixelGreyscaleFromGame(worldX, worldZ);
-            return 0.75 * heightModifier + 0.75;
+    private double getTerrainAmplitudeModifier(Settings settings, int packed, int worldX, int worldZ) {
+        double heightModifier;
+        if (settings.altitudeMap != null) {
+            heightModifier = settings.altitudeMap.getPixelGreyscaleFromGame(worldX, worldZ);
+        } else if (settings.packedMap != null && settings.packedMap.hasLayer(PackedImageMap.Layer.AMPLITUDE)) {
+            heightModifier = settings.packedMap.getGreyscale(packed, PackedImageMap.Layer.AMPLITUDE);
         } else
             return 1;
+        return 0.75 * heightModifier + 0.75;
     }
 
     /**
      * Gets the minimum height modifier for the specified world coordinates, using
-     * the amplitude image map.
+     * the amplitude image map, or the column's packed pixel.
      * <p>
      * If no map is available, will return 1.
      */
-    private double getTerrainHeightModifier(int worldX, int worldZ) {
-        if (minHeightMap != null) {
-            double heightModifier = minHeightMap.getPixelGreyscaleFromGame(worldX, worldZ);
-            return 0.4 * heightModifier + 0.8;
+    private double getTerrainHeightModifier(Settings settings, int packed, int worldX, int worldZ) {
+        double heightModifier;
+        if (settings.minHeightMap != null) {
+            heightModifier = settings.minHeightMap.getPixelGreyscaleFromGame(worldX, worldZ);
+        } else if (settings.packedMap != null && settings.packedMap.hasLayer(PackedImageMap.Layer.MINIMUM_HEIGHT)) {
+            heightModifier = settings.packedMap.getGreyscale(packed, PackedImageMap.Layer.MINIMUM_HEIGHT);
         } else
             return 1;
+        return 0.4 * heightModifier + 0.8;
     }
 
     /**
      * Gets the terrain height for the specified world coordinates, using 2D simplex
-     * noise.
+     * noise, above the column's modified minimum height.
      */
-    private int getTerrainHeight(int worldX, int worldZ, SimplexNoiseGenerator generator) {
+    private int getTerrainHeight(Settings settings, int packed, int worldX, int worldZ, int modifiedMinimumHeight,
+            YaranSimplexNoiseGenerator generator) {
         // Get image map height multiplier
-        double amplitudeModifier = getTerrainAmplitudeModifier(worldX, worldZ);
-
-        // Generate noise at various frequencies (octaves)
-        double noise = 0;
-        for (double frequency : frequencies) {
-            double size = sizes.get(frequencies.indexOf(frequency));
-
-            // Generate noise in -1 to 1 range
-            double singleNoise = generator.noise(worldX * frequency, worldZ * frequency);
+        double amplitudeModifier = getTerrainAmplitudeModifier(settings, packed, worldX, worldZ);
 
-            // Convert from -1 to 1 range, into 0 to 1 range
-            singleNoise = (singleNoise + 1) / 2;
-
-            // Adjust noise using amplitude modifier
-            singleNoise = amplitudeModifier * size * singleNoise;
-
-            // Add to total noise
-            noise += singleNoise;
-        }
+        // Generate noise at various frequencies (octaves), adjusted using amplitude
+        // modifier
+        double noise = amplitudeModifier * settings.octaves.sum(generator, worldX, worldZ);
 
         // Raise noise to a power (redistribution)
-        noise = Math.pow(noise, exponent);
+        noise = Math.pow(noise, settings.exponent);
 
         // Use noise to calculate height
-        int modifiedMinimumHeight = (int) (minimumHeight * getTerrainHeightModifier(worldX, worldZ));
-        int height = (int) ((noise * finalAmplitude) + modifiedMinimumHeight);
+        int height = (int) ((noise * settings.finalAmplitude) + modifiedMinimumHeight);
 
         return height;
     }
@@ -237,114 +397,122 @@ public class SimplexNoiseChunkGenerator extends ChunkGenerator {
      * This only generates using the height provided - overhangs and other cutouts
      * are ignored.
      */
-    private ChunkData generateChunkBlocks(ChunkData chunk, int x, int height, int z) {
+    private void generateChunkBlocks(long seed, ColumnBuilder columns, int x, int height, int z, int worldX,
+            int worldZ) {
         if (height > 247) {
-            for (int i = height; i > 0; i--) {
-                // Material blockToPlace = (i > 247) ? Material.GOLD_BLOCK : Material.STONE;
-                Material blockToPlace = Material.STONE;
-                chunk.setBlock(x, i, z, blockToPlace);
-            }
+            // Material blockToPlace = (i > 247) ? Material.GOLD_BLOCK : Material.STONE;
+            columns.setRun(x, z, 1, height + 1, Material.STONE);
         } else if (height > 90) {
-            for (int i = height; i > 0; i--) {
-                Material blockToPlace = (i >= height - 3 && new Random().nextBoolean()) ? Material.GRAVEL
+            columns.setRun(x, z, 1, height - 3, Material.STONE);
+            for (int i = height; i >= height - 3; i--) {
+                Material blockToPlace = PositionalRandom.getBoolean(seed, worldX, i, worldZ, SALT_TOP_GRAVEL)
+                        ? Material.GRAVEL
                         : Material.STONE;
-                chunk.setBlock(x, i, z, blockToPlace);
+                columns.setBlock(x, i, z, blockToPlace);
             }
         } else if (height < 63) {
-            for (int i = height; i > 0; i--) {
-                // Material blockToPlace = (i > 43) ? Material.LAPIS_BLOCK : Material.STONE;
-                Material blockToPlace = Material.STONE;
-                if (i == 62)
-                    blockToPlace = Material.SAND;
-                chunk.setBlock(x, i, z, blockToPlace);
-            }
+            // Material blockToPlace = (i > 43) ? Material.LAPIS_BLOCK : Material.STONE;
+            columns.setRun(x, z, 1, height + 1, Material.STONE);
+            if (height >= 62)
+                columns.setBlock(x, 62, z, Material.SAND);
         } else {
-            chunk.setBlock(x, height, z, Material.GRASS_BLOCK);
-            chunk.setBlock(x, height - 1, z, Material.DIRT);
-            for (int i = height - 2; i > 0; i--)
-                chunk.setBlock(x, i, z, Material.STONE);
+            columns.setBlock(x, height, z, Material.GRASS_BLOCK);
+            columns.setBlock(x, height - 1, z, Material.DIRT);
+            columns.setRun(x, z, 1, height - 1, Material.STONE);
         }
-        chunk.setBlock(x, 0, z, Material.BEDROCK);
-
-        return chunk;
+        columns.setBlock(x, 0, z, Material.BEDROCK);
     }
 
     /**
      * Generates 3D cutouts in a chunk, using 3D simplex noise. This will cut
      * existing blocks out of the chunk, creating overhangs and caves.
+     * <p>
+     * If a cutout density is provided, noise is interpolated from it, instead of
+     * being generated at every block.
      */
-    private ChunkData generate3dCutouts(ChunkData chunk, SimplexNoiseGenerator generator, int x, int z, int worldX,
-            int height, int worldZ) {
-        if (cutouts) {
+    private void generate3dCutouts(Settings settings, ColumnBuilder columns, YaranSimplexNoiseGenerator generator,
+            CutoutDensityGrid.ChunkDensity cutoutDensity, int x, int z, int worldX, int height, int worldZ,
+            int modifiedMinimumHeight) {
+        if (settings.cutouts) {
             for (int y = 0; y <= height; y++) {
-                // Generate noise at various frequencies (octaves)
-                double cutoutNoise = 0;
-                double totalSize = 0;
-                for (double frequency : cutoutFrequencies) {
-                    double size = cutoutSizes.get(cutoutFrequencies.indexOf(frequency))
-                            * getTerrainAmplitudeModifier(worldX, worldZ);
-                    totalSize += size;
-
-                    double unshiftedNoise = generator.noise(worldX * frequency, y * frequency, worldZ * frequency);
-                    unshiftedNoise = (unshiftedNoise + 1) / 2; // Convert from -1 to 1 range, into 0 to 1 range
-                    cutoutNoise += size * unshiftedNoise;
-                }
-                cutoutNoise = cutoutNoise / totalSize;
+                // Generate noise at various frequencies (octaves), in 0 to 1 range
+                // The amplitude modifier scales every size equally, so it has no effect here
+                double cutoutNoise = cutoutDensity != null ? cutoutDensity.getDensity(x, y, z)
+                        : settings.cutoutOctaves.normalizedSum(generator, worldX, y, worldZ);
 
                 // Determine threshold for this location
                 double heightPercentage = ((double) y / (double) height); // 0 = bedrock, 1 = surface
                 // heightPercentage = Math.max(heightPercentage, 0.25); // Min threshold of 0.25
 
-                if (cutoutNoise * cutoutThreshold <= heightPercentage) {
-                    int modifiedMinimumHeight = (int) (minimumHeight * getTerrainHeightModifier(worldX, worldZ));
-                    chunk.setBlock(x, y + (modifiedMinimumHeight), z, Material.AIR);
+                if (cutoutNoise * settings.cutoutThreshold <= heightPercentage) {
+                    columns.setBlock(x, y + (modifiedMinimumHeight), z, Material.AIR);
                 }
             }
         }
-
-        return chunk;
     }
 
     /**
-     * Generates wool blocks, using a provided image map. The wool will generate at
-     * the world height limit.
+     * Gets the wool color of a column, using the wool image map, or the column's
+     * packed pixel.
+     *
+     * @return the dye color, or null if the column has no wool
      */
-    private ChunkData generateWoolOverlay(ChunkData chunk, int x, int z, int worldX, int worldZ) {
-        if (woolMap != null) {
-            DyeColor color = woolMap.getPixelDyeColorFromGame(worldX, worldZ);
-            if (color != null)
-                chunk.setBlock(x, 255, z, new Wool(color));
+    private DyeColor getWoolColor(Settings settings, int packed, int worldX, int worldZ) {
+        if (settings.woolMap != null) {
+            return settings.woolMap.getPixelDyeColorFromGame(worldX, worldZ);
+        } else if (settings.packedMap != null && settings.packedMap.hasLayer(PackedImageMap.Layer.WOOL)) {
+            return settings.packedMap.getDyeColor(packed);
         }
+        return null;
+    }
+
+    /**
+     * Generates a wool block, using the column's wool color. The wool will
+     * generate at the world height limit.
+     */
+    private ChunkData generateWoolOverlay(ChunkData chunk, int x, int z, DyeColor color) {
+        if (color != null)
+            chunk.setBlock(x, 255, z, new Wool(color));
 
         return chunk;
     }
 
     /**
-     * Sets biomes, using a biome map image.
+     * Sets the biome of a column, using a biome map image, or the column's packed
+     * pixel.
      */
-    private BiomeGrid setBiomes(BiomeGrid biomes, int x, int z, int worldX, int worldZ) {
-        if (biomeMap != null) {
-            Biome biome = biomeMap.getPixelBiomeFromGame(worldX, worldZ);
-            if (biome != null)
-                for (int y = 0; y < 256; y++)
-                    biomes.setBiome(x, y, z, biome);
+    private void setBiomes(Settings settings, int packed, BiomeCells biomeCells, int x, int z, int worldX,
+            int worldZ) {
+        Biome biome = null;
+        if (settings.biomeMap != null) {
+            biome = settings.biomeMap.getPixelBiomeFromGame(worldX, worldZ);
+        } else if (settings.packedMap != null && settings.packedMap.hasLayer(PackedImageMap.Layer.BIOMES)) {
+            biome = settings.packedMap.getBiome(packed);
         }
-
-        return biomes;
+        if (biome != null)
+            biomeCells.setBiome(x, z, biome);
     }
 
     /**
-     * Sets the blocks, according to biomes.
+     * Sets the blocks, according to biomes. The column's own biome is used. If the
+     * column has none, the biome last set in its cell is used, as the per-block
+     * writes left it, or the biome already in the grid if no column in the cell
+     * has been set yet.
      */
-    private ChunkData setBiomeBlocks(ChunkData chunk, BiomeGrid biomes, int x, int height, int z) {
+    private void setBiomeBlocks(long seed, ColumnBuilder columns, BiomeCells biomeCells, BiomeGrid biomes, int x,
+            int height, int z, int worldX, int worldZ) {
+        Biome columnBiome = biomeCells.getBiome(x, z);
+        if (columnBiome == null)
+            columnBiome = biomeCells.getLastCellBiome(x, z);
+
         // Change top 2-5 blocks
-        int depth = new Random().nextInt(4) + 2;
+        int depth = PositionalRandom.getInt(seed, worldX, 0, worldZ, SALT_SURFACE_DEPTH, 4) + 2;
         for (int i = height; i > height - depth; i--) {
 
             // Only place blocks if a block already exists
-            if (!chunk.getBlockData(x, i, z).getMaterial().isAir()) {
+            if (!columns.getType(x, i, z).isAir()) {
 
-                switch (biomes.getBiome(x, i, z)) {
+                switch (columnBiome != null ? columnBiome : biomes.getBiome(x, i, z)) {
 
                     case BEACH:
                     case SNOWY_BEACH:
@@ -352,23 +520,23 @@ public class SimplexNoiseChunkGenerator extends ChunkGenerator {
                         // Fill water
                         if (height < 62) {
                             for (int iWater = height + 1; iWater <= 62; iWater++) {
-                                chunk.setBlock(x, iWater, z, Material.WATER);
+                                columns.setBlock(x, iWater, z, Material.WATER);
                             }
                         }
 
                         // If above 80, place stone or gravel
                         if (i > 80) {
-                            Material blockToPlace = new Random().nextBoolean() ? Material.GRAVEL : Material.STONE;
-                            chunk.setBlock(x, i, z, blockToPlace);
+                            Material blockToPlace = getRockMaterial(seed, worldX, i, worldZ);
+                            columns.setBlock(x, i, z, blockToPlace);
                         }
                         // If between 80 and 64, place grass/dirt
                         else if (i >= 64) {
                             Material blockToPlace = i == height ? Material.GRASS_BLOCK : Material.DIRT;
-                            chunk.setBlock(x, i, z, blockToPlace);
+                            columns.setBlock(x, i, z, blockToPlace);
                         }
                         // Otherwise, place sand
                         else {
-                            chunk.setBlock(x, i, z, Material.SAND);
+                            columns.setBlock(x, i, z, Material.SAND);
                         }
                         break;
 
@@ -376,13 +544,13 @@ public class SimplexNoiseChunkGenerator extends ChunkGenerator {
                         // Fill water
                         if (height < 62) {
                             for (int iWater = height + 1; iWater <= 62; iWater++) {
-                                chunk.setBlock(x, iWater, z, Material.WATER);
+                                columns.setBlock(x, iWater, z, Material.WATER);
                             }
                         }
                         // Place stone or gravel
                         if (i > 0) {
-                            Material blockToPlace = new Random().nextBoolean() ? Material.GRAVEL : Material.STONE;
-                            chunk.setBlock(x, i, z, blockToPlace);
+                            Material blockToPlace = getRockMaterial(seed, worldX, i, worldZ);
+                            columns.setBlock(x, i, z, blockToPlace);
                         }
                         break;
 
@@ -396,29 +564,29 @@ public class SimplexNoiseChunkGenerator extends ChunkGenerator {
                     case WOODED_MOUNTAINS:
                         // If above 245, place snow block
                         if (i > 245) {
-                            chunk.setBlock(x, i, z, Material.SNOW_BLOCK);
+                            columns.setBlock(x, i, z, Material.SNOW_BLOCK);
                         }
                         // If above 200, or random chance if above 80, place stone or gravel
-                        else if (i > 200 || (i > 80 && new Random().nextBoolean())) {
-                            Material blockToPlace = new Random().nextBoolean() ? Material.GRAVEL : Material.STONE;
-                            chunk.setBlock(x, i, z, blockToPlace);
+                        else if (i > 200 || (i > 80 && isRocky(seed, worldX, i, worldZ))) {
+                            Material blockToPlace = getRockMaterial(seed, worldX, i, worldZ);
+                            columns.setBlock(x, i, z, blockToPlace);
                         }
                         // Otherwise place grass/dirt
                         else {
                             Material blockToPlace = i == height ? Material.GRASS_BLOCK : Material.DIRT;
-                            chunk.setBlock(x, i, z, blockToPlace);
+                            columns.setBlock(x, i, z, blockToPlace);
                         }
                         break;
 
                     default:
                         // If above 200, or random chance if above 85, place stone or gravel
-                        if (i > 200 || (i > 85 && new Random().nextBoolean())) {
-                            Material blockToPlace = new Random().nextBoolean() ? Material.GRAVEL : Material.STONE;
-                            chunk.setBlock(x, i, z, blockToPlace);
+                        if (i > 200 || (i > 85 && isRocky(seed, worldX, i, worldZ))) {
+                            Material blockToPlace = getRockMaterial(seed, worldX, i, worldZ);
+                            columns.setBlock(x, i, z, blockToPlace);
                         } else {
                             // For all other biomes, grass and dirt
                             Material blockToPlace = i == height ? Material.GRASS_BLOCK : Material.DIRT;
-                            chunk.setBlock(x, i, z, blockToPlace);
+                            columns.setBlock(x, i, z, blockToPlace);
                         }
                         break;
 
@@ -429,9 +597,29 @@ public class SimplexNoiseChunkGenerator extends ChunkGenerator {
         }
 
         // Bedrock floor
-        chunk.setBlock(x, 0, z, Material.BEDROCK);
+        columns.setBlock(x, 0, z, Material.BEDROCK);
+    }
 
-        return chunk;
+    /**
+     * Randomly chooses gravel or stone for a surface block, with an equal chance of
+     * each.
+     */
+    private static Material getRockMaterial(long seed, int worldX, int y, int worldZ) {
+        return PositionalRandom.getBoolean(seed, worldX, y, worldZ, SALT_SURFACE_GRAVEL) ? Material.GRAVEL
+                : Material.STONE;
+    }
+
+    /**
+     * Randomly decides whether a surface block is rock instead of soil, with an
+     * equal chance of each.
+     */
+    private static boolean isRocky(long seed, int worldX, int y, int worldZ) {
+        return PositionalRandom.getBoolean(seed, worldX, y, worldZ, SALT_ROCKY_SURFACE);
+    }
+
+    @Override
+    public boolean isParallelCapable() {
+        return true;
     }
 
     @Override
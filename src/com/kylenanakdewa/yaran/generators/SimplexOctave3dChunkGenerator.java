@@ -2,12 +2,25 @@ package com.kylenanakdewa.yaran.generators;
 
 import java.util.Random;
 
+import com.kylenanakdewa.yaran.generation.CutoutDensityGrid;
+
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.util.noise.SimplexOctaveGenerator;
 
 /**
- * SimplexOctave3dChunkGenerator
+ * A chunk generator that uses the SimplexOctaveGenerator for terrain height,
+ * and 3D octave noise to cut blocks out of the terrain. The parameters are
+ * shared with the {@link SimplexOctaveChunkGenerator}.
+ * <p>
+ * By default, only the block below the surface can be cut out, as in older
+ * versions. With full cutouts enabled, every block below the surface can be
+ * cut out, using noise interpolated from a coarse grid.
+ * <p>
+ * Each column is generated in a single pass, from the bottom up, placing each
+ * block once.
+ *
+ * @author Kyle Nanakdewa
  */
 public class SimplexOctave3dChunkGenerator extends SimplexOctaveChunkGenerator {
 
@@ -15,35 +28,116 @@ public class SimplexOctave3dChunkGenerator extends SimplexOctaveChunkGenerator {
     public ChunkData generateChunkData(World world, Random random, int chunkX, int chunkZ, BiomeGrid biome) {
         ChunkData chunk = createChunkData(world);
 
-        SimplexOctaveGenerator generator = new SimplexOctaveGenerator(world, octaves);
-        generator.setScale(scale);
+        // Use the same settings for the whole chunk, even if the plugin is reloaded
+        Settings settings = SimplexOctaveChunkGenerator.settings;
+        SimplexOctaveGenerator generator = settings.getGenerator(world);
+
+        // Calculate the height of every column first, so noise above the chunk's surface is never generated
+        double[] columnNoise = new double[16 * 16];
+        int[] heights = new int[16 * 16];
+        int chunkMaxHeight = 0;
+        for (int z = 0; z < 16; z++) {
+            for (int x = 0; x < 16; x++) {
+                double noise2d = generator.noise(chunkX * 16 + x, chunkZ * 16 + z, settings.frequency,
+                        settings.amplitude, settings.normalize);
+                int height = (int) (Math.pow(noise2d + 1, settings.exponent) * settings.maximumHeight
+                        + settings.originHeight);
+                columnNoise[z * 16 + x] = noise2d;
+                heights[z * 16 + x] = height;
+                chunkMaxHeight = Math.max(chunkMaxHeight, height);
+            }
+        }
+
+        // 3D noise for the whole chunk, up to its highest surface, if every height can be cut out
+        CutoutDensityGrid.ChunkDensity density = settings.fullCutouts
+                ? settings.getCutoutGrid(world).getChunk(chunkX, chunkZ, chunkMaxHeight - 1)
+                : null;
+
+        // Blocks are collected as runs in each column, then placed at once
+        ColumnBuilder columns = new ColumnBuilder();
 
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
-                double noise2d = generator.noise(chunkX * 16 + x, chunkZ * 16 + z, frequency, amplitude, normalize);
-                int height = (int) (Math.pow(noise2d + 1, exponent) * maximumHeight + originHeight);
+                generateColumn(settings, generator, density, columns, x, z, chunkX * 16 + x, chunkZ * 16 + z,
+                        columnNoise[z * 16 + x], heights[z * 16 + x]);
+            }
+        }
 
-                for (int y = 0; y < height; y++) {
-                    double noise3d = generator.noise(chunkX * 16 + x, y, chunkZ * 16 + z, frequency, amplitude,
-                            normalize);
+        columns.build(chunk);
+        return chunk;
+    }
 
-                    double chance = noise3d + noise2d;
+    /**
+     * Generates the blocks in a column, from bedrock to the surface, skipping
+     * blocks that are cut out.
+     */
+    private void generateColumn(Settings settings, SimplexOctaveGenerator generator,
+            CutoutDensityGrid.ChunkDensity density, ColumnBuilder columns, int x, int z, int worldX, int worldZ,
+            double noise2d, int height) {
+        // Columns without any height are left empty
+        if (height <= 0) {
+            return;
+        }
 
-                    // Place blocks
-                    chunk.setBlock(x, height, z, Material.GRASS_BLOCK);
-                    chunk.setBlock(x, height - 1, z, Material.DIRT);
-                    for (int i = height - 2; i > 0; i--)
-                        chunk.setBlock(x, i, z, Material.STONE);
-                    chunk.setBlock(x, 0, z, Material.BEDROCK);
+        int runStart = 0;
+        Material runMaterial = null;
+        for (int y = 0; y <= height; y++) {
+            Material material = isCutOut(settings, generator, density, x, y, z, worldX, worldZ, noise2d, height)
+                    ? null
+                    : getMaterial(y, height);
 
-                    if (chance < cutoutThreshold) {
-                        chunk.setBlock(x, y, z, Material.AIR);
-                    }
+            // Place the run below when the material changes
+            if (material != runMaterial) {
+                if (runMaterial != null) {
+                    columns.setRun(x, z, runStart, y, runMaterial);
                 }
+                runStart = y;
+                runMaterial = material;
             }
         }
+        if (runMaterial != null) {
+            columns.setRun(x, z, runStart, height + 1, runMaterial);
+        }
+    }
 
-        return chunk;
+    /**
+     * @return the material of a block in a column, before cutouts
+     */
+    private static Material getMaterial(int y, int height) {
+        if (y == 0) {
+            return Material.BEDROCK;
+        } else if (y == height) {
+            return Material.GRASS_BLOCK;
+        } else if (y == height - 1) {
+            return Material.DIRT;
+        }
+        return Material.STONE;
+    }
+
+    /**
+     * Determines whether a block is cut out. The surface block is never cut out.
+     * Unless full cutouts are enabled, only the block below the surface can be cut
+     * out, which is the only cutout older versions kept.
+     */
+    private static boolean isCutOut(Settings settings, SimplexOctaveGenerator generator,
+            CutoutDensityGrid.ChunkDensity density, int x, int y, int z, int worldX, int worldZ, double noise2d,
+            int height) {
+        if (y >= height) {
+            return false;
+        }
+
+        double noise3d;
+        if (density != null) {
+            noise3d = density.getDensity(x, y, z);
+        } else if (y == height - 1) {
+            noise3d = generator.noise(worldX, y, worldZ, settings.frequency, settings.amplitude,
+                    settings.normalize);
+        } else {
+            return false;
+        }
+
+        double chance = noise3d + noise2d;
+        return chance < settings.cutoutThreshold;
     }
 
-}
\ No newline at end of file
+}
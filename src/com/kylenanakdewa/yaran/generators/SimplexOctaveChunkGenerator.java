@@ -1,6 +1,10 @@
 package com.kylenanakdewa.yaran.generators;
 
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.kylenanakdewa.yaran.generation.CutoutDensityGrid;
 
 import org.bukkit.Material;
 import org.bukkit.World;
@@ -19,102 +23,185 @@ import org.bukkit.util.noise.SimplexOctaveGenerator;
 public class SimplexOctaveChunkGenerator extends ChunkGenerator {
 
     /**
-     * Amount of octaves to create.
-     */
-    protected static int octaves;
-    /**
-     * Sets the scale used for all coordinates passed to this generator. This is the
-     * equivalent to setting each coordinate to the specified value.
-     */
-    protected static double scale;
-
-    /**
-     * How much to alter the frequency by each octave.
-     */
-    protected static double frequency;
-    /**
-     * How much to alter the amplitude by each octave.
-     */
-    protected static double amplitude;
-    /**
-     * If true, normalize the value to [-1, 1].
-     */
-    protected static boolean normalize;
-
-    /**
-     * The maximum world height above the origin height.
-     */
-    protected static int maximumHeight;
-    /**
-     * The origin height - the lowest point of the world.
-     */
-    protected static int originHeight;
-    /**
-     * The exponent to raise heights to.
+     * The current settings. When the plugin is reloaded, the settings are replaced
+     * as a whole, so each chunk is generated using one consistent set of settings.
      */
-    protected static double exponent;
+    protected static volatile Settings settings;
 
-    /**
-     * Whether to enable the 3D simplex octave generator.
-     */
-    protected static boolean enable3d;
+    public static void setParameters(ConfigurationSection configSection) {
+        settings = new Settings(configSection.getConfigurationSection("simplex-octave"));
+    }
 
     /**
-     * The threshold for 3D cutouts.
+     * The settings for the generator. Settings are never modified after they are
+     * loaded, so they can be used by multiple threads.
      */
-    protected static double cutoutThreshold;
-
-    public static void setParameters(ConfigurationSection configSection) {
-        configSection = configSection.getConfigurationSection("simplex-octave");
-
-        octaves = configSection.getInt("octaves");
-        scale = configSection.getDouble("scale");
-
-        frequency = configSection.getDouble("frequency");
-        amplitude = configSection.getDouble("amplitude");
-        normalize = configSection.getBoolean("normalize");
+    protected static final class Settings {
+
+        /**
+         * Amount of octaves to create.
+         */
+        protected final int octaves;
+        /**
+         * Sets the scale used for all coordinates passed to this generator. This is
+         * the equivalent to setting each coordinate to the specified value.
+         */
+        protected final double scale;
+
+        /**
+         * How much to alter the frequency by each octave.
+         */
+        protected final double frequency;
+        /**
+         * How much to alter the amplitude by each octave.
+         */
+        protected final double amplitude;
+        /**
+         * If true, normalize the value to [-1, 1].
+         */
+        protected final boolean normalize;
+
+        /**
+         * The maximum world height above the origin height.
+         */
+        protected final int maximumHeight;
+        /**
+         * The origin height - the lowest point of the world.
+         */
+        protected final int originHeight;
+        /**
+         * The exponent to raise heights to.
+         */
+        protected final double exponent;
+
+        /**
+         * Whether to enable the 3D simplex octave generator.
+         */
+        protected final boolean enable3d;
+
+        /**
+         * The threshold for 3D cutouts.
+         */
+        protected final double cutoutThreshold;
+
+        /**
+         * Whether the 3D generator cuts out blocks at every height below the surface.
+         * Otherwise, only the block below the surface can be cut out, as in older
+         * versions.
+         */
+        protected final boolean fullCutouts;
+        /**
+         * The distance between 3D noise samples along the X and Z axes, and along the
+         * Y axis, in blocks, when cutting out every height.
+         */
+        protected final int cutoutGridHorizontalSpacing;
+        protected final int cutoutGridVerticalSpacing;
+
+        /**
+         * The octave generator for each world seed, created when a world first
+         * generates a chunk, and shared by every chunk.
+         */
+        private final Map<Long, SimplexOctaveGenerator> generators = new ConcurrentHashMap<>();
+
+        /**
+         * The 3D noise grid for each world seed, created when a world first
+         * generates a chunk, and shared by every chunk.
+         */
+        private final Map<Long, CutoutDensityGrid> cutoutGrids = new ConcurrentHashMap<>();
+
+        private Settings(ConfigurationSection configSection) {
+            octaves = configSection.getInt("octaves");
+            scale = configSection.getDouble("scale");
+
+            frequency = configSection.getDouble("frequency");
+            amplitude = configSection.getDouble("amplitude");
+            normalize = configSection.getBoolean("normalize");
+
+            maximumHeight = configSection.getInt("maximum-height");
+            originHeight = configSection.getInt("origin-height");
+            exponent = configSection.getDouble("exponent");
+
+            enable3d = configSection.getBoolean("enable-3d");
+            cutoutThreshold = configSection.getDouble("cutout-threshold");
+
+            fullCutouts = configSection.getBoolean("full-3d-cutouts", false);
+            cutoutGridHorizontalSpacing = configSection.getInt("cutout-grid.horizontal-spacing", 4);
+            cutoutGridVerticalSpacing = configSection.getInt("cutout-grid.vertical-spacing", 8);
+            if (fullCutouts && (cutoutGridHorizontalSpacing < 1 || cutoutGridVerticalSpacing < 1)) {
+                throw new IllegalArgumentException("Cutout grid spacing must be at least 1.");
+            }
+        }
 
-        maximumHeight = configSection.getInt("maximum-height");
-        originHeight = configSection.getInt("origin-height");
-        exponent = configSection.getDouble("exponent");
+        /**
+         * Gets the octave generator for a world, creating it if needed. The
+         * generator must not be modified, as it is shared by every chunk in the
+         * world.
+         */
+        protected SimplexOctaveGenerator getGenerator(World world) {
+            return generators.computeIfAbsent(world.getSeed(), seed -> {
+                SimplexOctaveGenerator generator = new SimplexOctaveGenerator(seed, octaves);
+                generator.setScale(scale);
+                return generator;
+            });
+        }
 
-        enable3d = configSection.getBoolean("enable-3d");
-        cutoutThreshold = configSection.getDouble("cutout-threshold");
+        /**
+         * Gets the grid of 3D octave noise for a world, creating it if needed.
+         */
+        protected CutoutDensityGrid getCutoutGrid(World world) {
+            return cutoutGrids.computeIfAbsent(world.getSeed(), seed -> {
+                SimplexOctaveGenerator generator = getGenerator(world);
+                return new CutoutDensityGrid(
+                        (x, y, z) -> generator.noise(x, y, z, frequency, amplitude, normalize),
+                        cutoutGridHorizontalSpacing, cutoutGridVerticalSpacing, world.getMaxHeight());
+            });
+        }
     }
 
     @Override
     public ChunkData generateChunkData(World world, Random random, int chunkX, int chunkZ, BiomeGrid biome) {
         ChunkData chunk = createChunkData(world);
 
-        SimplexOctaveGenerator generator = new SimplexOctaveGenerator(world, octaves);
-        generator.setScale(scale);
+        // Use the same settings for the whole chunk, even if the plugin is reloaded
+        Settings settings = SimplexOctaveChunkGenerator.settings;
+        SimplexOctaveGenerator generator = settings.getGenerator(world);
+
+        // Blocks are collected as runs in each column, then placed at once
+        ColumnBuilder columns = new ColumnBuilder();
 
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
-                double noise = generator.noise(chunkX * 16 + x, chunkZ * 16 + z, frequency, amplitude, normalize);
-                int height = (int) (Math.pow(noise + 1, exponent) * maximumHeight + originHeight);
+                double noise = generator.noise(chunkX * 16 + x, chunkZ * 16 + z, settings.frequency,
+                        settings.amplitude, settings.normalize);
+                int height = (int) (Math.pow(noise + 1, settings.exponent) * settings.maximumHeight
+                        + settings.originHeight);
 
                 // Place blocks
-                chunk.setBlock(x, height, z, Material.GRASS_BLOCK);
-                chunk.setBlock(x, height - 1, z, Material.DIRT);
-                for (int i = height - 2; i > 0; i--)
-                    chunk.setBlock(x, i, z, Material.STONE);
-                chunk.setBlock(x, 0, z, Material.BEDROCK);
+                columns.setBlock(x, height, z, Material.GRASS_BLOCK);
+                columns.setBlock(x, height - 1, z, Material.DIRT);
+                columns.setRun(x, z, 1, height - 1, Material.STONE);
+                columns.setBlock(x, 0, z, Material.BEDROCK);
 
-                if (enable3d) {
+                if (settings.enable3d) {
                     for (int y = 0; y < 255; y++) {
-                        double noise3d = generator.noise(chunkX * 16 + x, y, chunkZ * 16 + z, frequency, amplitude,
-                                true);
+                        double noise3d = generator.noise(chunkX * 16 + x, y, chunkZ * 16 + z, settings.frequency,
+                                settings.amplitude, true);
 
-                        if (noise3d > cutoutThreshold) {
-                            chunk.setBlock(x, y, z, Material.AIR);
+                        if (noise3d > settings.cutoutThreshold) {
+                            columns.setBlock(x, y, z, Material.AIR);
                         }
                     }
                 }
             }
         }
 
+        columns.build(chunk);
         return chunk;
     }
 
-}
\ No newline at end of file
+    @Override
+    public boolean isParallelCapable() {
+        return true;
+    }
+
+}
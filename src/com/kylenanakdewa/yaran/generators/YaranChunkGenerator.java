@@ -1,21 +1,28 @@
 package com.kylenanakdewa.yaran.generators;
 
-import java.awt.Color;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
+import com.kylenanakdewa.yaran.generation.HeightfieldDiskCache;
+import com.kylenanakdewa.yaran.generation.NoiseTileCache;
 import com.kylenanakdewa.yaran.generation.YaranHeightmapGenerator;
-import com.kylenanakdewa.yaran.generation.YaranNoiseGenerator;
 import com.kylenanakdewa.yaran.generation.YaranHeightmapGenerator.HeightData;
+import com.kylenanakdewa.yaran.utils.PositionalRandom;
 import com.kylenanakdewa.yaran.utils.YaranMath;
-import com.kylenanakdewa.yaran.utils.imagemaps.ImageMap;
+import com.kylenanakdewa.yaran.utils.imagemaps.DebugMapStore;
 
+import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.World;
 import org.bukkit.block.Biome;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.generator.ChunkGenerator;
-import org.bukkit.util.noise.SimplexNoiseGenerator;
 
 /**
  * A chunk generator that uses the new Yaran generation algorithm. The
@@ -25,178 +32,412 @@ import org.bukkit.util.noise.SimplexNoiseGenerator;
  */
 public class YaranChunkGenerator extends ChunkGenerator {
 
-    /**
-     * When debug mode is on, the generator internal functions will be visualized,
-     * instead of generating actual terrain.
-     */
-    private static boolean debugMode;
+    /** The salt for the random ground cover of mountains, see {@link PositionalRandom}. */
+    private static final int SALT_GROUND_COVER = 1;
 
-    /**
-     * Enables the new Yaran continent generator, which generates more realistic and
-     * tunable continents and oceans, by splitting up land vs. ocean functions.
-     */
-    private static boolean useContinentGenerator;
+    /** The number of blocks above the surface that flying hills can generate in. */
+    private static final int FLYING_HILLS_HEIGHT = 50;
 
     /**
-     * The noise generator settings for generating the final terrain height.
+     * The flying hills noise needed to place a block at each height above the
+     * surface, from the surface up.
      */
-    private static ConfigurationSection finalHeightConfig;
+    private static final double[] FLYING_HILLS_THRESHOLDS = createFlyingHillsThresholds();
 
     /**
-     * The noise generator settings for generating the continent map. This is used
-     * to determine land vs water.
+     * The lowest flying hills threshold. Columns with flying hills noise at or
+     * below this have no flying hills.
      */
-    private static ConfigurationSection continentMapConfig;
+    private static final double FLYING_HILLS_MIN_THRESHOLD = Arrays.stream(FLYING_HILLS_THRESHOLDS).min()
+            .getAsDouble();
+
+    private static double[] createFlyingHillsThresholds() {
+        double[] thresholds = new double[FLYING_HILLS_HEIGHT];
+        for (int offset = 0; offset < FLYING_HILLS_HEIGHT; offset++) {
+            double yPercentage = YaranMath.rescale(offset, 0, FLYING_HILLS_HEIGHT, 0, 1);
+            // double threshold = 0.5 + 0.5 * Math.pow(yPercentage, 2);
+            double l = 1.25 * yPercentage - 1;
+            thresholds[offset] = 2 * (0.25 + Math.pow(l, 3) + Math.pow(l, 2));
+        }
+        return thresholds;
+    }
 
     /**
-     * The noise generator settings for generating the minimum heightmap. This
-     * controls the lowest point of terrain, and is used to determine land vs water,
-     * as well as plateaus and overall altitude.
+     * The current settings. When the plugin is reloaded, the settings are replaced
+     * as a whole, so each chunk is generated using one consistent set of settings,
+     * even while other threads are generating chunks.
      */
-    private static ConfigurationSection minHeightConfig;
+    private static volatile Settings settings;
 
-    /**
-     * The noise generator settings for generating the maximum heightmap. This
-     * controls the highest point of terrain, and is used to determine where
-     * mountains and hills can generate.
-     */
-    private static ConfigurationSection maxHeightConfig;
+    public static void setParameters(ConfigurationSection configSection, File dataFolder) {
+        Settings oldSettings = settings;
+        settings = new Settings(configSection.getConfigurationSection("yaran-new"), dataFolder);
 
-    /**
-     * The noise generator settings for generating the temperature map.
-     */
-    private static ConfigurationSection temperatureMapConfig;
-    /**
-     * The noise generator settings for generating the flying hills.
-     */
-    private static ConfigurationSection flyingHillsConfig;
+        // Write any noise cached using the old settings to disk
+        if (oldSettings != null) {
+            oldSettings.close();
+        }
+
+        // Delete disk caches generated with other settings, away from the generation threads, unless a newer
+        // reload has replaced these settings, and will delete them itself
+        Settings newSettings = settings;
+        if (newSettings.diskCacheFolder != null) {
+            CompletableFuture.runAsync(() -> {
+                if (settings == newSettings) {
+                    HeightfieldDiskCache.deleteOldCaches(newSettings.diskCacheFolder, newSettings.settingsKey);
+                }
+            });
+        }
+
+        // Report any octaves culled from the heightmap noise layers, if culling is on
+        if (isCullingEnabled(newSettings.finalHeightConfig) || isCullingEnabled(newSettings.minHeightConfig)
+                || isCullingEnabled(newSettings.maxHeightConfig)) {
+            YaranHeightmapGenerator heightmapGenerator = new YaranHeightmapGenerator(0,
+                    newSettings.finalHeightConfig, newSettings.continentMapConfig, newSettings.minHeightConfig,
+                    newSettings.maxHeightConfig, newSettings.fastMath);
+            for (String summary : heightmapGenerator.getCullingSummaries()) {
+                Bukkit.getLogger().info("[Yaran] " + summary);
+            }
+        }
+    }
 
     /**
-     * Whether to perform 3D cutouts, creating overhangs and large caves.
-     */
-    // protected static boolean cutouts;
-    /**
-     * Threshold for cutting out terrain to create overhangs. Higher numbers = less
-     * cutouts.
-     */
-    // protected static double cutoutThreshold;
-    /**
-     * The frequencies to use. At least one is required. More will increase terrain
-     * variation.
-     */
-    // protected static List<Double> cutoutFrequencies;
-    /**
-     * The size of each frequency. Must be the same number of values as the list of
-     * frequencies.
+     * @return whether a noise layer's config culls octaves
      */
-    // protected static List<Double> cutoutSizes;
+    private static boolean isCullingEnabled(ConfigurationSection config) {
+        return config != null && config.getDouble("culling-tolerance", 0) > 0;
+    }
 
     /**
-     * The image map to use for altitude changes.
+     * Writes any noise cached using the current settings to disk, and discards the
+     * debug maps. Called when the plugin is disabled. Chunks generated afterwards
+     * still use the settings, without the disk cache or debug maps.
      */
-    // protected static GreyscaleImageMap altitudeMap;
+    public static void close() {
+        Settings oldSettings = settings;
+        if (oldSettings != null) {
+            oldSettings.close();
+        }
+    }
+
     /**
-     * The image map to use for minimum height changes.
+     * The settings for the generator, taken from the plugin config.yml. Settings
+     * are never modified after they are loaded, so they can be used by multiple
+     * threads.
      */
-    // protected static GreyscaleImageMap minHeightMap;
+    private static final class Settings {
+
+        /**
+         * When debug mode is on, the generator internal functions will be
+         * visualized, instead of generating actual terrain.
+         */
+        private final boolean debugMode;
+
+        /**
+         * Enables the new Yaran continent generator, which generates more realistic
+         * and tunable continents and oceans, by splitting up land vs. ocean
+         * functions.
+         */
+        private final boolean useContinentGenerator;
+
+        /**
+         * Uses fast approximations of the exponent and sigmoid functions, which are
+         * slightly less accurate.
+         */
+        private final boolean fastMath;
+
+        /**
+         * How the biome of each 4x4x4 biome cell is chosen from its columns.
+         */
+        private final BiomeCells.Sampling biomeSampling;
+
+        /**
+         * The cache of generated noise layers, or null if the cache is disabled.
+         */
+        private final NoiseTileCache tileCache;
+
+        /**
+         * The folder to store disk caches of generated noise in, or null if the
+         * disk cache is disabled.
+         */
+        private final File diskCacheFolder;
+
+        /**
+         * A description of all settings that affect generated noise, used to
+         * detect when disk caches are out of date.
+         */
+        private final String settingsKey;
+
+        /**
+         * The generation context for each world seed, created when a world first
+         * generates a chunk.
+         */
+        private final Map<Long, WorldContext> worldContexts = new ConcurrentHashMap<>();
+
+        /**
+         * The disk caches opened for these settings, so they can all be closed,
+         * even if a world context is created while the settings are being closed.
+         */
+        private final List<HeightfieldDiskCache> diskCaches = new ArrayList<>();
+
+        /** Whether these settings have been replaced. Guarded by {@link #diskCaches}. */
+        private boolean closed;
+
+        /**
+         * The noise generator settings for generating the final terrain height.
+         */
+        private final ConfigurationSection finalHeightConfig;
+
+        /**
+         * The noise generator settings for generating the continent map. This is
+         * used to determine land vs water.
+         */
+        private final ConfigurationSection continentMapConfig;
+
+        /**
+         * The noise generator settings for generating the minimum heightmap. This
+         * controls the lowest point of terrain, and is used to determine land vs
+         * water, as well as plateaus and overall altitude.
+         */
+        private final ConfigurationSection minHeightConfig;
+
+        /**
+         * The noise generator settings for generating the maximum heightmap. This
+         * controls the highest point of terrain, and is used to determine where
+         * mountains and hills can generate.
+         */
+        private final ConfigurationSection maxHeightConfig;
+
+        /**
+         * The noise generator settings for generating the temperature map.
+         */
+        private final ConfigurationSection temperatureMapConfig;
+        /**
+         * The noise generator settings for generating the flying hills.
+         */
+        private final ConfigurationSection flyingHillsConfig;
+
+        /**
+         * When debug maps are on, the generator internal functions will be
+         * visualized on image maps.
+         */
+        private final boolean drawDebugMaps;
+
+        /**
+         * The debug maps, or null if debug maps are disabled. Layers are stored in
+         * the order of the DEBUG_ constants.
+         */
+        private final DebugMapStore debugMaps;
+
+        /** The PNG compression level for saved debug maps, from 0 to 9. */
+        private final int debugMapCompressionLevel;
+
+        /**
+         * The width of each saved debug map image, in blocks, or 0 to save one image
+         * per map.
+         */
+        private final int debugMapRegionSize;
+
+        private Settings(ConfigurationSection configSection, File dataFolder) {
+            debugMode = configSection.getBoolean("debug");
+
+            useContinentGenerator = configSection.getBoolean("use-continent-generator");
+
+            fastMath = configSection.getBoolean("fast-math");
+
+            biomeSampling = BiomeCells.Sampling.fromConfig(configSection.getString("biome-sampling"));
+
+            finalHeightConfig = configSection.getConfigurationSection("final-height");
+            continentMapConfig = configSection.getConfigurationSection("continent-map");
+            minHeightConfig = configSection.getConfigurationSection("min-height");
+            maxHeightConfig = configSection.getConfigurationSection("max-height");
+            temperatureMapConfig = configSection.getConfigurationSection("temperature-map");
+            flyingHillsConfig = configSection.getConfigurationSection("flying-hills");
+
+            if (configSection.getBoolean("noise-cache.enabled")) {
+                int tileSize = configSection.getInt("noise-cache.tile-size", 128);
+                long maxBytes = configSection.getLong("noise-cache.max-memory-mb", 64) * 1024 * 1024;
+                tileCache = new NoiseTileCache(tileSize, maxBytes);
+            } else {
+                tileCache = null;
+            }
+
+            diskCacheFolder = configSection.getBoolean("disk-cache.enabled")
+                    ? new File(dataFolder, "heightfield-cache")
+                    : null;
+            settingsKey = "fast-math=" + fastMath + getSettingsKey(finalHeightConfig)
+                    + getSettingsKey(continentMapConfig) + getSettingsKey(minHeightConfig)
+                    + getSettingsKey(maxHeightConfig) + getSettingsKey(temperatureMapConfig)
+                    + getSettingsKey(flyingHillsConfig);
+
+            drawDebugMaps = configSection.contains("image-maps", true)
+                    && configSection.getBoolean("image-maps.draw-debug-maps");
+            if (drawDebugMaps) {
+                long maxBytes = configSection.getLong("image-maps.max-memory-mb", 32) * 1024 * 1024;
+                debugMaps = new DebugMapStore(DEBUG_MAP_NAMES, DEBUG_MAP_COLORS, maxBytes,
+                        new File(dataFolder, "debug-map-tiles"));
+            } else {
+                debugMaps = null;
+            }
+            debugMapCompressionLevel = configSection.getInt("image-maps.compression-level", 6);
+            debugMapRegionSize = Math.max(0, configSection.getInt("image-maps.region-size", 0));
+        }
+
+        /**
+         * Gets the generation context for a world seed, creating it if needed.
+         */
+        private WorldContext getWorldContext(long seed) {
+            return worldContexts.computeIfAbsent(seed, contextSeed -> new WorldContext(this, contextSeed));
+        }
+
+        /**
+         * Writes any cached noise to disk, and discards the debug maps. Called when
+         * these settings are replaced.
+         */
+        private void close() {
+            if (debugMaps != null) {
+                debugMaps.close();
+            }
+
+            // Chunks still being generated with these settings stop using the disk cache
+            List<HeightfieldDiskCache> openDiskCaches;
+            synchronized (diskCaches) {
+                closed = true;
+                openDiskCaches = new ArrayList<>(diskCaches);
+            }
+            for (HeightfieldDiskCache diskCache : openDiskCaches) {
+                diskCache.close();
+            }
+        }
+    }
+
     /**
-     * The image map to use for biomes.
+     * If debug maps are enabled, saves the resulting maps to the specified folder.
+     * The maps are saved as they are when this is called, on other threads, so
+     * chunks can continue to be generated while the maps are saved.
+     *
+     * Note that the maps will only contain data after the world has been generated.
+     *
+     * @param folder the folder to save the image files to
+     * @return the number of image files saved, when complete, or null if debug
+     *         maps are disabled
      */
+    public static CompletableFuture<Integer> saveDebugMaps(File folder) {
+        Settings settings = YaranChunkGenerator.settings;
+        if (!settings.drawDebugMaps) {
+            return null;
+        }
+        DebugMapStore.Snapshot snapshot = settings.debugMaps.snapshot();
+        return CompletableFuture.supplyAsync(
+                () -> snapshot.save(folder, settings.debugMapCompressionLevel, settings.debugMapRegionSize));
+    }
 
-    // protected static BiomeImageMap biomeMap;
     /**
-     * The image map to use for wool colors.
+     * Describes the settings in a noise layer's config section, for detecting
+     * changes to the settings.
      */
-    // protected static DyeColorImageMap woolMap;
+    private static String getSettingsKey(ConfigurationSection config) {
+        return config == null ? "\nnull" : "\n" + config.getName() + "=" + config.getValues(true);
+    }
 
     /**
-     * When debug maps are on, the generator internal functions will be visualized
-     * on image maps.
+     * Everything needed to generate chunks for a world seed. Contexts are created
+     * once per seed and shared by every chunk, and never modified afterwards, so
+     * they can be used by multiple threads.
+     * <p>
+     * Contexts are discarded when the settings are reloaded.
      */
-    private static boolean drawDebugMaps;
-
-    private static ImageMap maxHeightMap;
-    private static ImageMap finalHeightMap;
-    private static ImageMap minHeightMap;
-    private static ImageMap continentMap;
-    private static ImageMap flyingHillsMap;
-
-    public static void setParameters(ConfigurationSection configSection) {
-        configSection = configSection.getConfigurationSection("yaran-new");
-
-        debugMode = configSection.getBoolean("debug");
-
-        useContinentGenerator = configSection.getBoolean("use-continent-generator");
-
-        finalHeightConfig = configSection.getConfigurationSection("final-height");
-        continentMapConfig = configSection.getConfigurationSection("continent-map");
-        minHeightConfig = configSection.getConfigurationSection("min-height");
-        maxHeightConfig = configSection.getConfigurationSection("max-height");
-        temperatureMapConfig = configSection.getConfigurationSection("temperature-map");
-        flyingHillsConfig = configSection.getConfigurationSection("flying-hills");
-
-        // cutouts = configSection.getBoolean("cutouts");
-        // cutoutThreshold = configSection.getDouble("cutout-threshold");
-        // cutoutFrequencies = configSection.getDoubleList("cutout-frequencies");
-        // cutoutSizes = configSection.getDoubleList("cutout-sizes");
-
-        if (configSection.contains("image-maps", true)) {
-            int xOffset = configSection.getInt("image-maps.offset.x", 0);
-            int zOffset = configSection.getInt("image-maps.offset.z", 0);
-
-            /*
-             * if (configSection.contains("image-maps.amplitude", true)) { String fileName =
-             * configSection.getString("image-maps.amplitude", "map_amplitude.png");
-             * altitudeMap = new GreyscaleImageMap(new File(plugin.getDataFolder(),
-             * fileName), xOffset, zOffset); } if
-             * (configSection.contains("image-maps.minimum-height", true)) { String fileName
-             * = configSection.getString("image-maps.minimum-height", "map_height.png");
-             * minHeightMap = new GreyscaleImageMap(new File(plugin.getDataFolder(),
-             * fileName), xOffset, zOffset); } if (configSection.contains("image-maps.wool",
-             * true)) { String fileName = configSection.getString("image-maps.wool",
-             * "map_wool.png"); woolMap = new DyeColorImageMap(new
-             * File(plugin.getDataFolder(), fileName), xOffset, zOffset); } if
-             * (configSection.contains("image-maps.biomes", true)) { String fileName =
-             * configSection.getString("image-maps.biomes", "map_biomes.png"); biomeMap =
-             * new BiomeImageMap(new File(plugin.getDataFolder(), fileName), xOffset,
-             * zOffset); }
-             */
-
-            drawDebugMaps = configSection.getBoolean("image-maps.draw-debug-maps");
-            if (drawDebugMaps) {
-                int width = configSection.getInt("image-maps.width");
-                int height = configSection.getInt("image-maps.height");
-
-                maxHeightMap = new ImageMap(width, height, xOffset, zOffset);
-                finalHeightMap = new ImageMap(width, height, xOffset, zOffset);
-                minHeightMap = new ImageMap(width, height, xOffset, zOffset);
-                continentMap = new ImageMap(width, height, xOffset, zOffset);
-                flyingHillsMap = new ImageMap(width, height, xOffset, zOffset);
+    private static final class WorldContext {
+        /** Generates the noise layers and heights for each column. */
+        private final YaranHeightmapGenerator heightmapGenerator;
+        /** Height data generated in advance, by chunk, until the chunk is generated. */
+        private final Map<Long, HeightData[]> preparedChunks = new ConcurrentHashMap<>();
+
+        private WorldContext(Settings settings, long seed) {
+            heightmapGenerator = new YaranHeightmapGenerator(seed, settings.finalHeightConfig,
+                    settings.continentMapConfig, settings.minHeightConfig, settings.maxHeightConfig,
+                    settings.temperatureMapConfig, settings.flyingHillsConfig, settings.fastMath);
+            heightmapGenerator.setTileCache(settings.tileCache);
+            // Skip flying hills noise where it can't place blocks, unless it's drawn to the debug maps
+            if (!settings.drawDebugMaps) {
+                heightmapGenerator.setFlyingHillsCutoff(FLYING_HILLS_MIN_THRESHOLD);
+            }
+
+            if (settings.diskCacheFolder != null) {
+                synchronized (settings.diskCaches) {
+                    if (!settings.closed) {
+                        HeightfieldDiskCache diskCache = new HeightfieldDiskCache(settings.diskCacheFolder, seed,
+                                settings.settingsKey, YaranHeightmapGenerator.LAYER_COUNT);
+                        settings.diskCaches.add(diskCache);
+                        heightmapGenerator.setDiskCache(diskCache);
+                    }
+                }
             }
         }
     }
 
     /**
-     * If debug maps are enabled, saves the resulting maps to the specified folder.
+     * Generates the noise for a chunk in advance, so the chunk can be generated
+     * quickly later, such as during pregeneration. This can be called from any
+     * thread.
+     * <p>
+     * Prepared chunks are kept until the chunk is generated, or until
+     * {@link #clearPreparedChunks(World)} is called.
      *
-     * Note that the maps will only contain data after the world has been generated.
+     * @param world  the world the chunk is in, which must use this generator
+     * @param chunkX the X coordinate of the chunk
+     * @param chunkZ the Z coordinate of the chunk
+     */
+    public static void prepareChunk(World world, int chunkX, int chunkZ) {
+        WorldContext context = settings.getWorldContext(world.getSeed());
+        HeightData[] heightData = context.heightmapGenerator.getHeightData(chunkX * 16, chunkZ * 16, 16, 16);
+        context.preparedChunks.put(getChunkKey(chunkX, chunkZ), heightData);
+    }
+
+    /**
+     * Discards any chunks prepared in advance for a world, that haven't been
+     * generated yet.
      *
-     * @param folder the folder to save the image files to
+     * @param world the world to discard prepared chunks for
+     */
+    public static void clearPreparedChunks(World world) {
+        settings.getWorldContext(world.getSeed()).preparedChunks.clear();
+    }
+
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the cache of generated noise layers, or null if the cache is
+     *         disabled
      */
-    public static void saveDebugMaps(File folder) {
-        maxHeightMap.saveImageFile(new File(folder, "debug_map_max_height.png"));
-        finalHeightMap.saveImageFile(new File(folder, "debug_map_final_height.png"));
-        minHeightMap.saveImageFile(new File(folder, "debug_map_min_height.png"));
-        continentMap.saveImageFile(new File(folder, "debug_map_continent.png"));
-        flyingHillsMap.saveImageFile(new File(folder, "debug_map_flying_hills.png"));
+    public static NoiseTileCache getTileCache() {
+        return settings.tileCache;
     }
 
     @Override
     public ChunkData generateChunkData(World world, Random random, int chunkX, int chunkZ, BiomeGrid biome) {
         ChunkData chunk = createChunkData(world);
 
-        YaranHeightmapGenerator generator = new YaranHeightmapGenerator(world.getSeed(), finalHeightConfig,
-                continentMapConfig, minHeightConfig, maxHeightConfig);
+        // Use the same settings for the whole chunk, even if the plugin is reloaded
+        Settings settings = YaranChunkGenerator.settings;
+        WorldContext context = settings.getWorldContext(world.getSeed());
+
+        // Use noise to calculate terrain height, temperature, and flying hills, for the whole chunk at once
+        HeightData[] chunkHeightData = context.preparedChunks.remove(getChunkKey(chunkX, chunkZ));
+        if (chunkHeightData == null) {
+            chunkHeightData = context.heightmapGenerator.getHeightData(chunkX * 16, chunkZ * 16, 16, 16);
+        }
+
+        // Blocks are collected as runs in each column, then placed at once
+        ColumnBuilder columns = new ColumnBuilder();
+
+        // Biomes are collected for each column, then written once per biome cell
+        BiomeCells biomeCells = new BiomeCells();
+
+        // Debug map pixels are collected for the whole chunk, then drawn at once
+        DebugPixels debugPixels = settings.drawDebugMaps ? new DebugPixels() : null;
 
         for (int x = 0; x < 16; x++) {
             for (int z = 0; z < 16; z++) {
@@ -204,20 +445,20 @@ public class YaranChunkGenerator extends ChunkGenerator {
                 int worldX = chunkX * 16 + x;
                 int worldZ = chunkZ * 16 + z;
 
-                // Use noise to calculate terrain height
-                HeightData heightData = generator.getHeightData(worldX, worldZ);
+                HeightData heightData = chunkHeightData[z * 16 + x];
 
                 // Debug mode - show min height, max height, and final height
-                if (debugMode) {
-                    chunk.setBlock(x, heightData.maxHeight, z, Material.GLASS);
-                    chunk.setBlock(x, heightData.finalHeight, z, Material.GRASS_BLOCK);
-                    chunk.setBlock(x, heightData.minHeight, z, Material.STONE);
-                    chunk.setBlock(x, 0, z, Material.BEDROCK);
+                if (settings.debugMode) {
+                    columns.setBlock(x, heightData.maxHeight, z, Material.GLASS);
+                    columns.setBlock(x, heightData.finalHeight, z, Material.GRASS_BLOCK);
+                    columns.setBlock(x, heightData.minHeight, z, Material.STONE);
+                    columns.setBlock(x, 0, z, Material.BEDROCK);
                 }
 
                 // Place blocks
                 else {
-                    chunk = generateChunkBlocks(world.getSeed(), chunk, biome, x, z, worldX, worldZ, heightData);
+                    generateChunkBlocks(settings, debugPixels, world.getSeed(), columns, biomeCells, x, z, worldX,
+                            worldZ, heightData);
                 }
 
                 // Debug mode - draw min height, max height, and final height to image maps
@@ -247,62 +488,234 @@ public class YaranChunkGenerator extends ChunkGenerator {
             }
         }
 
+        if (debugPixels != null) {
+            debugPixels.draw(settings, chunkX * 16, chunkZ * 16);
+        }
+
+        columns.build(chunk);
+        biomeCells.apply(biome, settings.biomeSampling, 256);
         return chunk;
     }
 
+    /** The debug map layers, and their file names and colors. */
+    private static final int DEBUG_MAX_HEIGHT = 0;
+    private static final int DEBUG_FINAL_HEIGHT = 1;
+    private static final int DEBUG_MIN_HEIGHT = 2;
+    private static final int DEBUG_CONTINENT = 3;
+    private static final int DEBUG_FLYING_HILLS = 4;
+    private static final String[] DEBUG_MAP_NAMES = { "debug_map_max_height.png", "debug_map_final_height.png",
+            "debug_map_min_height.png", "debug_map_continent.png", "debug_map_flying_hills.png" };
+    private static final int[] DEBUG_MAP_COLORS = { DebugMapStore.BLUE, DebugMapStore.GREEN, DebugMapStore.RED,
+            DebugMapStore.GREY, DebugMapStore.GREY };
+
     /**
-     * Generates the blocks in a chunk, using chunk X and Z values, and the terrain
-     * height.
-     * <p>
-     * This only generates using the height provided - overhangs and other cutouts
-     * are ignored.
+     * The debug map pixels for a chunk. Each chunk collects its own pixels, so
+     * chunks generated on different threads don't draw to the maps at the same
+     * time.
+     */
+    private static final class DebugPixels {
+        /** The 8-bit value of each pixel for each layer, or null if not drawn. */
+        private final byte[][] layers = new byte[DEBUG_MAP_NAMES.length][];
+
+        private DebugPixels() {
+            layers[DEBUG_MAX_HEIGHT] = new byte[16 * 16];
+            layers[DEBUG_FINAL_HEIGHT] = new byte[16 * 16];
+            layers[DEBUG_MIN_HEIGHT] = new byte[16 * 16];
+            layers[DEBUG_CONTINENT] = new byte[16 * 16];
+        }
+
+        /**
+         * Sets a pixel on a layer to a block height, clamped to 0-255.
+         */
+        private void setHeight(int layer, int index, int height) {
+            layers[layer][index] = (byte) Math.max(0, Math.min(255, height));
+        }
+
+        /**
+         * Sets a pixel on a layer to a noise value in the range 0..1, creating the
+         * layer if needed.
+         */
+        private void setNoise(int layer, int index, double noise) {
+            if (layers[layer] == null) {
+                layers[layer] = new byte[16 * 16];
+            }
+            layers[layer][index] = (byte) (int) (Math.max(0, Math.min(1, noise)) * 255 + 0.5);
+        }
+
+        /**
+         * Draws the pixels onto the debug maps.
+         */
+        private void draw(Settings settings, int originX, int originZ) {
+            settings.debugMaps.setPixels(originX, originZ, 16, 16, layers);
+        }
+    }
+
+    /**
+     * Generates the blocks in a column, as runs of blocks, and sets the column's
+     * biome.
      */
-    private ChunkData generateChunkBlocks(ChunkData chunk, int x, int height, int z) {
-        if (height > 247) {
-            for (int i = height; i > 0; i--) {
-                // Material blockToPlace = (i > 247) ? Material.GOLD_BLOCK : Material.STONE;
-                Material blockToPlace = Material.STONE;
-                chunk.setBlock(x, i, z, blockToPlace);
+    private void generateChunkBlocks(Settings settings, DebugPixels debugPixels, long seed, ColumnBuilder columns,
+            BiomeCells biomeCells, int x, int z, int worldX, int worldZ, HeightData heightData) {
+
+        //// HEIGHT VALUES
+        int[] terrainHeights = getTerrainHeights(heightData, settings.useContinentGenerator, settings.fastMath);
+        int minHeight = terrainHeights[0];
+        int maxHeight = terrainHeights[1];
+        int finalHeight = terrainHeights[2];
+
+        int heightDifference = finalHeight - minHeight;
+
+        //// BIOME
+        biomeCells.setBiome(x, z, getBiome(heightData, terrainHeights));
+
+        // Debug mode - draw min height, max height, and final height to image maps
+        if (debugPixels != null) {
+            debugPixels.setHeight(DEBUG_MAX_HEIGHT, z * 16 + x, maxHeight);
+            debugPixels.setHeight(DEBUG_FINAL_HEIGHT, z * 16 + x, finalHeight);
+            debugPixels.setHeight(DEBUG_MIN_HEIGHT, z * 16 + x, minHeight);
+            debugPixels.setNoise(DEBUG_CONTINENT, z * 16 + x, heightData.continentNoise);
+        }
+
+        //// TERRAIN
+        // Water
+        if (finalHeight <= 63) {
+            // Beach
+            if (finalHeight >= 60) {
+                // Sand on beaches
+                columns.setRun(x, z, finalHeight - 3, finalHeight + 1, Material.SAND);
+
             }
-        } else if (height > 90) {
-            for (int i = height; i > 0; i--) {
-                Material blockToPlace = (i >= height - 3 && new Random().nextBoolean()) ? Material.DIRT
-                        : new Random().nextBoolean() ? Material.STONE : Material.GRAVEL;
-                chunk.setBlock(x, i, z, blockToPlace);
+
+            // Ocean
+            else {
+                // Gravel seabed
+                columns.setRun(x, z, finalHeight - 3, finalHeight + 1, Material.GRAVEL);
+            }
+
+            // Stone below
+            columns.setRun(x, z, 1, finalHeight - 3, Material.STONE);
+
+            // Water
+            columns.setRun(x, z, finalHeight + 1, 63, Material.WATER);
+        }
+
+        // Flat land
+        else if (heightDifference < 10) {
+            // Grass
+            columns.setBlock(x, finalHeight, z, Material.GRASS_BLOCK);
+
+            // Dirt
+            columns.setRun(x, z, finalHeight - 3, finalHeight, Material.DIRT);
+
+            // Stone
+            columns.setRun(x, z, 1, finalHeight - 3, Material.STONE);
+        }
+
+        // Mountains
+        else {
+            // Top ground cover
+            // Random chance, the same for every block in the column
+            double randomValue = PositionalRandom.getDouble(seed, worldX, 0, worldZ, SALT_GROUND_COVER);
+            // 50% chance of grass/dirt, 25% chance of gravel, 25% chance of stone
+            if (randomValue > 0.5) {
+                columns.setBlock(x, finalHeight, z, Material.GRASS_BLOCK);
+                columns.setRun(x, z, finalHeight - 3, finalHeight, Material.DIRT);
+            } else {
+                Material blockToPlace = randomValue > 0.25 ? Material.GRAVEL : Material.STONE;
+                columns.setRun(x, z, finalHeight - 3, finalHeight + 1, blockToPlace);
             }
-        } else if (height < 63) {
-            for (int i = height; i > 0; i--) {
-                // Material blockToPlace = (i > 43) ? Material.LAPIS_BLOCK : Material.STONE;
-                Material blockToPlace = Material.STONE;
-                if (i == 62)
-                    blockToPlace = Material.SAND;
-                chunk.setBlock(x, i, z, blockToPlace);
+
+            // Stone
+            columns.setRun(x, z, 1, finalHeight - 3, Material.STONE);
+        }
+
+        //// OTHER FEATURES
+        // Flying Hills
+        // Only generated by the heightmap generator when enabled
+        if (!Double.isNaN(heightData.flyingHillsNoise)) {
+            double flyingHillsNoise = heightData.flyingHillsNoise;
+            if (debugPixels != null) {
+                debugPixels.setNoise(DEBUG_FLYING_HILLS, z * 16 + x, flyingHillsNoise);
             }
-            for (int i = 62; i > height; i--) {
-                chunk.setBlock(x, i, z, Material.WATER);
+            // Most columns are below every threshold
+            if (flyingHillsNoise > FLYING_HILLS_MIN_THRESHOLD) {
+                for (int offset = 0; offset < FLYING_HILLS_HEIGHT; offset++) {
+                    if (flyingHillsNoise > FLYING_HILLS_THRESHOLDS[offset]) {
+                        int y = finalHeight + offset;
+                        if (offset < FLYING_HILLS_HEIGHT - 2) {
+                            columns.setBlock(x, y, z, Material.STONE);
+                        } else {
+                            columns.setBlock(x, y, z, Material.DIRT);
+                        }
+                    }
+                }
             }
-        } else {
-            chunk.setBlock(x, height, z, Material.GRASS_BLOCK);
-            chunk.setBlock(x, height - 1, z, Material.DIRT);
-            for (int i = height - 2; i > 0; i--)
-                chunk.setBlock(x, i, z, Material.STONE);
         }
-        chunk.setBlock(x, 0, z, Material.BEDROCK);
 
-        return chunk;
+        // Bedrock floor
+        columns.setBlock(x, 0, z, Material.BEDROCK);
     }
 
-    private ChunkData generateChunkBlocks(long seed, ChunkData chunk, BiomeGrid biome, int x, int z, int worldX,
-            int worldZ, HeightData heightData) {
-
-        //// TEMPERATURE
+    /**
+     * Classifies the biome of a column, from its temperature and terrain heights:
+     * water columns are beach or ocean, flat land is taiga or tundra, and
+     * everything else is mountains.
+     *
+     * @param heightData     the height data generated for the column
+     * @param terrainHeights the minimum, maximum, and final height of the column,
+     *                       from {@link #getTerrainHeights(HeightData, boolean,
+     *                       boolean)}
+     * @return the biome of the column
+     */
+    public static Biome getBiome(HeightData heightData, int[] terrainHeights) {
         // Currently designed around cold maps
-        long temperatureSeed = seed * "TEMPERATURE".hashCode();
-        YaranNoiseGenerator temperatureMap = new YaranNoiseGenerator(temperatureMapConfig,
-                new SimplexNoiseGenerator(temperatureSeed));
-        double temperature = Math.max(temperatureMap.getNoise(worldX, worldZ), 0.6);
+        double temperature = Math.max(heightData.temperatureNoise, 0.6);
 
-        //// HEIGHT VALUES
+        int minHeight = terrainHeights[0];
+        int finalHeight = terrainHeights[2];
+
+        // Water
+        if (finalHeight <= 63) {
+            if (finalHeight >= 60) {
+                return temperature > 0.5 ? Biome.BEACH : Biome.SNOWY_BEACH;
+            }
+            return temperature > 0.7 ? Biome.OCEAN : temperature > 0.3 ? Biome.COLD_OCEAN : Biome.FROZEN_OCEAN;
+        }
+
+        // Flat land
+        if (finalHeight - minHeight < 10) {
+            if (temperature > 0.75) {
+                return Biome.GIANT_SPRUCE_TAIGA;
+            } else if (temperature > 0.5) {
+                return Biome.TAIGA;
+            } else if (temperature > 0.25) {
+                return Biome.SNOWY_TAIGA;
+            }
+            return Biome.SNOWY_TUNDRA;
+        }
+
+        // Mountains
+        if (temperature > 0.75) {
+            return Biome.MOUNTAINS;
+        } else if (temperature > 0.5) {
+            return Biome.WOODED_MOUNTAINS;
+        } else if (temperature > 0.25) {
+            return Biome.SNOWY_TAIGA_MOUNTAINS;
+        }
+        return Biome.SNOWY_MOUNTAINS;
+    }
+
+    /**
+     * Calculates the terrain heights for a column. When the continent generator is
+     * enabled, the heights are adjusted relative to the water level.
+     *
+     * @param heightData            the height data generated for the column
+     * @param useContinentGenerator whether to use the continent generator
+     * @param fastMath              whether to use fast approximations of the
+     *                              sigmoid function
+     * @return the minimum height, maximum height, and final height, in that order
+     */
+    public static int[] getTerrainHeights(HeightData heightData, boolean useContinentGenerator, boolean fastMath) {
         int minHeight = heightData.minHeight;
         int maxHeight = heightData.maxHeight;
         int finalHeight = heightData.finalHeight;
@@ -326,7 +739,7 @@ public class YaranChunkGenerator extends ChunkGenerator {
                 // minHeightNoise = Math.pow(minHeightNoise, exponent);
 
                 // Sigmoid attempt
-                minHeightNoise *= YaranMath.sigmoid(absoluteContinentValue, Math.E * 2);
+                minHeightNoise *= sigmoid(absoluteContinentValue, Math.E * 2, fastMath);
             }
 
             // Pull maximum height towards the water level when near a coastline
@@ -338,7 +751,7 @@ public class YaranChunkGenerator extends ChunkGenerator {
                 // maxHeightNoise = Math.pow(maxHeightNoise, exponent);
 
                 // Sigmoid attempt
-                maxHeightNoise *= YaranMath.sigmoid(absoluteContinentValue, Math.E * 4);
+                maxHeightNoise *= sigmoid(absoluteContinentValue, Math.E * 4, fastMath);
             }
 
             double finalHeightNoise = heightData.finalHeightNoise;
@@ -365,168 +778,58 @@ public class YaranChunkGenerator extends ChunkGenerator {
             finalHeight = YaranMath.rescaleToInt(finalHeightNoise, 0, 1, minHeight, maxHeight);
         }
 
-        int heightDifference = finalHeight - minHeight;
-
-        // Debug mode - draw min height, max height, and final height to image maps
-        if (drawDebugMaps) {
-            maxHeightMap.setPixelColorFromGame(worldX, worldZ, new Color(0, 0, maxHeight));
-            finalHeightMap.setPixelColorFromGame(worldX, worldZ, new Color(0, finalHeight, 0));
-            minHeightMap.setPixelColorFromGame(worldX, worldZ, new Color(minHeight, 0, 0));
-
-            float continentColorValue = (float) heightData.continentNoise;
-            continentMap.setPixelColorFromGame(worldX, worldZ,
-                    new Color(continentColorValue, continentColorValue, continentColorValue));
-        }
-
-        //// TERRAIN
-        // Water
-        if (finalHeight <= 63) {
-            // Beach
-            if (finalHeight >= 60) {
-                // Set beach biome
-                Biome beachBiome = temperature > 0.5 ? Biome.BEACH : Biome.SNOWY_BEACH;
-                for (int y = 0; y < 256; y++) {
-                    biome.setBiome(x, y, z, beachBiome);
-                }
-
-                // Sand on beaches
-                for (int y = finalHeight; y > finalHeight - 4; y--) {
-                    chunk.setBlock(x, y, z, Material.SAND);
-                }
-
-            }
-
-            // Ocean
-            else {
-                // Set ocean biome
-                Biome oceanBiome = temperature > 0.7 ? Biome.OCEAN
-                        : temperature > 0.3 ? Biome.COLD_OCEAN : Biome.FROZEN_OCEAN;
-                for (int y = 0; y < 256; y++) {
-                    biome.setBiome(x, y, z, oceanBiome);
-                }
-
-                // Gravel seabed
-                for (int y = finalHeight; y > finalHeight - 4; y--) {
-                    chunk.setBlock(x, y, z, Material.GRAVEL);
-                }
-            }
-
-            // Stone below
-            for (int y = finalHeight - 4; y > 0; y--) {
-                chunk.setBlock(x, y, z, Material.STONE);
-            }
-
-            // Water
-            for (int y = 62; y > finalHeight; y--) {
-                chunk.setBlock(x, y, z, Material.WATER);
-            }
-        }
-
-        // Flat land
-        else if (heightDifference < 10) {
-            // Set land biome
-            Biome landBiome;
-            if (temperature > 0.75) {
-                landBiome = Biome.GIANT_SPRUCE_TAIGA;
-            } else if (temperature > 0.5) {
-                landBiome = Biome.TAIGA;
-            } else if (temperature > 0.25) {
-                landBiome = Biome.SNOWY_TAIGA;
-            } else {
-                landBiome = Biome.SNOWY_TUNDRA;
-            }
-            for (int y = 0; y < 256; y++) {
-                biome.setBiome(x, y, z, landBiome);
-            }
-
-            // Grass
-            chunk.setBlock(x, finalHeight, z, Material.GRASS_BLOCK);
-
-            // Dirt
-            for (int y = finalHeight - 1; y > finalHeight - 4; y--) {
-                chunk.setBlock(x, y, z, Material.DIRT);
-            }
-
-            // Stone
-            for (int y = finalHeight - 4; y > 0; y--) {
-                chunk.setBlock(x, y, z, Material.STONE);
-            }
-        }
-
-        // Mountains
-        else {
-            // Set mountain biome
-            Biome mountainBiome;
-            if (temperature > 0.75) {
-                mountainBiome = Biome.MOUNTAINS;
-            } else if (temperature > 0.5) {
-                mountainBiome = Biome.WOODED_MOUNTAINS;
-            } else if (temperature > 0.25) {
-                mountainBiome = Biome.SNOWY_TAIGA_MOUNTAINS;
-            } else {
-                mountainBiome = Biome.SNOWY_MOUNTAINS;
-            }
-            for (int y = 0; y < 256; y++) {
-                biome.setBiome(x, y, z, mountainBiome);
-            }
-
-            // Top ground cover
-            for (int y = finalHeight; y > finalHeight - 4; y--) {
-                // Random chance
-                Random random = new Random(seed * worldX * worldZ);
-                double randomValue = random.nextDouble();
-                Material blockToPlace;
-                // 50% chance of grass/dirt, 25% chance of gravel, 25% chance of stone
-                if (randomValue > 0.5) {
-                    blockToPlace = (y == finalHeight) ? Material.GRASS_BLOCK : Material.DIRT;
-                } else if (randomValue > 0.25) {
-                    blockToPlace = Material.GRAVEL;
-                } else {
-                    blockToPlace = Material.STONE;
-                }
-
-                chunk.setBlock(x, y, z, blockToPlace);
-            }
+        return new int[] { minHeight, maxHeight, finalHeight };
+    }
 
-            // Stone
-            for (int y = finalHeight - 4; y > 0; y--) {
-                chunk.setBlock(x, y, z, Material.STONE);
-            }
-        }
+    /**
+     * Adjusts a value using the sigmoid function, or its fast approximation.
+     */
+    private static double sigmoid(double x, double steepness, boolean fastMath) {
+        return fastMath ? YaranMath.fastSigmoid(x, steepness) : YaranMath.sigmoid(x, steepness);
+    }
 
-        //// OTHER FEATURES
-        // Flying Hills
-        if (flyingHillsConfig.getBoolean("enabled")) {
-            long flyingHillsSeed = seed * "FLYING_HILLS".hashCode();
-            YaranNoiseGenerator flyingHillsGenerator = new YaranNoiseGenerator(flyingHillsConfig,
-                    new SimplexNoiseGenerator(flyingHillsSeed));
-            double flyingHillsNoise = flyingHillsGenerator.getNoise(worldX, worldZ);
-            if (drawDebugMaps) {
-                float colorValue = (float) flyingHillsNoise;
-                flyingHillsMap.setPixelColorFromGame(worldX, worldZ, new Color(colorValue, colorValue, colorValue));
-            }
-            for (int y = finalHeight; y < finalHeight + 50; y++) {
-                double yPercentage = YaranMath.rescale(y, finalHeight, finalHeight + 50, 0, 1);
-                // double threshold = 0.5 + 0.5 * Math.pow(yPercentage, 2);
-                double l = 1.25 * yPercentage - 1;
-                double threshold = 2 * (0.25 + Math.pow(l, 3) + Math.pow(l, 2));
-
-                if (flyingHillsNoise > threshold) {
-                    if (y < finalHeight + 48) {
-                        chunk.setBlock(x, y, z, Material.STONE);
-                    } else if (y < finalHeight + 50) {
-                        chunk.setBlock(x, y, z, Material.DIRT);
-                    } else {
-                        chunk.setBlock(x, y, z, Material.GRASS_BLOCK);
-                    }
+    /**
+     * Compares the terrain generated with and without fast math, using the current
+     * settings, in a square area of columns.
+     *
+     * @param seed    the world seed
+     * @param centreX the X coordinate of the centre of the area
+     * @param centreZ the Z coordinate of the centre of the area
+     * @param radius  the distance from the centre to each edge of the area, at
+     *                least 1
+     * @return the number of columns whose final height changed, the total number
+     *         of columns compared, and the largest height difference, in that
+     *         order
+     */
+    public static long[] validateFastMath(long seed, int centreX, int centreZ, int radius) {
+        Settings settings = YaranChunkGenerator.settings;
+        YaranHeightmapGenerator exactGenerator = new YaranHeightmapGenerator(seed, settings.finalHeightConfig,
+                settings.continentMapConfig, settings.minHeightConfig, settings.maxHeightConfig, false);
+        YaranHeightmapGenerator fastGenerator = new YaranHeightmapGenerator(seed, settings.finalHeightConfig,
+                settings.continentMapConfig, settings.minHeightConfig, settings.maxHeightConfig, true);
+
+        long changedColumns = 0;
+        int maxDifference = 0;
+        int size = radius * 2;
+
+        // Compare one row at a time, to limit memory use
+        for (int z = 0; z < size; z++) {
+            int worldZ = centreZ - radius + z;
+            HeightData[] exactRow = exactGenerator.getHeightData(centreX - radius, worldZ, size, 1);
+            HeightData[] fastRow = fastGenerator.getHeightData(centreX - radius, worldZ, size, 1);
+
+            for (int x = 0; x < size; x++) {
+                int exactHeight = getTerrainHeights(exactRow[x], settings.useContinentGenerator, false)[2];
+                int fastHeight = getTerrainHeights(fastRow[x], settings.useContinentGenerator, true)[2];
+                int difference = Math.abs(exactHeight - fastHeight);
+                if (difference != 0) {
+                    changedColumns++;
+                    maxDifference = Math.max(maxDifference, difference);
                 }
             }
         }
 
-        // Bedrock floor
-        chunk.setBlock(x, 0, z, Material.BEDROCK);
-
-        return chunk;
+        return new long[] { changedColumns, (long) size * size, maxDifference };
     }
 
     /**
@@ -589,6 +892,11 @@ public class YaranChunkGenerator extends ChunkGenerator {
      * return chunk; }
      */
 
+    @Override
+    public boolean isParallelCapable() {
+        return true;
+    }
+
     @Override
     public boolean shouldGenerateCaves() {
         return true;
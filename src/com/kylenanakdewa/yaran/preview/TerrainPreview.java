@@ -0,0 +1,244 @@
+package com.kylenanakdewa.yaran.preview;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageIO;
+
+import com.kylenanakdewa.yaran.generation.YaranHeightmapGenerator;
+import com.kylenanakdewa.yaran.generation.YaranHeightmapGenerator.HeightData;
+import com.kylenanakdewa.yaran.generators.YaranChunkGenerator;
+
+import org.bukkit.block.Biome;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.InvalidConfigurationException;
+import org.bukkit.configuration.file.YamlConfiguration;
+
+/**
+ * Renders a preview of Yaran terrain to image files, without a server, so the
+ * yaran-new settings can be tuned without generating real chunks.
+ * <p>
+ * The preview uses the same noise, heights, and biomes as the chunk generator.
+ * The area is split into tiles, which are rendered in parallel on all cores.
+ * Large areas can be rendered quickly by sampling every few blocks, using the
+ * scale argument.
+ * <p>
+ * This needs the Spigot API on the classpath, for example:
+ * {@code java -cp spigot-api.jar:Yaran.jar com.kylenanakdewa.yaran.preview.TerrainPreview
+ * config.yml 1234 -8192 -8192 16384 16384 8 preview}
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class TerrainPreview {
+
+    /** The width and depth of each tile rendered by a worker, in pixels. */
+    private static final int TILE_SIZE = 256;
+
+    private static final String USAGE = "Usage: TerrainPreview <config.yml> <seed> <x> <z> <width> <depth>"
+            + " [scale] [output folder]";
+
+    private final YaranHeightmapGenerator heightmapGenerator;
+    private final boolean useContinentGenerator;
+    private final boolean fastMath;
+
+    /** The RGB color of each biome, from the biome color mappings. */
+    private final Map<Biome, Integer> biomeColors;
+
+    /** The lowest X and Z block coordinates of the area. */
+    private final int originX;
+    private final int originZ;
+    /** The size of the images, in pixels. */
+    private final int imageWidth;
+    private final int imageHeight;
+    /** The number of blocks along each side of a pixel. */
+    private final int scale;
+
+    /** The pixels of each image, in rows of increasing Z. */
+    private final int[] heightPixels;
+    private final int[] continentPixels;
+    private final int[] temperaturePixels;
+    private final int[] biomePixels;
+
+    private TerrainPreview(ConfigurationSection config, long seed, int originX, int originZ, int width, int depth,
+            int scale) {
+        ConfigurationSection generatorConfig = config.getConfigurationSection("generator-settings.yaran-new");
+        useContinentGenerator = generatorConfig.getBoolean("use-continent-generator");
+        fastMath = generatorConfig.getBoolean("fast-math");
+
+        // Flying hills aren't shown, so they aren't generated
+        heightmapGenerator = new YaranHeightmapGenerator(seed, generatorConfig.getConfigurationSection("final-height"),
+                generatorConfig.getConfigurationSection("continent-map"),
+                generatorConfig.getConfigurationSection("min-height"),
+                generatorConfig.getConfigurationSection("max-height"),
+                generatorConfig.getConfigurationSection("temperature-map"), null, fastMath);
+
+        biomeColors = loadBiomeColors(config.getConfigurationSection("biome-color-mappings"));
+
+        this.originX = originX;
+        this.originZ = originZ;
+        this.scale = scale;
+        imageWidth = (width + scale - 1) / scale;
+        imageHeight = (depth + scale - 1) / scale;
+
+        heightPixels = new int[imageWidth * imageHeight];
+        continentPixels = new int[imageWidth * imageHeight];
+        temperaturePixels = new int[imageWidth * imageHeight];
+        biomePixels = new int[imageWidth * imageHeight];
+    }
+
+    /**
+     * Loads the biome color mappings, in the same format as biome image maps.
+     */
+    private static Map<Biome, Integer> loadBiomeColors(ConfigurationSection config) {
+        Map<Biome, Integer> colors = new EnumMap<Biome, Integer>(Biome.class);
+        if (config == null) {
+            return colors;
+        }
+
+        for (Map.Entry<String, Object> mapping : config.getValues(false).entrySet()) {
+            Color color = Color.decode(mapping.getKey());
+            String biomeName = mapping.getValue().toString().toUpperCase();
+            try {
+                colors.put(Biome.valueOf(biomeName), color.getRGB());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Skipping color mapping for unknown biome " + biomeName);
+            }
+        }
+        return colors;
+    }
+
+    /**
+     * Renders every tile, in parallel.
+     */
+    private void render() {
+        int tilesX = (imageWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesZ = (imageHeight + TILE_SIZE - 1) / TILE_SIZE;
+
+        IntStream.range(0, tilesX * tilesZ).parallel()
+                .forEach(tile -> renderTile(tile % tilesX * TILE_SIZE, tile / tilesX * TILE_SIZE));
+    }
+
+    /**
+     * Renders one tile. Each tile only writes its own pixels, so tiles can be
+     * rendered at the same time.
+     *
+     * @param pixelX the lowest X pixel of the tile
+     * @param pixelZ the lowest Z pixel of the tile
+     */
+    private void renderTile(int pixelX, int pixelZ) {
+        int width = Math.min(TILE_SIZE, imageWidth - pixelX);
+        int depth = Math.min(TILE_SIZE, imageHeight - pixelZ);
+
+        HeightData[] tileHeightData = heightmapGenerator.getHeightData(originX + pixelX * scale,
+                originZ + pixelZ * scale, width, depth, scale);
+
+        for (int z = 0; z < depth; z++) {
+            for (int x = 0; x < width; x++) {
+                HeightData heightData = tileHeightData[z * width + x];
+                int[] terrainHeights = YaranChunkGenerator.getTerrainHeights(heightData, useContinentGenerator,
+                        fastMath);
+                int pixel = (pixelZ + z) * imageWidth + pixelX + x;
+
+                heightPixels[pixel] = getGreyscale(terrainHeights[2] / 255d);
+                continentPixels[pixel] = getGreyscale(heightData.continentNoise);
+                temperaturePixels[pixel] = getGreyscale(heightData.temperatureNoise);
+
+                Integer biomeColor = biomeColors.get(YaranChunkGenerator.getBiome(heightData, terrainHeights));
+                biomePixels[pixel] = biomeColor != null ? biomeColor : Color.BLACK.getRGB();
+            }
+        }
+    }
+
+    /**
+     * Converts a value in the range 0..1 to a greyscale color. Values out of range
+     * are clamped, and NaN is black.
+     */
+    private static int getGreyscale(double value) {
+        if (Double.isNaN(value)) {
+            return Color.BLACK.getRGB();
+        }
+        int grey = (int) Math.round(Math.max(0, Math.min(1, value)) * 255);
+        return 0xFF000000 | grey << 16 | grey << 8 | grey;
+    }
+
+    private void saveImage(int[] pixels, File file) throws IOException {
+        BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, imageWidth, imageHeight, pixels, 0, imageWidth);
+        ImageIO.write(image, "png", file);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 6) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        YamlConfiguration config = new YamlConfiguration();
+        try {
+            config.load(new File(args[0]));
+        } catch (IOException | InvalidConfigurationException e) {
+            System.err.println("Unable to load config: " + e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+        if (!config.isConfigurationSection("generator-settings.yaran-new")) {
+            System.err.println("Config does not contain yaran-new settings.");
+            System.exit(1);
+            return;
+        }
+
+        long seed;
+        int originX;
+        int originZ;
+        int width;
+        int depth;
+        int scale;
+        try {
+            seed = Long.parseLong(args[1]);
+            originX = Integer.parseInt(args[2]);
+            originZ = Integer.parseInt(args[3]);
+            width = Integer.parseInt(args[4]);
+            depth = Integer.parseInt(args[5]);
+            scale = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid number: " + e.getLocalizedMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        if (width < 1 || depth < 1 || scale < 1) {
+            System.err.println("Width, depth, and scale must be at least 1.");
+            System.exit(1);
+            return;
+        }
+
+        File folder = new File(args.length > 7 ? args[7] : ".");
+        folder.mkdirs();
+
+        long startTime = System.nanoTime();
+        TerrainPreview preview = new TerrainPreview(config, seed, originX, originZ, width, depth, scale);
+        preview.render();
+        long renderTime = System.nanoTime() - startTime;
+        System.out.println("Rendered " + preview.imageWidth + "x" + preview.imageHeight + " pixels in "
+                + renderTime / 1000000 + "ms.");
+
+        try {
+            preview.saveImage(preview.heightPixels, new File(folder, "preview_height.png"));
+            preview.saveImage(preview.continentPixels, new File(folder, "preview_continent.png"));
+            preview.saveImage(preview.temperaturePixels, new File(folder, "preview_temperature.png"));
+            preview.saveImage(preview.biomePixels, new File(folder, "preview_biomes.png"));
+        } catch (IOException e) {
+            System.err.println("Unable to save preview image: " + e.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+        System.out.println("Saved preview images to " + folder.getAbsolutePath());
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.kylenanakdewa.yaran.utils;
+
+/**
+ * Random values for block positions, without any state or allocation. Each
+ * value is a hash of the world seed, the block coordinates, and a salt, so the
+ * same position always gets the same value, in any order and on any thread.
+ * <p>
+ * Use a different salt for each decision made at the same position, so the
+ * decisions are independent of each other.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class PositionalRandom {
+    private PositionalRandom() {
+    }
+
+    /**
+     * Gets a random 64-bit hash for a position.
+     *
+     * @param seed the world seed
+     * @param x    the X coordinate
+     * @param y    the Y coordinate
+     * @param z    the Z coordinate
+     * @param salt a value identifying the decision being made
+     * @return the hash, with all 64 bits well mixed
+     */
+    public static long hash(long seed, int x, int y, int z, int salt) {
+        long hash = mix(seed + salt * 0x9E3779B97F4A7C15L);
+        hash = mix(hash + x * 0xC2B2AE3D27D4EB4FL);
+        hash = mix(hash + y * 0x165667B19E3779F9L);
+        return mix(hash + z * 0x27D4EB2F165667C5L);
+    }
+
+    /**
+     * The SplitMix64 finalizer, which spreads every input bit over every output
+     * bit.
+     */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    /**
+     * Gets a random double for a position, in the range 0 (inclusive) to 1
+     * (exclusive).
+     *
+     * @see #hash(long, int, int, int, int)
+     */
+    public static double getDouble(long seed, int x, int y, int z, int salt) {
+        return (hash(seed, x, y, z, salt) >>> 11) * 0x1.0p-53;
+    }
+
+    /**
+     * Gets a random boolean for a position, with an equal chance of true and false.
+     *
+     * @see #hash(long, int, int, int, int)
+     */
+    public static boolean getBoolean(long seed, int x, int y, int z, int salt) {
+        return hash(seed, x, y, z, salt) < 0;
+    }
+
+    /**
+     * Gets a random int for a position, in the range 0 (inclusive) to the bound
+     * (exclusive).
+     *
+     * @param bound the upper bound, which must be positive
+     * @see #hash(long, int, int, int, int)
+     */
+    public static int getInt(long seed, int x, int y, int z, int salt, int bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("bound must be positive");
+        }
+        // Scale the top 32 bits into the range, which is much faster than a modulo
+        return (int) (((hash(seed, x, y, z, salt) >>> 32) * bound) >>> 32);
+    }
+
+}
@@ -9,6 +9,39 @@ public final class YaranMath {
     private YaranMath() {
     }
 
+    /**
+     * The largest sigmoid input covered by the fast sigmoid lookup table. Inputs
+     * outside -limit..limit fall back to the exact function.
+     */
+    private static final double FAST_SIGMOID_LIMIT = 32;
+
+    /**
+     * The number of fast sigmoid lookup table entries per unit of input.
+     */
+    private static final double FAST_SIGMOID_RESOLUTION = 64;
+
+    /**
+     * Precomputed values of the logistic function, from -limit to limit, used for
+     * linear interpolation in {@link #fastSigmoid(double, double)}.
+     */
+    private static final double[] FAST_SIGMOID_TABLE = createFastSigmoidTable();
+
+    private static double[] createFastSigmoidTable() {
+        int size = (int) (2 * FAST_SIGMOID_LIMIT * FAST_SIGMOID_RESOLUTION) + 2;
+        double[] table = new double[size];
+        for (int i = 0; i < size; i++) {
+            double k = i / FAST_SIGMOID_RESOLUTION - FAST_SIGMOID_LIMIT;
+            table[i] = 1 / (1 + Math.pow(Math.E, -k));
+        }
+        return table;
+    }
+
+    /**
+     * The maximum absolute difference between {@link #fastSigmoid(double, double)}
+     * and {@link #sigmoid(double, double)}, for any input.
+     */
+    public static final double FAST_SIGMOID_MAX_ERROR = 3e-6;
+
     /**
      * Adjusts a value in the 0..1 range, using a sigmoid (s-shaped) function, to
      * smoothly push it closer to 0 or 1.
@@ -28,6 +61,32 @@ public final class YaranMath {
         return 1 / (1 + Math.pow(Math.E, -k));
     }
 
+    /**
+     * A fast approximation of {@link #sigmoid(double, double)}, using linear
+     * interpolation in a lookup table instead of an exponential function.
+     * <p>
+     * The result differs from the exact function by at most
+     * {@link #FAST_SIGMOID_MAX_ERROR}.
+     *
+     * @param x         the value to adjust, in the range 0..1 (inclusive)
+     * @param steepness the intensity of the sigmoid function, higher values will
+     *                  flatten values faster, and increase the steepness of the
+     *                  sigmoid curve
+     * @return the adjusted value, in the range 0..1 (inclusive)
+     */
+    public static double fastSigmoid(double x, double steepness) {
+        double k = 2 * steepness * x - steepness;
+        if (k <= -FAST_SIGMOID_LIMIT || k >= FAST_SIGMOID_LIMIT) {
+            return 1 / (1 + Math.exp(-k));
+        }
+
+        double position = (k + FAST_SIGMOID_LIMIT) * FAST_SIGMOID_RESOLUTION;
+        int index = (int) position;
+        double fraction = position - index;
+        double low = FAST_SIGMOID_TABLE[index];
+        return low + fraction * (FAST_SIGMOID_TABLE[index + 1] - low);
+    }
+
     /**
      * A staircase version of the sigmoid function. Creates a smooth curve with
      * multiple levels.
@@ -49,6 +108,57 @@ public final class YaranMath {
         return scale * (sigmoid(xScaled - xScaledFloored, steepness) + xScaledFloored);
     }
 
+    /**
+     * A fast approximation of {@link #staircaseSigmoid(double, double, double)},
+     * using {@link #fastSigmoid(double, double)}.
+     * <p>
+     * The result differs from the exact function by at most scale *
+     * {@link #FAST_SIGMOID_MAX_ERROR}, plus floating point rounding.
+     *
+     * @param x         the value to adjust
+     * @param steepness the intensity of the sigmoid function, higher values will
+     *                  flatten values faster, and increase the steepness of the
+     *                  sigmoid curve
+     * @param scale     the relative scale of the sigmoid curve, compared to the
+     *                  non-staircase version (1 will behave identically, in the
+     *                  range 0..1)
+     * @return the adjusted value
+     */
+    public static double fastStaircaseSigmoid(double x, double steepness, double scale) {
+        double xScaled = x / scale;
+        double xScaledFloored = Math.floor(xScaled);
+        return scale * (fastSigmoid(xScaled - xScaledFloored, steepness) + xScaledFloored);
+    }
+
+    /**
+     * Raises a value to a power. Small non-negative integer exponents are
+     * calculated with repeated multiplication, which is much faster than
+     * {@link Math#pow(double, double)}, and differs from it only by floating point
+     * rounding (a relative error of at most 1e-15). Other exponents use
+     * {@link Math#pow(double, double)}.
+     *
+     * @param x        the base
+     * @param exponent the exponent
+     * @return x raised to the exponent
+     */
+    public static double fastPow(double x, double exponent) {
+        switch ((int) exponent == exponent ? (int) exponent : -1) {
+            case 0:
+                return 1;
+            case 1:
+                return x;
+            case 2:
+                return x * x;
+            case 3:
+                return x * x * x;
+            case 4:
+                double x2 = x * x;
+                return x2 * x2;
+            default:
+                return Math.pow(x, exponent);
+        }
+    }
+
     /**
      * Rescales a value from the range oldMin..oldMax to the range newMin..newMax.
      * All min and max values are inclusive.
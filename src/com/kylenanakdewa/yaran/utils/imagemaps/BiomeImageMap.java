@@ -16,23 +16,33 @@ import org.bukkit.plugin.Plugin;
  *
  * @author Kyle Nanakdewa
  */
-public class BiomeImageMap extends ImageMap {
+public class BiomeImageMap extends PaletteImageMap<Biome> {
 
-    /** The color mappings for biomes. */
-    private static final Map<Color, Biome> BIOME_COLOR_MAPPINGS = loadColorMappings();
+    /** The color mappings for biomes, by RGB color, with the alpha bits set. */
+    private static final Map<Integer, Biome> BIOME_COLOR_MAPPINGS = loadColorMappings();
 
     public BiomeImageMap(File imageFile, int xOffset, int zOffset) {
-        super(imageFile, xOffset, zOffset);
+        super(imageFile, xOffset, zOffset, BiomeImageMap::convertRgbToBiome, "biome");
+    }
+
+    /**
+     * Converts an RGB color, with the alpha bits set, to a biome, using the
+     * biome color mappings.
+     *
+     * @return the biome, or null if the color has no biome
+     */
+    static Biome convertRgbToBiome(int rgb) {
+        return BIOME_COLOR_MAPPINGS.get(rgb);
     }
 
     /**
      * Load the world-color mappings.
      */
-    private static Map<Color, Biome> loadColorMappings() {
+    private static Map<Integer, Biome> loadColorMappings() {
         Plugin plugin = Bukkit.getServer().getPluginManager().getPlugin("Yaran");
         ConfigurationSection config = plugin.getConfig().getConfigurationSection("biome-color-mappings");
 
-        Map<Color, Biome> colorMappings = new HashMap<Color, Biome>();
+        Map<Integer, Biome> colorMappings = new HashMap<Integer, Biome>();
 
         for (Map.Entry<String, Object> mapping : config.getValues(false).entrySet()) {
             Color color = Color.decode(mapping.getKey());
@@ -40,7 +50,7 @@ public class BiomeImageMap extends ImageMap {
             String biomeName = mapping.getValue().toString().toUpperCase();
             Biome biome = Biome.valueOf(biomeName);
 
-            colorMappings.put(color, biome);
+            colorMappings.put(color.getRGB(), biome);
         }
 
         return colorMappings;
@@ -52,9 +62,7 @@ public class BiomeImageMap extends ImageMap {
      * returns null.
      */
     public Biome getPixelBiome(int x, int y) {
-        Color color = getPixelColor(x, y);
-
-        return BIOME_COLOR_MAPPINGS.get(color);
+        return getPixelValue(x, y);
     }
 
     /**
@@ -62,9 +70,7 @@ public class BiomeImageMap extends ImageMap {
      * values. This will use the offset.
      */
     public Biome getPixelBiomeFromGame(int x, int z) {
-        Color color = getPixelColorFromGame(x, z);
-
-        return BIOME_COLOR_MAPPINGS.get(color);
+        return getPixelValueFromGame(x, z);
     }
 
 }
\ No newline at end of file
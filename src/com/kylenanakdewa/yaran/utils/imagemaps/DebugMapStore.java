@@ -0,0 +1,693 @@
+package com.kylenanakdewa.yaran.utils.imagemaps;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.bukkit.Bukkit;
+
+/**
+ * Stores debug maps of generated terrain, over any area of the world, using a
+ * limited amount of memory.
+ * <p>
+ * Each map is a layer of 8-bit values. Values are stored in square tiles, which
+ * are only created when a pixel in the tile is set, so areas that are never
+ * generated use no memory. When too many tiles are in memory, the least
+ * recently used tiles are written to disk, and read back when needed.
+ * <p>
+ * When saved, each layer is drawn as a single color channel, or as greyscale.
+ * Pixels that were never set are transparent. Images are saved from a
+ * {@link Snapshot}, which can be saved on another thread while pixels continue
+ * to be set.
+ * <p>
+ * The store can be used from multiple threads at once. Each store keeps its
+ * tiles on disk in its own folder, so stores sharing a spill folder, such as
+ * the stores before and after a reload, don't affect each other.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class DebugMapStore {
+
+    /** The width and depth of each tile, in pixels. */
+    private static final int TILE_SIZE = 256;
+    private static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+
+    /**
+     * The most pixels in one image of a layer, when saving each layer as one
+     * image. Larger maps are saved as regions instead.
+     */
+    private static final long MAX_WHOLE_IMAGE_PIXELS = 8192L * 8192;
+    /** The region size used when a map is too large to save as one image. */
+    private static final int FALLBACK_REGION_SIZE = 4096;
+
+    /** Draws every layer, when drawing a region of a snapshot. */
+    private static final int ALL_LAYERS = -1;
+
+    /** The memory used by each layer of a tile, including its written flags. */
+    private static final long LAYER_BYTES = TILE_PIXELS + TILE_PIXELS / 8;
+
+    /** Layer color: the value is drawn in the red channel. */
+    public static final int RED = 0xFF0000;
+    /** Layer color: the value is drawn in the green channel. */
+    public static final int GREEN = 0x00FF00;
+    /** Layer color: the value is drawn in the blue channel. */
+    public static final int BLUE = 0x0000FF;
+    /** Layer color: the value is drawn in greyscale. */
+    public static final int GREY = 0xFFFFFF;
+
+    /** The file name of each layer, used when saving images. */
+    private final String[] layerNames;
+
+    /** The color channels each layer is drawn in. */
+    private final int[] layerColors;
+
+    /** The maximum memory used by tiles, in bytes. */
+    private final long maxBytes;
+
+    /**
+     * The folders of stores in this server run that are still in use, which are
+     * kept when a new store cleans up its spill folder.
+     */
+    private static final Set<File> liveFolders = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The folder that this store's tiles are written to when they are removed
+     * from memory, and that its snapshots are stored in.
+     */
+    private final File storeFolder;
+
+    /** The tiles in memory, from least to most recently used. */
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<Long, Tile>(64, 0.75f, true);
+
+    /** The tiles that have been written to disk, and aren't in memory. */
+    private final Set<Long> spilledTiles = new HashSet<Long>();
+
+    /** The memory currently used by tiles, in bytes. */
+    private long usedBytes;
+
+    /** Whether the store has been closed, after which pixels are ignored. */
+    private boolean closed;
+
+    /** The number of snapshots taken, used to name snapshot folders. */
+    private int snapshotCount;
+
+    /** The number of snapshots that haven't been saved yet. */
+    private int unsavedSnapshots;
+
+    /**
+     * Creates an empty store. Any tiles left in the spill folder by earlier
+     * server runs are deleted.
+     *
+     * @param layerNames  the file name of each layer, used when saving images
+     * @param layerColors the color each layer is drawn in, such as {@link #RED}
+     *                    or {@link #GREY}
+     * @param maxBytes    the maximum memory to use for tiles, in bytes
+     * @param spillFolder the folder to write tiles to when they are removed from
+     *                    memory, in a subfolder for this store
+     */
+    public DebugMapStore(String[] layerNames, int[] layerColors, long maxBytes, File spillFolder) {
+        this.layerNames = layerNames.clone();
+        this.layerColors = layerColors.clone();
+        this.maxBytes = maxBytes;
+        storeFolder = new File(spillFolder, "store-" + UUID.randomUUID());
+        liveFolders.add(storeFolder);
+
+        deleteOldFiles(spillFolder);
+    }
+
+    /**
+     * Sets the values of a rectangle of pixels on each layer, using game world X/Z
+     * values, in a single operation.
+     *
+     * @param x           the lowest game world X value of the rectangle
+     * @param z           the lowest game world Z value of the rectangle
+     * @param width       the width of the rectangle
+     * @param depth       the depth of the rectangle
+     * @param layerValues the value of each pixel for each layer, in rows of
+     *                    increasing Z, or null for layers that aren't drawn
+     */
+    public synchronized void setPixels(int x, int z, int width, int depth, byte[][] layerValues) {
+        if (closed) {
+            return;
+        }
+
+        for (int tileZ = Math.floorDiv(z, TILE_SIZE); tileZ <= Math.floorDiv(z + depth - 1, TILE_SIZE); tileZ++) {
+            for (int tileX = Math.floorDiv(x, TILE_SIZE); tileX <= Math.floorDiv(x + width - 1,
+                    TILE_SIZE); tileX++) {
+                Tile tile = getTile(tileX, tileZ);
+                if (tile.shared) {
+                    // The tile is part of a snapshot, so modify a copy instead
+                    tile = tile.copy();
+                    tiles.put(getTileKey(tileX, tileZ), tile);
+                }
+
+                // Copy the part of the rectangle that overlaps the tile
+                int startX = Math.max(x, tileX * TILE_SIZE);
+                int endX = Math.min(x + width, (tileX + 1) * TILE_SIZE);
+                int startZ = Math.max(z, tileZ * TILE_SIZE);
+                int endZ = Math.min(z + depth, (tileZ + 1) * TILE_SIZE);
+                for (int layer = 0; layer < layerValues.length; layer++) {
+                    if (layerValues[layer] == null) {
+                        continue;
+                    }
+                    if (tile.values[layer] == null) {
+                        tile.values[layer] = new byte[TILE_PIXELS];
+                        tile.written[layer] = new long[TILE_PIXELS / 64];
+                        usedBytes += LAYER_BYTES;
+                    }
+                    for (int pixelZ = startZ; pixelZ < endZ; pixelZ++) {
+                        int tileRow = (pixelZ - tileZ * TILE_SIZE) * TILE_SIZE - tileX * TILE_SIZE;
+                        int row = (pixelZ - z) * width - x;
+                        for (int pixelX = startX; pixelX < endX; pixelX++) {
+                            int index = tileRow + pixelX;
+                            tile.values[layer][index] = layerValues[layer][row + pixelX];
+                            tile.written[layer][index >> 6] |= 1L << index;
+                        }
+                    }
+                }
+            }
+        }
+
+        spillTiles();
+    }
+
+    /**
+     * Gets a tile, reading it from disk or creating it if it isn't in memory.
+     */
+    private Tile getTile(int tileX, int tileZ) {
+        long key = getTileKey(tileX, tileZ);
+        Tile tile = tiles.get(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        if (spilledTiles.remove(key)) {
+            File file = getTileFile(tileX, tileZ);
+            tile = readTile(file);
+            file.delete();
+        }
+        if (tile == null) {
+            tile = new Tile(layerNames.length);
+        }
+        tiles.put(key, tile);
+        usedBytes += tile.getBytes();
+        return tile;
+    }
+
+    /**
+     * Writes the least recently used tiles to disk, until the tiles in memory fit
+     * within the memory limit. The most recently used tile is always kept.
+     */
+    private void spillTiles() {
+        Iterator<Entry<Long, Tile>> iterator = tiles.entrySet().iterator();
+        while (usedBytes > maxBytes && tiles.size() > 1) {
+            Entry<Long, Tile> entry = iterator.next();
+            long key = entry.getKey();
+            if (writeTile((int) (key >> 32), (int) key, entry.getValue())) {
+                spilledTiles.add(key);
+            }
+            usedBytes -= entry.getValue().getBytes();
+            iterator.remove();
+        }
+    }
+
+    private static long getTileKey(int tileX, int tileZ) {
+        return ((long) tileX << 32) | (tileZ & 0xFFFFFFFFL);
+    }
+
+    private File getTileFile(int tileX, int tileZ) {
+        return new File(storeFolder, "tile." + tileX + "." + tileZ + ".dat");
+    }
+
+    /**
+     * Writes a tile to disk.
+     *
+     * @return false if the tile couldn't be written, in which case it is lost
+     */
+    private boolean writeTile(int tileX, int tileZ, Tile tile) {
+        storeFolder.mkdirs();
+
+        // Always create a new file, as snapshots may share the old file
+        File file = getTileFile(tileX, tileZ);
+        file.delete();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (int layer = 0; layer < layerNames.length; layer++) {
+                out.writeBoolean(tile.values[layer] != null);
+                if (tile.values[layer] != null) {
+                    out.write(tile.values[layer]);
+                    for (long written : tile.written[layer]) {
+                        out.writeLong(written);
+                    }
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            Bukkit.getLogger().warning("Unable to write debug map tile to disk: " + e.getLocalizedMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads a tile from disk.
+     *
+     * @return the tile, or null if it couldn't be read
+     */
+    private Tile readTile(File file) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            Tile tile = new Tile(layerNames.length);
+            for (int layer = 0; layer < layerNames.length; layer++) {
+                if (in.readBoolean()) {
+                    tile.values[layer] = new byte[TILE_PIXELS];
+                    in.readFully(tile.values[layer]);
+                    tile.written[layer] = new long[TILE_PIXELS / 64];
+                    for (int i = 0; i < tile.written[layer].length; i++) {
+                        tile.written[layer][i] = in.readLong();
+                    }
+                }
+            }
+            return tile;
+        } catch (IOException e) {
+            Bukkit.getLogger().warning("Unable to read debug map tile from disk: " + e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Deletes the tiles and snapshots left in a spill folder by stores from
+     * earlier server runs. Folders of stores that are still in use are kept.
+     */
+    private static void deleteOldFiles(File spillFolder) {
+        File[] files = spillFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory() && (file.getName().startsWith("store-") || file.getName().startsWith("snapshot-"))
+                    && !liveFolders.contains(file)) {
+                deleteFolder(file);
+            } else if (file.getName().startsWith("tile.") && file.getName().endsWith(".dat")) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes this store's folder once it is closed, and every snapshot has been
+     * saved.
+     */
+    private void deleteFolderIfUnused() {
+        if (closed && unsavedSnapshots == 0) {
+            deleteFolder(storeFolder);
+            liveFolders.remove(storeFolder);
+        }
+    }
+
+    private static void deleteFolder(File folder) {
+        if (!folder.exists()) {
+            return;
+        }
+        try {
+            Files.walk(folder.toPath()).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            Bukkit.getLogger().warning("Unable to delete debug map tiles: " + e.getLocalizedMessage());
+        }
+    }
+
+    /**
+     * Takes a snapshot of every layer, which can be saved on another thread. This
+     * is quick, as tiles are only copied if they are changed afterwards, and tiles
+     * on disk are linked rather than copied where the file system allows it.
+     *
+     * @return a snapshot of the current pixels
+     */
+    public synchronized Snapshot snapshot() {
+        Map<Long, Tile> snapshotTiles = new HashMap<Long, Tile>(tiles);
+        for (Tile tile : snapshotTiles.values()) {
+            tile.shared = true;
+        }
+
+        File folder = new File(storeFolder, "snapshot-" + ++snapshotCount);
+        unsavedSnapshots++;
+        Map<Long, File> snapshotFiles = new HashMap<Long, File>();
+        if (!spilledTiles.isEmpty()) {
+            folder.mkdirs();
+        }
+        for (long key : spilledTiles) {
+            File file = getTileFile((int) (key >> 32), (int) key);
+            File link = new File(folder, file.getName());
+            try {
+                try {
+                    Files.createLink(link.toPath(), file.toPath());
+                } catch (UnsupportedOperationException | IOException e) {
+                    Files.copy(file.toPath(), link.toPath());
+                }
+                snapshotFiles.put(key, link);
+            } catch (IOException e) {
+                Bukkit.getLogger().warning("Unable to copy debug map tile for saving: " + e.getLocalizedMessage());
+            }
+        }
+
+        return new Snapshot(snapshotTiles, snapshotFiles, folder);
+    }
+
+    /**
+     * Converts a layer value to an opaque color, in the layer's color channels.
+     */
+    private int getColor(int layer, int value) {
+        int grey = value << 16 | value << 8 | value;
+        return 0xFF000000 | (grey & layerColors[layer]);
+    }
+
+    /**
+     * Discards all tiles, and deletes any tiles on disk. Pixels set afterwards are
+     * ignored. Snapshots that haven't been saved yet can still be saved.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (long key : spilledTiles) {
+            getTileFile((int) (key >> 32), (int) key).delete();
+        }
+        tiles.clear();
+        spilledTiles.clear();
+        usedBytes = 0;
+        deleteFolderIfUnused();
+    }
+
+    /**
+     * Called when a snapshot has been saved, and its folder deleted.
+     */
+    private synchronized void snapshotSaved() {
+        unsavedSnapshots--;
+        deleteFolderIfUnused();
+    }
+
+    /**
+     * @return the number of tiles in memory
+     */
+    public synchronized int getResidentTileCount() {
+        return tiles.size();
+    }
+
+    /**
+     * @return the number of tiles written to disk
+     */
+    public synchronized int getSpilledTileCount() {
+        return spilledTiles.size();
+    }
+
+    /**
+     * Writes an image to a PNG file.
+     *
+     * @param compressionLevel the PNG compression level, from 0 (fastest) to 9
+     *                         (smallest), if supported by the Java version
+     */
+    private static void writePng(BufferedImage image, File file, int compressionLevel) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(1 - Math.max(0, Math.min(9, compressionLevel)) / 9f);
+        }
+
+        // The output stream doesn't truncate existing files
+        file.delete();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * The pixels of every layer at the time the snapshot was taken. Snapshots are
+     * not affected by pixels set afterwards, and can be saved on any thread.
+     */
+    public final class Snapshot {
+        /** The tiles that were in memory. These must not be modified. */
+        private final Map<Long, Tile> snapshotTiles;
+        /** The files of tiles that were on disk. */
+        private final Map<Long, File> snapshotFiles;
+        /** The folder containing the tile files, deleted once saved. */
+        private final File folder;
+
+        private Snapshot(Map<Long, Tile> snapshotTiles, Map<Long, File> snapshotFiles, File folder) {
+            this.snapshotTiles = snapshotTiles;
+            this.snapshotFiles = snapshotFiles;
+            this.folder = folder;
+        }
+
+        /**
+         * Saves each layer that has any pixels set, covering every tile that has
+         * been set. Images are encoded in parallel. The snapshot can't be used
+         * again afterwards.
+         * <p>
+         * When the region size is 0, each layer is saved as one image in the
+         * folder, unless the map is too large, in which case it's saved in regions
+         * of {@value #FALLBACK_REGION_SIZE} blocks. Otherwise, each layer is saved
+         * in its own subfolder, as one image per square region of that many blocks,
+         * aligned to the world origin. The image r.X.Z.png starts at block X *
+         * size, Z * size. Regions with no pixels set are skipped.
+         *
+         * @param folder           the folder to save the image files to
+         * @param compressionLevel the PNG compression level, from 0 (fastest) to 9
+         *                         (smallest)
+         * @param regionSize       the width of each region image, in blocks, or 0
+         *                         for one image per layer
+         * @return the number of image files saved
+         */
+        public int save(File folder, int compressionLevel, int regionSize) {
+            try {
+                Set<Long> keys = new HashSet<Long>(snapshotTiles.keySet());
+                keys.addAll(snapshotFiles.keySet());
+                if (keys.isEmpty()) {
+                    return 0;
+                }
+                return regionSize > 0 ? saveRegions(keys, folder, compressionLevel, regionSize)
+                        : saveWhole(keys, folder, compressionLevel);
+            } finally {
+                deleteFolder(this.folder);
+                snapshotSaved();
+            }
+        }
+
+        /**
+         * Saves each layer as one image, covering every tile. Layers are drawn and
+         * encoded one at a time, so only one image is in memory. If the images
+         * would be too large, saves regions instead.
+         */
+        private int saveWhole(Set<Long> keys, File folder, int compressionLevel) {
+            int minTileX = Integer.MAX_VALUE;
+            int minTileZ = Integer.MAX_VALUE;
+            int maxTileX = Integer.MIN_VALUE;
+            int maxTileZ = Integer.MIN_VALUE;
+            for (long key : keys) {
+                minTileX = Math.min(minTileX, (int) (key >> 32));
+                maxTileX = Math.max(maxTileX, (int) (key >> 32));
+                minTileZ = Math.min(minTileZ, (int) key);
+                maxTileZ = Math.max(maxTileZ, (int) key);
+            }
+
+            long width = ((long) maxTileX - minTileX + 1) * TILE_SIZE;
+            long depth = ((long) maxTileZ - minTileZ + 1) * TILE_SIZE;
+            if (width * depth > MAX_WHOLE_IMAGE_PIXELS) {
+                Bukkit.getLogger().info("[Yaran] Debug maps cover " + width + "x" + depth
+                        + " blocks, which is too large for one image, so they are saved in regions of "
+                        + FALLBACK_REGION_SIZE + " blocks.");
+                return saveRegions(keys, folder, compressionLevel, FALLBACK_REGION_SIZE);
+            }
+
+            int minX = minTileX * TILE_SIZE;
+            int minZ = minTileZ * TILE_SIZE;
+            int saved = 0;
+            for (int layer = 0; layer < layerNames.length; layer++) {
+                BufferedImage image = drawRegion(minX, minZ, (int) width, (int) depth, layer)[layer];
+                if (image != null && saveImage(image, new File(folder, layerNames[layer]), compressionLevel)) {
+                    saved++;
+                }
+            }
+
+            Bukkit.getLogger().info("[Yaran] Debug maps start at X " + minX + ", Z " + minZ + ".");
+            return saved;
+        }
+
+        /**
+         * Saves each layer as one image per region, encoding regions in parallel.
+         */
+        private int saveRegions(Set<Long> keys, File folder, int compressionLevel, int regionSize) {
+            // Find every region that overlaps a tile
+            Set<Long> regionKeys = new HashSet<Long>();
+            for (long key : keys) {
+                int tileX = (int) (key >> 32);
+                int tileZ = (int) key;
+                for (int regionZ = Math.floorDiv(tileZ * TILE_SIZE, regionSize); regionZ <= Math
+                        .floorDiv(tileZ * TILE_SIZE + TILE_SIZE - 1, regionSize); regionZ++) {
+                    for (int regionX = Math.floorDiv(tileX * TILE_SIZE, regionSize); regionX <= Math
+                            .floorDiv(tileX * TILE_SIZE + TILE_SIZE - 1, regionSize); regionX++) {
+                        regionKeys.add(getTileKey(regionX, regionZ));
+                    }
+                }
+            }
+
+            File[] layerFolders = new File[layerNames.length];
+            for (int layer = 0; layer < layerNames.length; layer++) {
+                layerFolders[layer] = new File(folder, layerNames[layer].replaceFirst("\\.png$", ""));
+            }
+
+            AtomicInteger saved = new AtomicInteger();
+            List<Long> regions = new ArrayList<Long>(regionKeys);
+            regions.parallelStream().forEach(key -> {
+                int regionX = (int) (key >> 32);
+                int regionZ = (int) (long) key;
+                BufferedImage[] images = drawRegion(regionX * regionSize, regionZ * regionSize, regionSize,
+                        regionSize, ALL_LAYERS);
+                for (int layer = 0; layer < layerNames.length; layer++) {
+                    if (images[layer] == null) {
+                        continue;
+                    }
+                    layerFolders[layer].mkdirs();
+                    File file = new File(layerFolders[layer], "r." + regionX + "." + regionZ + ".png");
+                    if (saveImage(images[layer], file, compressionLevel)) {
+                        saved.incrementAndGet();
+                    }
+                }
+            });
+            return saved.get();
+        }
+
+        /**
+         * Draws an area of one layer, or every layer, from the tiles that overlap
+         * it.
+         *
+         * @param onlyLayer the layer to draw, or {@link #ALL_LAYERS}
+         * @return the image of each layer, or null for layers that weren't drawn,
+         *         or have no pixels set in the area
+         */
+        private BufferedImage[] drawRegion(int minX, int minZ, int width, int depth, int onlyLayer) {
+            BufferedImage[] images = new BufferedImage[layerNames.length];
+            int[] row = new int[TILE_SIZE];
+
+            for (int tileZ = Math.floorDiv(minZ, TILE_SIZE); tileZ <= Math.floorDiv(minZ + depth - 1,
+                    TILE_SIZE); tileZ++) {
+                for (int tileX = Math.floorDiv(minX, TILE_SIZE); tileX <= Math.floorDiv(minX + width - 1,
+                        TILE_SIZE); tileX++) {
+                    long key = getTileKey(tileX, tileZ);
+                    Tile tile = snapshotTiles.get(key);
+                    if (tile == null && snapshotFiles.containsKey(key)) {
+                        tile = readTile(snapshotFiles.get(key));
+                    }
+                    if (tile == null) {
+                        continue;
+                    }
+
+                    // Draw the part of the tile that overlaps the area
+                    int startX = Math.max(minX, tileX * TILE_SIZE);
+                    int endX = Math.min(minX + width, (tileX + 1) * TILE_SIZE);
+                    int startZ = Math.max(minZ, tileZ * TILE_SIZE);
+                    int endZ = Math.min(minZ + depth, (tileZ + 1) * TILE_SIZE);
+                    for (int layer = 0; layer < layerNames.length; layer++) {
+                        if (tile.values[layer] == null || (onlyLayer != ALL_LAYERS && layer != onlyLayer)) {
+                            continue;
+                        }
+                        for (int z = startZ; z < endZ; z++) {
+                            boolean anySet = false;
+                            for (int x = startX; x < endX; x++) {
+                                int index = (z - tileZ * TILE_SIZE) * TILE_SIZE + x - tileX * TILE_SIZE;
+                                boolean set = (tile.written[layer][index >> 6] & 1L << index) != 0;
+                                row[x - startX] = set ? getColor(layer, tile.values[layer][index] & 0xFF) : 0;
+                                anySet |= set;
+                            }
+                            if (!anySet) {
+                                continue;
+                            }
+                            if (images[layer] == null) {
+                                images[layer] = new BufferedImage(width, depth, BufferedImage.TYPE_INT_ARGB);
+                            }
+                            images[layer].setRGB(startX - minX, z - minZ, endX - startX, 1, row, 0, TILE_SIZE);
+                        }
+                    }
+                }
+            }
+            return images;
+        }
+
+        private boolean saveImage(BufferedImage image, File file, int compressionLevel) {
+            try {
+                writePng(image, file, compressionLevel);
+                return true;
+            } catch (IOException e) {
+                Bukkit.getLogger().severe("Unable to save map image file: " + e.getLocalizedMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A square tile of pixels, with values for each layer.
+     */
+    private static final class Tile {
+        /** The value of each pixel for each layer, or null if the layer isn't set. */
+        private final byte[][] values;
+        /** Flags marking which pixels have been set for each layer. */
+        private final long[][] written;
+        /** Whether the tile is part of a snapshot, and must be copied before it is changed. */
+        private boolean shared;
+
+        private Tile(int layerCount) {
+            values = new byte[layerCount][];
+            written = new long[layerCount][];
+        }
+
+        /**
+         * @return a copy of this tile, which isn't shared
+         */
+        private Tile copy() {
+            Tile copy = new Tile(values.length);
+            for (int layer = 0; layer < values.length; layer++) {
+                if (values[layer] != null) {
+                    copy.values[layer] = values[layer].clone();
+                    copy.written[layer] = written[layer].clone();
+                }
+            }
+            return copy;
+        }
+
+        private long getBytes() {
+            long bytes = 0;
+            for (byte[] layerValues : values) {
+                if (layerValues != null) {
+                    bytes += LAYER_BYTES;
+                }
+            }
+            return bytes;
+        }
+    }
+
+}
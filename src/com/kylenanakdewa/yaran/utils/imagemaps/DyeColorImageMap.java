@@ -11,17 +11,19 @@ import org.bukkit.DyeColor;
  *
  * @author Kyle Nanakdewa
  */
-public class DyeColorImageMap extends ImageMap {
+public class DyeColorImageMap extends PaletteImageMap<DyeColor> {
 
     public DyeColorImageMap(File imageFile, int xOffset, int zOffset) {
-        super(imageFile, xOffset, zOffset);
+        super(imageFile, xOffset, zOffset, DyeColorImageMap::convertRgbToDyeColor, "dye color");
     }
 
     /**
-     * Converts a Java Color object to Bukkit's Color object.
+     * Converts an RGB color to a dye color, using Bukkit's Color object.
+     *
+     * @return the dye color, or null if the color is not a dye color
      */
-    private Color convertJavaColorToBukkitColor(java.awt.Color color) {
-        return Color.fromRGB(color.getRed(), color.getGreen(), color.getBlue());
+    static DyeColor convertRgbToDyeColor(int rgb) {
+        return DyeColor.getByColor(Color.fromRGB(rgb & 0xFFFFFF));
     }
 
     /**
@@ -30,10 +32,7 @@ public class DyeColorImageMap extends ImageMap {
      * returns null.
      */
     public DyeColor getPixelDyeColor(int x, int y) {
-        java.awt.Color javaColor = getPixelColor(x, y);
-        Color color = convertJavaColorToBukkitColor(javaColor);
-
-        return DyeColor.getByColor(color);
+        return getPixelValue(x, y);
     }
 
     /**
@@ -41,10 +40,7 @@ public class DyeColorImageMap extends ImageMap {
      * X/Z values. This will use the offset.
      */
     public DyeColor getPixelDyeColorFromGame(int x, int z) {
-        java.awt.Color javaColor = getPixelColorFromGame(x, z);
-        Color color = convertJavaColorToBukkitColor(javaColor);
-
-        return DyeColor.getByColor(color);
+        return getPixelValueFromGame(x, z);
     }
 
-}
\ No newline at end of file
+}
@@ -1,31 +1,73 @@
 package com.kylenanakdewa.yaran.utils.imagemaps;
 
-import java.awt.Color;
 import java.io.File;
 
 /**
  * Reads a 2D map stored in an image, and allows easy access to greyscale values
  * in the image.
+ * <p>
+ * The greyscale value of every pixel is decoded once, into a byte for each
+ * pixel, so reading a value doesn't need to check the color. The decoded ARGB
+ * pixels are then discarded, and {@link #getRgb(int, int)} returns the grey
+ * color of each level, so pixels that aren't greyscale read as black. Values in
+ * {@link TiledRaster} files are checked when they're read instead.
  *
  * @author Kyle Nanakdewa
  */
 public class GreyscaleImageMap extends ImageMap {
 
+    /**
+     * The greyscale level of each pixel, 0-255, or 0 if it isn't greyscale, or
+     * null if the map is a raster.
+     */
+    private final byte[] levels;
+
     public GreyscaleImageMap(File imageFile, int xOffset, int zOffset) {
         super(imageFile, xOffset, zOffset);
+
+        if (getRaster() != null) {
+            levels = null;
+            return;
+        }
+        // Read the ARGB pixels before the levels are set, since getRgb reads the levels once they are
+        byte[] decodedLevels = new byte[getWidth() * getHeight()];
+        for (int y = 0; y < getHeight(); y++) {
+            for (int x = 0; x < getWidth(); x++) {
+                decodedLevels[y * getWidth() + x] = (byte) convertRgbToLevel(getRgb(x, y));
+            }
+        }
+        levels = decodedLevels;
+        releasePixels();
     }
 
     /**
-     * Converts a color to a greyscale value, in the range 0-1, where 0 is black,
-     * and 1 is white. If the color is not greyscale, returns 0.
+     * Converts an RGB color to a greyscale level, in the range 0-255, where 0 is
+     * black, and 255 is white. If the color is not greyscale, returns 0.
      */
-    private double convertColorToGreyscale(Color color) {
+    static int convertRgbToLevel(int rgb) {
+        int red = rgb >> 16 & 0xFF;
+        int green = rgb >> 8 & 0xFF;
+        int blue = rgb & 0xFF;
+
         // Make sure color is greyscale
-        if (color.equals(Color.BLACK) || color.getRed() != color.getGreen() || color.getRed() != color.getBlue()) {
+        if (red != green || red != blue) {
             return 0;
         }
 
-        return color.getRed() / 255d;
+        return red;
+    }
+
+    /**
+     * Gets the RGB color of a specific pixel on the image, as an int. Decoded maps
+     * return the grey color of the pixel's level, or black if it isn't greyscale.
+     */
+    @Override
+    public int getRgb(int x, int y) {
+        if (levels == null || !isInBounds(x, y)) {
+            return super.getRgb(x, y);
+        }
+        int level = levels[getIndex(x, y)] & 0xFF;
+        return 0xFF000000 | level << 16 | level << 8 | level;
     }
 
     /**
@@ -34,9 +76,12 @@ public class GreyscaleImageMap extends ImageMap {
      * returns 0 for black.
      */
     public double getPixelGreyscale(int x, int y) {
-        Color color = getPixelColor(x, y);
+        if (!isInBounds(x, y)) {
+            return 0;
+        }
 
-        return convertColorToGreyscale(color);
+        int level = levels != null ? levels[getIndex(x, y)] & 0xFF : convertRgbToLevel(getRgb(x, y));
+        return level / 255d;
     }
 
     /**
@@ -44,9 +89,7 @@ public class GreyscaleImageMap extends ImageMap {
      * X/Z values. This will use the offset.
      */
     public double getPixelGreyscaleFromGame(int x, int z) {
-        Color color = getPixelColorFromGame(x, z);
-
-        return convertColorToGreyscale(color);
+        return getPixelGreyscale(x - getXOffset(), z - getZOffset());
     }
 
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ package com.kylenanakdewa.yaran.utils.imagemaps;
 import java.io.File;
 import java.io.IOException;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.awt.Color;
 import javax.imageio.ImageIO;
 
@@ -10,14 +11,47 @@ import org.bukkit.Bukkit;
 
 /**
  * Reads a 2D map stored in an image.
+ * <p>
+ * The image is decoded once, into a flat array of ARGB pixels, which is read
+ * and written directly by {@link #getRgb(int, int)} and
+ * {@link #setRgb(int, int, int)}, without creating any objects. The
+ * {@link Color} methods are kept for convenience.
+ * <p>
+ * Very large maps can be converted to a {@link TiledRaster} file, which is
+ * memory-mapped instead of decoded. Files ending in
+ * {@value TiledRaster#FILE_EXTENSION} are loaded as rasters, and can't be
+ * changed.
+ * <p>
+ * Subclasses that convert the pixels into a smaller form can discard the ARGB
+ * pixels with {@link #releasePixels()}, after which the map can't be changed.
  *
  * @author Kyle Nanakdewa
  */
 public class ImageMap {
 
-    /** The image file to use. */
+    /** The color of out-of-bounds pixels, opaque black. */
+    private static final int OUT_OF_BOUNDS_RGB = 0xFF000000;
+
+    /**
+     * The image file to use, which is always of type TYPE_INT_ARGB, or null if it
+     * couldn't be loaded, or is a raster.
+     */
     private BufferedImage image;
 
+    /**
+     * The ARGB color of each pixel, in rows of increasing Y, backing the image, or
+     * null if the map is a raster, or the pixels were released.
+     */
+    private int[] pixels;
+
+    /** The raster file the map is read from, or null if the image is decoded. */
+    private TiledRaster raster;
+
+    /** The width of the image, in pixels. */
+    private int width;
+    /** The height of the image, in pixels. */
+    private int height;
+
     /** The X offset of the image, relative to the game world. */
     private int xOffset;
     /** The Z offset of the image, relative to the game world. */
@@ -32,13 +66,14 @@ public class ImageMap {
      * @param zOffset the Z offset of the image, relative to the game world
      */
     public ImageMap(int width, int height, int xOffset, int zOffset) {
-        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        setImage(new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB));
         this.xOffset = xOffset;
         this.zOffset = zOffset;
     }
 
     /**
-     * Loads an existing image file.
+     * Loads an existing image file. If the file can't be loaded, the map is empty,
+     * and every pixel is out-of-bounds.
      *
      * @param imageFile the image file to load
      * @param xOffset   the X offset of the image, relative to the game world
@@ -51,22 +86,62 @@ public class ImageMap {
     }
 
     /**
-     * Load the image file.
+     * Load the image file, and decode it into ARGB pixels. Raster files are mapped
+     * instead.
      */
     private void loadImageFile(File file) {
+        if (TiledRaster.isRasterFile(file)) {
+            try {
+                raster = TiledRaster.open(file);
+                width = raster.getWidth();
+                height = raster.getHeight();
+            } catch (IOException e) {
+                Bukkit.getLogger().severe("Unable to load map raster file: " + e.getLocalizedMessage());
+                pixels = new int[0];
+            }
+            return;
+        }
+
+        BufferedImage loaded = null;
         try {
-            image = ImageIO.read(file);
+            loaded = ImageIO.read(file);
         } catch (IOException e) {
             Bukkit.getLogger().severe("Unable to load map image file: " + e.getLocalizedMessage());
         }
+        if (loaded == null) {
+            pixels = new int[0];
+            return;
+        }
+
+        if (loaded.getType() == BufferedImage.TYPE_INT_ARGB) {
+            setImage(loaded);
+        } else {
+            // Convert every pixel to ARGB once, instead of on every read
+            BufferedImage converted = new BufferedImage(loaded.getWidth(), loaded.getHeight(),
+                    BufferedImage.TYPE_INT_ARGB);
+            int[] rgb = loaded.getRGB(0, 0, loaded.getWidth(), loaded.getHeight(), null, 0, loaded.getWidth());
+            converted.setRGB(0, 0, loaded.getWidth(), loaded.getHeight(), rgb, 0, loaded.getWidth());
+            setImage(converted);
+        }
+    }
+
+    private void setImage(BufferedImage image) {
+        this.image = image;
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        width = image.getWidth();
+        height = image.getHeight();
     }
 
     /**
-     * Saves the image to a file.
+     * Saves the image to a file. Maps that couldn't be loaded, are read from a
+     * raster file, or have released their pixels, aren't saved.
      *
      * @param file the file to save the image map to
      */
-    public void saveImageFile(File file) {
+    public synchronized void saveImageFile(File file) {
+        if (image == null) {
+            return;
+        }
         try {
             ImageIO.write(image, "png", file);
         } catch (IOException e) {
@@ -75,15 +150,121 @@ public class ImageMap {
     }
 
     /**
-     * Gets the color of a specific pixel on the image. If the requested pixel is
+     * @return the width of the image, in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the image, in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the X offset of the image, relative to the game world
+     */
+    public int getXOffset() {
+        return xOffset;
+    }
+
+    /**
+     * @return the Z offset of the image, relative to the game world
+     */
+    public int getZOffset() {
+        return zOffset;
+    }
+
+    /**
+     * @return the raster file the map is read from, or null if the image is
+     *         decoded into memory
+     */
+    protected final TiledRaster getRaster() {
+        return raster;
+    }
+
+    /**
+     * Discards the decoded image and its ARGB pixels, once a subclass has converted
+     * them. The subclass must then override {@link #getRgb(int, int)}, and the map
+     * can no longer be changed.
+     */
+    protected final void releasePixels() {
+        if (raster == null) {
+            image = null;
+            pixels = null;
+        }
+    }
+
+    /**
+     * @return whether a pixel is within the image
+     */
+    protected final boolean isInBounds(int x, int y) {
+        // Unsigned comparison catches negative values too
+        return Integer.compareUnsigned(x, width) < 0 && Integer.compareUnsigned(y, height) < 0;
+    }
+
+    /**
+     * Gets the index of a pixel in the pixel array, for images decoded into
+     * memory.
+     *
+     * @return the index, or -1 if the pixel is out-of-bounds
+     */
+    protected final int getIndex(int x, int y) {
+        return isInBounds(x, y) ? y * width + x : -1;
+    }
+
+    /**
+     * Gets the RGB color of a specific pixel on the image, as an int. The alpha
+     * bits are always set, as in {@link Color#getRGB()}. If the requested pixel is
      * out-of-bounds, returns black.
      */
-    public Color getPixelColor(int x, int y) {
-        if (x >= image.getWidth() || y >= image.getHeight() || x < 0 || y < 0) {
-            return Color.BLACK;
+    public int getRgb(int x, int y) {
+        if (!isInBounds(x, y)) {
+            return OUT_OF_BOUNDS_RGB;
         }
+        int rgb = raster != null ? raster.getRgb(x, y) : pixels[y * width + x];
+        return rgb | OUT_OF_BOUNDS_RGB;
+    }
 
-        return new Color(image.getRGB(x, y));
+    /**
+     * Gets the RGB color of a specified pixel on the image, as an int, using game
+     * world X/Z values. This will use the offset.
+     */
+    public int getRgbFromGame(int x, int z) {
+        return getRgb(x - xOffset, z - zOffset);
+    }
+
+    /**
+     * Sets the ARGB color of a specific pixel on the image. If the specified pixel
+     * is out-of-bounds, does nothing.
+     *
+     * @throws UnsupportedOperationException if the map is read from a raster
+     *                                       file, or has released its pixels
+     */
+    public synchronized void setRgb(int x, int y, int argb) {
+        checkWritable();
+        int index = getIndex(x, y);
+        if (index >= 0) {
+            pixels[index] = argb;
+        }
+    }
+
+    /**
+     * Sets the ARGB color of a specified pixel on the image, using game world X/Z
+     * values. This will use the offset.
+     */
+    public void setRgbFromGame(int x, int z, int argb) {
+        setRgb(x - xOffset, z - zOffset, argb);
+    }
+
+    /**
+     * Gets the color of a specific pixel on the image. If the requested pixel is
+     * out-of-bounds, returns black.
+     */
+    public Color getPixelColor(int x, int y) {
+        return new Color(getRgb(x, y));
     }
 
     /**
@@ -91,10 +272,7 @@ public class ImageMap {
      * values. This will use the offset.
      */
     public Color getPixelColorFromGame(int x, int z) {
-        x -= xOffset;
-        z -= zOffset;
-
-        return getPixelColor(x, z);
+        return new Color(getRgbFromGame(x, z));
     }
 
     /**
@@ -102,11 +280,7 @@ public class ImageMap {
      * out-of-bounds, does nothing.
      */
     public void setPixelColor(int x, int y, Color color) {
-        if (x >= image.getWidth() || y >= image.getHeight() || x < 0 || y < 0) {
-            return;
-        }
-
-        image.setRGB(x, y, color.getRGB());
+        setRgb(x, y, color.getRGB());
     }
 
     /**
@@ -114,10 +288,48 @@ public class ImageMap {
      * values. This will use the offset.
      */
     public void setPixelColorFromGame(int x, int z, Color color) {
-        x -= xOffset;
-        z -= zOffset;
+        setRgbFromGame(x, z, color.getRGB());
+    }
 
-        setPixelColor(x, z, color);
+    /**
+     * Sets the colors of a rectangle of pixels on the image, using game world X/Z
+     * values, in a single operation. This will use the offset. Any pixels that are
+     * out-of-bounds are skipped.
+     * <p>
+     * This is safe to call from multiple threads, such as when chunks are
+     * generated in parallel.
+     *
+     * @param x      the lowest game world X value of the rectangle
+     * @param z      the lowest game world Z value of the rectangle
+     * @param width  the width of the rectangle
+     * @param depth  the depth of the rectangle
+     * @param colors the RGB color of each pixel, in rows of increasing Z
+     * @throws UnsupportedOperationException if the map is read from a raster
+     *                                       file, or has released its pixels
+     */
+    public synchronized void setPixelColorsFromGame(int x, int z, int width, int depth, int[] colors) {
+        checkWritable();
+        // Clip the rectangle to the image once, then copy each row
+        int minX = Math.max(0, x - xOffset);
+        int maxX = Math.min(this.width, x - xOffset + width);
+        int minY = Math.max(0, z - zOffset);
+        int maxY = Math.min(height, z - zOffset + depth);
+        if (minX >= maxX) {
+            return;
+        }
+        for (int y = minY; y < maxY; y++) {
+            int row = y - (z - zOffset);
+            System.arraycopy(colors, row * width + minX - (x - xOffset), pixels, y * this.width + minX,
+                    maxX - minX);
+        }
+    }
+
+    private void checkWritable() {
+        if (raster != null) {
+            throw new UnsupportedOperationException("Map raster files can't be changed");
+        } else if (pixels == null) {
+            throw new UnsupportedOperationException("Maps that have released their pixels can't be changed");
+        }
     }
 
     /**
@@ -131,4 +343,4 @@ public class ImageMap {
         return new int[] { x, z };
     }
 
-}
\ No newline at end of file
+}
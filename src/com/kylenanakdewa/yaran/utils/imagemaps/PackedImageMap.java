@@ -0,0 +1,317 @@
+package com.kylenanakdewa.yaran.utils.imagemaps;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bukkit.Bukkit;
+import org.bukkit.DyeColor;
+import org.bukkit.block.Biome;
+
+/**
+ * Reads several 2D maps packed into one {@link TiledRaster} file, so every map
+ * can be read for a column with a single lookup, instead of one lookup in each
+ * map's image.
+ * <p>
+ * Each pixel is an int, with one {@link Layer} in each byte. The greyscale
+ * layers store the greyscale level, and the biome and wool layers store an
+ * index into a table of the original map's colors. The color tables are stored
+ * in the raster's metadata, and resolved to biomes and dye colors when the map
+ * is loaded, using the same mappings as {@link BiomeImageMap} and
+ * {@link DyeColorImageMap}. Index 0 of each table is black, so pixels outside
+ * the map read as 0, which is the same as black in every layer.
+ * <p>
+ * Packed maps are created from separate image maps with
+ * {@link #pack(File, ImageMap, ImageMap, ImageMap, ImageMap)}. A packed map
+ * can be read from multiple threads at once.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class PackedImageMap {
+
+    /** Identifies the metadata of packed maps. */
+    private static final int MAGIC = 0x59504B44;
+    /** The version of the packed map metadata. */
+    private static final int VERSION = 1;
+
+    /** The most colors the biome and wool layers can have, including black. */
+    private static final int MAX_COLORS = 256;
+    private static final int BLACK = 0xFF000000;
+
+    /**
+     * A map packed into each pixel.
+     */
+    public enum Layer {
+        /** The amplitude greyscale map. */
+        AMPLITUDE(24),
+        /** The minimum height greyscale map. */
+        MINIMUM_HEIGHT(16),
+        /** The biome map. */
+        BIOMES(8),
+        /** The wool color map. */
+        WOOL(0);
+
+        /** The position of the layer's byte in each pixel. */
+        private final int shift;
+
+        Layer(int shift) {
+            this.shift = shift;
+        }
+
+        /**
+         * @return the value of the layer in a packed pixel, 0-255
+         */
+        private int getValue(int packed) {
+            return packed >>> shift & 0xFF;
+        }
+    }
+
+    /** The raster the map is read from, or null if it couldn't be loaded. */
+    private final TiledRaster raster;
+
+    /** The X offset of the image, relative to the game world. */
+    private final int xOffset;
+    /** The Z offset of the image, relative to the game world. */
+    private final int zOffset;
+
+    /** The layers in the map, as a bit for each layer's ordinal. */
+    private final int layerFlags;
+
+    /** The biome of each biome color index. */
+    private final Biome[] biomes = new Biome[MAX_COLORS];
+    /** The dye color of each wool color index. */
+    private final DyeColor[] dyeColors = new DyeColor[MAX_COLORS];
+
+    /**
+     * Loads a packed map. If the file can't be loaded, the map has no layers.
+     *
+     * @param rasterFile the packed raster file to load
+     * @param xOffset    the X offset of the image, relative to the game world
+     * @param zOffset    the Z offset of the image, relative to the game world
+     */
+    public PackedImageMap(File rasterFile, int xOffset, int zOffset) {
+        this.xOffset = xOffset;
+        this.zOffset = zOffset;
+
+        TiledRaster loadedRaster = null;
+        int loadedLayers = 0;
+        try {
+            loadedRaster = TiledRaster.open(rasterFile);
+            DataInputStream metadata = new DataInputStream(new ByteArrayInputStream(loadedRaster.getMetadata()));
+            if (loadedRaster.isIndexed() || metadata.available() < 12 || metadata.readInt() != MAGIC) {
+                throw new IOException(rasterFile.getName() + " is not a packed map");
+            }
+            int version = metadata.readInt();
+            if (version != VERSION) {
+                throw new IOException(rasterFile.getName() + " has unsupported packed map version " + version);
+            }
+            loadedLayers = metadata.readInt();
+
+            // Resolve the color tables once, so each pixel is an array lookup
+            if ((loadedLayers & 1 << Layer.BIOMES.ordinal()) != 0) {
+                int[] colors = readColors(metadata);
+                for (int color = 0; color < colors.length; color++) {
+                    biomes[color] = BiomeImageMap.convertRgbToBiome(colors[color]);
+                }
+            }
+            if ((loadedLayers & 1 << Layer.WOOL.ordinal()) != 0) {
+                int[] colors = readColors(metadata);
+                for (int color = 0; color < colors.length; color++) {
+                    dyeColors[color] = DyeColorImageMap.convertRgbToDyeColor(colors[color]);
+                }
+            }
+        } catch (IOException e) {
+            Bukkit.getLogger().severe("Unable to load packed map file: " + e.getLocalizedMessage());
+            loadedRaster = null;
+            loadedLayers = 0;
+        }
+        raster = loadedRaster;
+        layerFlags = loadedLayers;
+    }
+
+    private static int[] readColors(DataInputStream metadata) throws IOException {
+        int count = metadata.readInt();
+        if (count < 0 || count > MAX_COLORS) {
+            throw new IOException("Invalid packed map color table");
+        }
+        int[] colors = new int[count];
+        for (int color = 0; color < count; color++) {
+            colors[color] = metadata.readInt();
+        }
+        return colors;
+    }
+
+    /**
+     * @return whether the map contains a layer
+     */
+    public boolean hasLayer(Layer layer) {
+        return (layerFlags & 1 << layer.ordinal()) != 0;
+    }
+
+    /**
+     * Gets every layer of a pixel, using game world X/Z values, in a single
+     * lookup. This will use the offset. Use the other methods to get each layer's
+     * value from the packed pixel.
+     *
+     * @return the packed pixel, or 0 if the pixel is out-of-bounds
+     */
+    public int getPackedFromGame(int x, int z) {
+        x -= xOffset;
+        z -= zOffset;
+        if (raster == null || Integer.compareUnsigned(x, raster.getWidth()) >= 0
+                || Integer.compareUnsigned(z, raster.getHeight()) >= 0) {
+            return 0;
+        }
+        return raster.getRgb(x, z);
+    }
+
+    /**
+     * Gets the greyscale value of a greyscale layer in a packed pixel, where 0 is
+     * black, and 1 is white, the same as {@link GreyscaleImageMap}.
+     *
+     * @param packed the packed pixel
+     * @param layer  the layer, either {@link Layer#AMPLITUDE} or
+     *               {@link Layer#MINIMUM_HEIGHT}
+     */
+    public double getGreyscale(int packed, Layer layer) {
+        return layer.getValue(packed) / 255d;
+    }
+
+    /**
+     * @return the biome of a packed pixel, or null if its color has no biome
+     */
+    public Biome getBiome(int packed) {
+        return biomes[Layer.BIOMES.getValue(packed)];
+    }
+
+    /**
+     * @return the dye color of a packed pixel, or null if its color is not a dye
+     *         color
+     */
+    public DyeColor getDyeColor(int packed) {
+        return dyeColors[Layer.WOOL.getValue(packed)];
+    }
+
+    /**
+     * Packs separate image maps into a packed map file. The packed map is as
+     * large as the largest map, and maps with the same offset line up. Any map
+     * can be null, and is left out.
+     *
+     * @param rasterFile   the packed raster file to create, which is replaced if
+     *                     it exists
+     * @param amplitudeMap the amplitude greyscale map
+     * @param minHeightMap the minimum height greyscale map
+     * @param biomeMap     the biome map
+     * @param woolMap      the wool color map
+     * @return the number of layers packed
+     * @throws IOException if a map has too many colors, or the file can't be
+     *                     written
+     */
+    public static int pack(File rasterFile, ImageMap amplitudeMap, ImageMap minHeightMap, ImageMap biomeMap,
+            ImageMap woolMap) throws IOException {
+        ImageMap[] maps = new ImageMap[Layer.values().length];
+        maps[Layer.AMPLITUDE.ordinal()] = amplitudeMap;
+        maps[Layer.MINIMUM_HEIGHT.ordinal()] = minHeightMap;
+        maps[Layer.BIOMES.ordinal()] = biomeMap;
+        maps[Layer.WOOL.ordinal()] = woolMap;
+
+        int width = 0;
+        int height = 0;
+        int layers = 0;
+        int layerCount = 0;
+        for (Layer layer : Layer.values()) {
+            ImageMap map = maps[layer.ordinal()];
+            if (map != null) {
+                width = Math.max(width, map.getWidth());
+                height = Math.max(height, map.getHeight());
+                layers |= 1 << layer.ordinal();
+                layerCount++;
+            }
+        }
+
+        // The color tables are needed for the metadata, so they are collected first
+        Map<Integer, Integer> biomeIndices = biomeMap != null ? collectColors(biomeMap, width, height) : null;
+        Map<Integer, Integer> woolIndices = woolMap != null ? collectColors(woolMap, width, height) : null;
+
+        ByteArrayOutputStream metadataBytes = new ByteArrayOutputStream();
+        DataOutputStream metadata = new DataOutputStream(metadataBytes);
+        metadata.writeInt(MAGIC);
+        metadata.writeInt(VERSION);
+        metadata.writeInt(layers);
+        writeColors(metadata, biomeIndices);
+        writeColors(metadata, woolIndices);
+
+        int packedWidth = width;
+        TiledRaster.write(rasterFile, width, height, (y, rows) -> {
+            int[] pixels = new int[packedWidth * rows];
+            for (int row = 0; row < rows; row++) {
+                for (int x = 0; x < packedWidth; x++) {
+                    int packed = 0;
+                    if (amplitudeMap != null) {
+                        packed |= GreyscaleImageMap.convertRgbToLevel(amplitudeMap.getRgb(x, y + row))
+                                << Layer.AMPLITUDE.shift;
+                    }
+                    if (minHeightMap != null) {
+                        packed |= GreyscaleImageMap.convertRgbToLevel(minHeightMap.getRgb(x, y + row))
+                                << Layer.MINIMUM_HEIGHT.shift;
+                    }
+                    if (biomeMap != null) {
+                        packed |= biomeIndices.get(biomeMap.getRgb(x, y + row)) << Layer.BIOMES.shift;
+                    }
+                    if (woolMap != null) {
+                        packed |= woolIndices.get(woolMap.getRgb(x, y + row)) << Layer.WOOL.shift;
+                    }
+                    pixels[row * packedWidth + x] = packed;
+                }
+            }
+            return pixels;
+        }, metadataBytes.toByteArray());
+        return layerCount;
+    }
+
+    /**
+     * Gets the index of each color in a map, within an area, with black first.
+     *
+     * @throws IOException if the map has too many colors
+     */
+    private static Map<Integer, Integer> collectColors(ImageMap map, int width, int height) throws IOException {
+        Map<Integer, Integer> colorIndices = new HashMap<Integer, Integer>();
+        colorIndices.put(BLACK, 0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int rgb = map.getRgb(x, y);
+                if (!colorIndices.containsKey(rgb)) {
+                    if (colorIndices.size() == MAX_COLORS) {
+                        throw new IOException("A map has more than " + MAX_COLORS + " colors, so it can't be packed");
+                    }
+                    colorIndices.put(rgb, colorIndices.size());
+                }
+            }
+        }
+        return colorIndices;
+    }
+
+    /**
+     * Writes a color table, in index order, if the map is packed.
+     */
+    private static void writeColors(DataOutputStream metadata, Map<Integer, Integer> colorIndices)
+            throws IOException {
+        if (colorIndices == null) {
+            return;
+        }
+        int[] colors = new int[colorIndices.size()];
+        for (Map.Entry<Integer, Integer> colorIndex : colorIndices.entrySet()) {
+            colors[colorIndex.getValue()] = colorIndex.getKey();
+        }
+        metadata.writeInt(colors.length);
+        for (int color : colors) {
+            metadata.writeInt(color);
+        }
+    }
+
+}
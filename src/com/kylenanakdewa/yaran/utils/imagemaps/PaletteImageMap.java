@@ -0,0 +1,277 @@
+package com.kylenanakdewa.yaran.utils.imagemaps;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.IntFunction;
+
+import org.bukkit.Bukkit;
+
+/**
+ * Reads a 2D map stored in an image, where each color stands for a value, such
+ * as a biome.
+ * <p>
+ * The colors are resolved once, when the image is loaded. Each pixel becomes a
+ * byte index into a table of the image's colors, and the value of each color,
+ * so reading a value is a single array lookup. The decoded ARGB pixels are then
+ * discarded, and {@link #getRgb(int, int)} reads the color table instead.
+ * Images with more than 256 colors keep their ARGB pixels, and index each pixel
+ * by its value instead. Colors without a value are reported when the image is
+ * loaded.
+ * <p>
+ * Indexed {@link TiledRaster} files are resolved from their color table, so
+ * pixels aren't read until they're used. Rasters with too many colors to index
+ * resolve each pixel's color when it's read.
+ *
+ * @param <T> the type of value each color stands for
+ * @author Kyle Nanakdewa
+ */
+public abstract class PaletteImageMap<T> extends ImageMap {
+
+    /** The most colors an image can have, to index each pixel by its color. */
+    private static final int MAX_COLORS = 256;
+    /**
+     * The most values an image with too many colors can have. Index 0 is no
+     * value.
+     */
+    private static final int MAX_PALETTE_SIZE = 255;
+    /** The most unmapped colors to list when reporting them. */
+    private static final int MAX_REPORTED_COLORS = 8;
+    /** Black, the empty color, which is never reported. */
+    private static final int BLACK = 0xFF000000;
+
+    /** Gets the value of an RGB color. */
+    private final IntFunction<T> resolver;
+
+    /**
+     * The value of each index, which is a color in the color table, a raster
+     * color, or a value for images with too many colors, or null if the map is a
+     * raster with too many colors.
+     */
+    private final Object[] indexValues;
+
+    /**
+     * The ARGB color of each index, or null if the ARGB pixels are kept, or the
+     * map is a raster.
+     */
+    private final int[] indexColors;
+
+    /**
+     * The index of each pixel, in rows of increasing Y, or null if the map is a
+     * raster.
+     */
+    private final byte[] indices;
+
+    /** The value of out-of-bounds pixels, which are black. */
+    private final T outOfBoundsValue;
+
+    /**
+     * Loads an image file, and resolves the value of each color.
+     *
+     * @param imageFile the image file to load
+     * @param xOffset   the X offset of the image, relative to the game world
+     * @param zOffset   the Z offset of the image, relative to the game world
+     * @param resolver  gets the value of an RGB color, with the alpha bits set,
+     *                  or null if it has none
+     * @param valueName the name of the values, for reporting unmapped colors
+     */
+    protected PaletteImageMap(File imageFile, int xOffset, int zOffset, IntFunction<T> resolver,
+            String valueName) {
+        super(imageFile, xOffset, zOffset);
+        this.resolver = resolver;
+
+        Map<Integer, Long> unmappedCounts = new TreeMap<Integer, Long>();
+        Object[] values = null;
+        int[] colors = null;
+        byte[] pixelIndices = null;
+
+        TiledRaster raster = getRaster();
+        if (raster == null) {
+            Map<Integer, Integer> colorIndices = getColorIndices();
+            pixelIndices = new byte[getWidth() * getHeight()];
+            if (colorIndices != null) {
+                // Index each pixel by its color, so the ARGB pixels aren't needed
+                colors = new int[colorIndices.size()];
+                long[] counts = new long[colorIndices.size()];
+                for (int y = 0; y < getHeight(); y++) {
+                    for (int x = 0; x < getWidth(); x++) {
+                        int index = colorIndices.get(getRgb(x, y));
+                        pixelIndices[y * getWidth() + x] = (byte) index;
+                        counts[index]++;
+                    }
+                }
+                values = new Object[colors.length];
+                for (Map.Entry<Integer, Integer> colorIndex : colorIndices.entrySet()) {
+                    int rgb = colorIndex.getKey();
+                    int index = colorIndex.getValue();
+                    colors[index] = rgb;
+                    values[index] = resolver.apply(rgb);
+                    if (values[index] == null && rgb != BLACK) {
+                        unmappedCounts.put(rgb, counts[index]);
+                    }
+                }
+                releasePixels();
+            } else {
+                // Too many colors to index, so keep the ARGB pixels, and index each pixel by its value
+                List<Object> paletteValues = new ArrayList<Object>();
+                paletteValues.add(null);
+                Map<T, Integer> valueIndices = new HashMap<T, Integer>();
+                Map<Integer, Integer> colorPaletteIndices = new HashMap<Integer, Integer>();
+                for (int y = 0; y < getHeight(); y++) {
+                    for (int x = 0; x < getWidth(); x++) {
+                        int rgb = getRgb(x, y);
+                        Integer index = colorPaletteIndices.get(rgb);
+                        if (index == null) {
+                            index = addValue(resolver.apply(rgb), paletteValues, valueIndices, imageFile, valueName);
+                            colorPaletteIndices.put(rgb, index);
+                        }
+                        if (index == 0 && rgb != BLACK) {
+                            unmappedCounts.merge(rgb, 1L, Long::sum);
+                        }
+                        pixelIndices[y * getWidth() + x] = index.byteValue();
+                    }
+                }
+                values = paletteValues.toArray();
+            }
+        } else if (raster.isIndexed()) {
+            values = new Object[raster.getColorCount()];
+            for (int color = 0; color < raster.getColorCount(); color++) {
+                int rgb = raster.getColor(color) | BLACK;
+                values[color] = resolver.apply(rgb);
+                if (values[color] == null && rgb != BLACK) {
+                    unmappedCounts.merge(rgb, raster.getColorPixelCount(color), Long::sum);
+                }
+            }
+        } else {
+            Bukkit.getLogger().warning("[Yaran] Map raster " + imageFile.getName()
+                    + " has more than 256 colors, so each " + valueName + " is found when it's read, which is slower.");
+        }
+        indexValues = values;
+        indexColors = colors;
+        indices = pixelIndices;
+        outOfBoundsValue = resolver.apply(BLACK);
+
+        if (!unmappedCounts.isEmpty()) {
+            reportUnmappedColors(imageFile, valueName, unmappedCounts);
+        }
+    }
+
+    /**
+     * Gives each color in the decoded image an index, in the order they're found.
+     *
+     * @return the index of each color, or null if the image has too many colors
+     */
+    private Map<Integer, Integer> getColorIndices() {
+        Map<Integer, Integer> colorIndices = new HashMap<Integer, Integer>();
+        int lastRgb = 0;
+        for (int y = 0; y < getHeight(); y++) {
+            for (int x = 0; x < getWidth(); x++) {
+                int rgb = getRgb(x, y);
+                // Neighbouring pixels are usually the same color
+                if (rgb == lastRgb && !colorIndices.isEmpty()) {
+                    continue;
+                }
+                lastRgb = rgb;
+                if (!colorIndices.containsKey(rgb)) {
+                    if (colorIndices.size() == MAX_COLORS) {
+                        return null;
+                    }
+                    colorIndices.put(rgb, colorIndices.size());
+                }
+            }
+        }
+        return colorIndices;
+    }
+
+    /**
+     * Adds a value to the palette, if it isn't already there.
+     *
+     * @return the palette index of the value, or 0 if the value is null
+     * @throws IllegalArgumentException if the palette is full
+     */
+    private static <T> int addValue(T value, List<Object> paletteValues, Map<T, Integer> valueIndices,
+            File imageFile, String valueName) {
+        if (value == null) {
+            return 0;
+        }
+        Integer index = valueIndices.get(value);
+        if (index == null) {
+            if (paletteValues.size() > MAX_PALETTE_SIZE) {
+                throw new IllegalArgumentException("Map image " + imageFile.getName() + " has more than "
+                        + MAX_PALETTE_SIZE + " different " + valueName + "s.");
+            }
+            index = paletteValues.size();
+            paletteValues.add(value);
+            valueIndices.put(value, index);
+        }
+        return index;
+    }
+
+    /**
+     * Logs a warning listing the colors that have no value, and how many pixels
+     * have each of them.
+     */
+    private static void reportUnmappedColors(File imageFile, String valueName, Map<Integer, Long> counts) {
+        StringBuilder colors = new StringBuilder();
+        int listed = 0;
+        for (Map.Entry<Integer, Long> count : counts.entrySet()) {
+            if (listed == MAX_REPORTED_COLORS) {
+                colors.append(", and ").append(counts.size() - listed).append(" more");
+                break;
+            }
+            if (listed > 0) {
+                colors.append(", ");
+            }
+            colors.append(String.format("#%06X (%d pixels)", count.getKey() & 0xFFFFFF, count.getValue()));
+            listed++;
+        }
+        Bukkit.getLogger().warning("[Yaran] Map image " + imageFile.getName() + " has " + counts.size()
+                + " colors with no " + valueName + ": " + colors);
+    }
+
+    /**
+     * Gets the value of a specific pixel on the image. If the requested pixel is
+     * out-of-bounds, returns the value of black.
+     *
+     * @return the value, or null if the pixel's color has no value
+     */
+    @SuppressWarnings("unchecked")
+    protected T getPixelValue(int x, int y) {
+        if (!isInBounds(x, y)) {
+            return outOfBoundsValue;
+        }
+
+        if (indices != null) {
+            return (T) indexValues[indices[getIndex(x, y)] & 0xFF];
+        } else if (indexValues != null) {
+            return (T) indexValues[getRaster().getColorIndex(x, y)];
+        }
+        return resolver.apply(getRgb(x, y));
+    }
+
+    /**
+     * Gets the RGB color of a specific pixel on the image, as an int, from the
+     * color table if the ARGB pixels were discarded.
+     */
+    @Override
+    public int getRgb(int x, int y) {
+        if (indexColors == null || !isInBounds(x, y)) {
+            return super.getRgb(x, y);
+        }
+        return indexColors[indices[getIndex(x, y)] & 0xFF];
+    }
+
+    /**
+     * Gets the value of a specified pixel on the image, using game world X/Z
+     * values. This will use the offset.
+     *
+     * @return the value, or null if the pixel's color has no value
+     */
+    protected T getPixelValueFromGame(int x, int z) {
+        return getPixelValue(x - getXOffset(), z - getZOffset());
+    }
+
+}
@@ -0,0 +1,410 @@
+package com.kylenanakdewa.yaran.utils.imagemaps;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Decodes a PNG image a row at a time, in a single pass through the file, so
+ * images much larger than the heap can be read. Only the current and previous
+ * rows are kept in memory.
+ * <p>
+ * Each row is converted to ARGB colors with the same image type that
+ * {@link ImageIO} decodes the image to, so the colors match
+ * {@link BufferedImage#getRGB(int, int)} on the decoded image, including the
+ * gamma ImageIO applies to greyscale images. Interlaced images store their rows
+ * out of order, so they can't be read this way.
+ *
+ * @author Kyle Nanakdewa
+ */
+final class PngRowReader implements Closeable {
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+
+    private static final int COLOR_TYPE_GREY = 0;
+    private static final int COLOR_TYPE_RGB = 2;
+
+    /** The file, positioned within the image data chunks. */
+    private final DataInputStream file;
+    /** The inflated image data, a filter type byte and the samples of each row. */
+    private final DataInputStream imageData;
+
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    /** The number of samples stored for each pixel. */
+    private final int channels;
+    /**
+     * The number of bands in the decoded image, which is one more than the
+     * channels if ImageIO adds alpha for a transparent color.
+     */
+    private final int bands;
+
+    /** The samples of the transparent color, or null if there isn't one. */
+    private final int[] transparentSamples;
+    /**
+     * The largest sample in the decoded image, which is larger than the stored
+     * samples if ImageIO scales them up when it adds alpha.
+     */
+    private final int maxImageSample;
+
+    /** The bytes of each complete pixel, which filters compare against. */
+    private final int filterOffset;
+    private byte[] row;
+    private byte[] previousRow;
+
+    /** The samples of the current row, in each band. */
+    private final int[] samples;
+    /** Converts a row of samples to ARGB colors, with ImageIO's image type. */
+    private final BufferedImage rowImage;
+
+    /** The next row to read. */
+    private int nextY;
+
+    private PngRowReader(DataInputStream file, int firstChunkLength, int width, int height, int bitDepth,
+            int channels, int[] transparentSamples, ImageTypeSpecifier imageType) {
+        this.file = file;
+        imageData = new DataInputStream(new InflaterInputStream(new ImageDataStream(file, firstChunkLength)));
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.channels = channels;
+        bands = imageType.getSampleModel().getNumBands();
+        this.transparentSamples = transparentSamples;
+        maxImageSample = (1 << imageType.getSampleModel().getSampleSize(0)) - 1;
+
+        filterOffset = Math.max(1, channels * bitDepth / 8);
+        int rowBytes = (int) (((long) width * channels * bitDepth + 7) / 8);
+        row = new byte[rowBytes];
+        previousRow = new byte[rowBytes];
+        samples = new int[width * bands];
+        rowImage = imageType.createBufferedImage(width, 1);
+    }
+
+    /**
+     * Opens a PNG image, and reads its header.
+     *
+     * @param imageFile the image file to read
+     * @return the reader, or null if the file isn't a PNG image that can be read a
+     *         row at a time
+     * @throws IOException if the file can't be read
+     */
+    static PngRowReader open(File imageFile) throws IOException {
+        ImageTypeSpecifier imageType = getImageType(imageFile);
+        if (imageType == null) {
+            return null;
+        }
+
+        DataInputStream file = new DataInputStream(new BufferedInputStream(new FileInputStream(imageFile)));
+        try {
+            if (file.readLong() != SIGNATURE || file.readInt() != 13 || file.readInt() != IHDR) {
+                throw new IOException(imageFile.getName() + " has an invalid PNG header");
+            }
+            int width = file.readInt();
+            int height = file.readInt();
+            int bitDepth = file.readUnsignedByte();
+            int colorType = file.readUnsignedByte();
+            file.skipBytes(2);
+            int interlace = file.readUnsignedByte();
+            file.skipBytes(4);
+            int channels = getChannels(colorType);
+            if (interlace != 0 || channels == 0 || width <= 0 || height < 0) {
+                file.close();
+                return null;
+            }
+
+            // Skip to the image data, keeping the transparent color, which ImageIO turns into alpha
+            int[] transparentSamples = null;
+            int length = file.readInt();
+            int type = file.readInt();
+            while (type != IDAT) {
+                if (type == TRNS && (colorType == COLOR_TYPE_GREY || colorType == COLOR_TYPE_RGB)
+                        && length >= channels * 2) {
+                    transparentSamples = new int[channels];
+                    for (int channel = 0; channel < channels; channel++) {
+                        transparentSamples[channel] = file.readUnsignedShort();
+                    }
+                    skipFully(file, length - channels * 2 + 4L);
+                } else {
+                    skipFully(file, (length & 0xFFFFFFFFL) + 4);
+                }
+                length = file.readInt();
+                type = file.readInt();
+            }
+
+            int bands = imageType.getSampleModel().getNumBands();
+            if (bands != channels && (bands != channels + 1 || transparentSamples == null)) {
+                file.close();
+                return null;
+            }
+            return new PngRowReader(file, length, width, height, bitDepth, channels, transparentSamples,
+                    imageType);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the image type ImageIO decodes a PNG image to, reading only its header.
+     *
+     * @return the image type, or null if the file isn't a PNG image
+     */
+    private static ImageTypeSpecifier getImageType(File imageFile) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(imageFile)) {
+            if (input == null) {
+                throw new IOException("Unable to read " + imageFile.getName());
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                if (!reader.getFormatName().equalsIgnoreCase("png")) {
+                    return null;
+                }
+                reader.setInput(input);
+                Iterator<ImageTypeSpecifier> imageTypes = reader.getImageTypes(0);
+                return imageTypes.hasNext() ? imageTypes.next() : null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the number of samples stored for each pixel of a color type, or 0
+     *         if the color type is invalid
+     */
+    private static int getChannels(int colorType) {
+        switch (colorType) {
+            case 0:
+                return 1;
+            case 2:
+                return 3;
+            case 3:
+                return 1;
+            case 4:
+                return 2;
+            case 6:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static void skipFully(InputStream input, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = input.skip(bytes);
+            if (skipped <= 0) {
+                if (input.read() < 0) {
+                    throw new EOFException("Unexpected end of PNG image");
+                }
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * @return the width of the image, in pixels
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the image, in pixels
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Reads the next rows of the image.
+     *
+     * @param rows the number of rows to read
+     * @return the ARGB color of each pixel in the rows, in rows of increasing Y
+     * @throws IOException if the image can't be read, or has fewer rows left
+     */
+    int[] readRows(int rows) throws IOException {
+        if (nextY + rows > height) {
+            throw new IOException("Only " + (height - nextY) + " rows are left in the image");
+        }
+        int[] argb = new int[width * rows];
+        for (int y = 0; y < rows; y++) {
+            int filterType = imageData.readUnsignedByte();
+            imageData.readFully(row);
+            unfilter(filterType);
+            unpackSamples();
+            rowImage.getRaster().setPixels(0, 0, width, 1, samples);
+            rowImage.getRGB(0, 0, width, 1, argb, y * width, width);
+
+            byte[] swap = previousRow;
+            previousRow = row;
+            row = swap;
+        }
+        nextY += rows;
+        return argb;
+    }
+
+    /**
+     * Reverses the filter of the current row, using the previous row.
+     */
+    private void unfilter(int filterType) throws IOException {
+        switch (filterType) {
+            case 0:
+                break;
+            case 1:
+                for (int i = filterOffset; i < row.length; i++) {
+                    row[i] += row[i - filterOffset];
+                }
+                break;
+            case 2:
+                for (int i = 0; i < row.length; i++) {
+                    row[i] += previousRow[i];
+                }
+                break;
+            case 3:
+                for (int i = 0; i < row.length; i++) {
+                    int left = i >= filterOffset ? row[i - filterOffset] & 0xFF : 0;
+                    row[i] += (left + (previousRow[i] & 0xFF)) >> 1;
+                }
+                break;
+            case 4:
+                for (int i = 0; i < row.length; i++) {
+                    int left = i >= filterOffset ? row[i - filterOffset] & 0xFF : 0;
+                    int up = previousRow[i] & 0xFF;
+                    int upLeft = i >= filterOffset ? previousRow[i - filterOffset] & 0xFF : 0;
+                    row[i] += paeth(left, up, upLeft);
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type " + filterType);
+        }
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int leftDistance = Math.abs(estimate - left);
+        int upDistance = Math.abs(estimate - up);
+        int upLeftDistance = Math.abs(estimate - upLeft);
+        if (leftDistance <= upDistance && leftDistance <= upLeftDistance) {
+            return left;
+        }
+        return upDistance <= upLeftDistance ? up : upLeft;
+    }
+
+    /**
+     * Unpacks the samples of the current row into each band, adding alpha for the
+     * transparent color, and scaling the samples to the decoded image, if ImageIO
+     * does.
+     */
+    private void unpackSamples() {
+        int maxSample = (1 << bitDepth) - 1;
+        int samplesPerByte = 8 / Math.min(bitDepth, 8);
+        for (int x = 0; x < width; x++) {
+            boolean transparent = transparentSamples != null;
+            for (int channel = 0; channel < channels; channel++) {
+                int sample = x * channels + channel;
+                int value;
+                if (bitDepth == 16) {
+                    value = (row[sample * 2] & 0xFF) << 8 | row[sample * 2 + 1] & 0xFF;
+                } else if (bitDepth == 8) {
+                    value = row[sample] & 0xFF;
+                } else {
+                    int shift = 8 - bitDepth * (sample % samplesPerByte + 1);
+                    value = (row[sample / samplesPerByte] & 0xFF) >> shift & maxSample;
+                }
+                transparent = transparent && value == transparentSamples[channel];
+                if (maxImageSample != maxSample) {
+                    value = value * maxImageSample / maxSample;
+                }
+                samples[x * bands + channel] = value;
+            }
+            if (bands > channels) {
+                samples[x * bands + channels] = transparent ? 0 : maxImageSample;
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            imageData.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the data of consecutive image data chunks, as one stream.
+     */
+    private static final class ImageDataStream extends InputStream {
+        private final DataInputStream file;
+        /** The bytes left in the current chunk. */
+        private int remaining;
+        /** Whether the last image data chunk has been read. */
+        private boolean ended;
+
+        /**
+         * @param file        the file, positioned at the data of the first image
+         *                    data chunk
+         * @param firstLength the length of the first image data chunk
+         */
+        private ImageDataStream(DataInputStream file, int firstLength) {
+            this.file = file;
+            remaining = firstLength;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            // Move on to the next chunk, skipping the checksum, until a chunk isn't image data
+            while (remaining == 0) {
+                if (ended) {
+                    return -1;
+                }
+                file.readInt();
+                remaining = file.readInt();
+                if (file.readInt() != IDAT) {
+                    ended = true;
+                    remaining = 0;
+                    return -1;
+                }
+            }
+            int read = file.read(bytes, offset, Math.min(length, remaining));
+            if (read < 0) {
+                throw new EOFException("Unexpected end of PNG image data");
+            }
+            remaining -= read;
+            return read;
+        }
+    }
+
+}
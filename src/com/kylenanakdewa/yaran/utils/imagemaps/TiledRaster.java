@@ -0,0 +1,506 @@
+package com.kylenanakdewa.yaran.utils.imagemaps;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.imageio.ImageIO;
+
+/**
+ * A map image stored in an uncompressed, tiled raster file, which is
+ * memory-mapped instead of loaded. The operating system reads each tile from
+ * disk when it's first used, so opening a raster is almost instant, and it
+ * doesn't use any heap memory, however large the map is.
+ * <p>
+ * Pixels are stored in square tiles, in rows of tiles of increasing Y. Each
+ * row of tiles is mapped separately, so rasters can be larger than 2 GB. Images
+ * with 256 colors or less, such as greyscale, biome and dye maps, store a byte
+ * for each pixel, which is an index into a table of colors in the header.
+ * Other images store the ARGB color of each pixel.
+ * <p>
+ * Rasters are created from images with {@link #convert(File, File)}, or from
+ * any pixels with {@link #write(File, int, int, PixelSource, byte[])}, which
+ * can also store a small block of metadata for the format built on the raster.
+ * A raster can be read from multiple threads at once.
+ *
+ * @author Kyle Nanakdewa
+ */
+public final class TiledRaster {
+
+    /** The file extension of raster files, which image maps load as rasters. */
+    public static final String FILE_EXTENSION = ".yrm";
+
+    /** Identifies Yaran raster map files. */
+    private static final int MAGIC = 0x59524D50;
+    /** The version of the raster file format. */
+    private static final int VERSION = 1;
+
+    /** The width and depth of each tile, in pixels. */
+    private static final int TILE_SIZE = 256;
+    private static final int TILE_SHIFT = 8;
+
+    /** The most colors that can be stored as indexes. */
+    private static final int MAX_INDEXED_COLORS = 256;
+
+    /**
+     * The size of the header, containing the magic number, version, size, tile
+     * size, pixel size, color table, color counts and metadata, rounded up to a
+     * page.
+     */
+    private static final int HEADER_BYTES = 4096;
+
+    /**
+     * The most metadata that can be stored in a full color raster's header,
+     * after the other header fields.
+     */
+    public static final int MAX_METADATA_BYTES = HEADER_BYTES - 32;
+
+    /** The most image rows decoded at once when converting, in pixels. */
+    private static final long MAX_STRIP_PIXELS = 16L * 1024 * 1024;
+
+    private final int width;
+    private final int height;
+
+    /** The size of each pixel, 1 for indexed colors, or 4 for ARGB. */
+    private final int pixelBytes;
+
+    /** The color of each index, for indexed rasters. */
+    private final int[] colors;
+    /** The number of pixels with each indexed color. */
+    private final long[] colorCounts;
+
+    /** The metadata stored in the header, which may be empty. */
+    private final byte[] metadata;
+
+    /** Each row of tiles, mapped into memory. */
+    private final MappedByteBuffer[] tileRows;
+
+    /**
+     * Gets the pixels of an image, a strip of rows at a time, to write a raster.
+     */
+    @FunctionalInterface
+    public interface PixelSource {
+        /**
+         * @param y    the Y value of the first row
+         * @param rows the number of rows
+         * @return the ARGB color of each pixel in the rows, in rows of increasing Y
+         * @throws IOException if the pixels can't be read
+         */
+        int[] getRows(int y, int rows) throws IOException;
+    }
+
+    private TiledRaster(int width, int height, int pixelBytes, int[] colors, long[] colorCounts, byte[] metadata,
+            MappedByteBuffer[] tileRows) {
+        this.width = width;
+        this.height = height;
+        this.pixelBytes = pixelBytes;
+        this.colors = colors;
+        this.colorCounts = colorCounts;
+        this.metadata = metadata;
+        this.tileRows = tileRows;
+    }
+
+    /**
+     * @return whether a file is a raster file, by its extension
+     */
+    public static boolean isRasterFile(File file) {
+        return file.getName().toLowerCase().endsWith(FILE_EXTENSION);
+    }
+
+    /**
+     * Opens a raster file, and maps it into memory. Pixels aren't read until
+     * they're used.
+     *
+     * @param file the raster file to open
+     * @return the raster
+     * @throws IOException if the file can't be read, or isn't a valid raster
+     */
+    public static TiledRaster open(File file) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC) {
+                throw new IOException(file.getName() + " is not a Yaran raster map file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file.getName() + " has unsupported raster version " + version);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int tileSize = header.getInt();
+            int pixelBytes = header.getInt();
+            int colorCount = header.getInt();
+            if (width < 0 || height < 0 || tileSize != TILE_SIZE || (pixelBytes != 1 && pixelBytes != 4)
+                    || colorCount < 0 || colorCount > MAX_INDEXED_COLORS) {
+                throw new IOException(file.getName() + " has an invalid raster header");
+            }
+            int[] colors = new int[colorCount];
+            for (int color = 0; color < colorCount; color++) {
+                colors[color] = header.getInt();
+            }
+            long[] colorCounts = new long[colorCount];
+            for (int color = 0; color < colorCount; color++) {
+                colorCounts[color] = header.getLong();
+            }
+            // Rasters without metadata have a length of 0
+            int metadataLength = header.getInt();
+            if (metadataLength < 0 || metadataLength > header.remaining()) {
+                throw new IOException(file.getName() + " has an invalid raster header");
+            }
+            byte[] metadata = new byte[metadataLength];
+            header.get(metadata);
+
+            long rowBytes = getTileRowBytes(width, pixelBytes);
+            int rowCount = (height + TILE_SIZE - 1) >> TILE_SHIFT;
+            if (channel.size() < HEADER_BYTES + rowBytes * rowCount) {
+                throw new IOException(file.getName() + " is shorter than its raster header says");
+            }
+
+            // Mappings stay valid after the channel is closed
+            MappedByteBuffer[] tileRows = new MappedByteBuffer[rowCount];
+            for (int row = 0; row < rowCount; row++) {
+                tileRows[row] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + row * rowBytes,
+                        rowBytes);
+            }
+            return new TiledRaster(width, height, pixelBytes, colors, colorCounts, metadata, tileRows);
+        }
+    }
+
+    /**
+     * @return the size of each row of tiles
+     * @throws IOException if a row of tiles is too large to map
+     */
+    private static long getTileRowBytes(int width, int pixelBytes) throws IOException {
+        long tilesPerRow = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+        long rowBytes = tilesPerRow * TILE_SIZE * TILE_SIZE * pixelBytes;
+        if (rowBytes > Integer.MAX_VALUE) {
+            throw new IOException("Raster is too wide, found " + width + " pixels");
+        }
+        return rowBytes;
+    }
+
+    /**
+     * @return the width of the raster, in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return the height of the raster, in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return whether each pixel is stored as an index into the color table
+     */
+    public boolean isIndexed() {
+        return pixelBytes == 1;
+    }
+
+    /**
+     * @return the number of colors in the color table, or 0 if the raster isn't
+     *         indexed
+     */
+    public int getColorCount() {
+        return colors.length;
+    }
+
+    /**
+     * @return the ARGB color of an index in the color table
+     */
+    public int getColor(int colorIndex) {
+        return colors[colorIndex];
+    }
+
+    /**
+     * @return the number of pixels with an index in the color table
+     */
+    public long getColorPixelCount(int colorIndex) {
+        return colorCounts[colorIndex];
+    }
+
+    /**
+     * @return a copy of the metadata stored in the header, which is empty if none
+     *         was stored
+     */
+    public byte[] getMetadata() {
+        return metadata.clone();
+    }
+
+    /**
+     * Gets the position of a pixel within its row of tiles, in pixels.
+     */
+    private int getOffset(int x, int y) {
+        int tileX = x >> TILE_SHIFT;
+        int withinTile = (y & (TILE_SIZE - 1)) << TILE_SHIFT | x & (TILE_SIZE - 1);
+        return (tileX << TILE_SHIFT << TILE_SHIFT) + withinTile;
+    }
+
+    /**
+     * Gets the color table index of a pixel, in an indexed raster. The pixel must
+     * be in bounds.
+     *
+     * @return the index, 0-255
+     */
+    public int getColorIndex(int x, int y) {
+        return tileRows[y >> TILE_SHIFT].get(getOffset(x, y)) & 0xFF;
+    }
+
+    /**
+     * Gets the ARGB color of a pixel. The pixel must be in bounds.
+     */
+    public int getRgb(int x, int y) {
+        if (pixelBytes == 1) {
+            return colors[getColorIndex(x, y)];
+        }
+        return tileRows[y >> TILE_SHIFT].getInt(getOffset(x, y) * 4);
+    }
+
+    /**
+     * Converts an image file to a raster file. The image is read once, in a
+     * single pass. PNG images are decoded a strip of rows at a time, so images
+     * much larger than the heap can be converted. Other images, and interlaced
+     * PNG images, are decoded all at once.
+     * <p>
+     * If the image has 256 colors or less, it's stored as indexed colors,
+     * otherwise each pixel's ARGB color is stored.
+     *
+     * @param imageFile  the image file to convert, such as a PNG
+     * @param rasterFile the raster file to create, which is replaced if it exists
+     * @return the number of colors in the image, or -1 if it has more than 256
+     * @throws IOException if the image can't be read, or the raster can't be
+     *                     written
+     */
+    public static int convert(File imageFile, File rasterFile) throws IOException {
+        try (PngRowReader png = PngRowReader.open(imageFile)) {
+            int width;
+            int height;
+            PixelSource strips;
+            if (png != null) {
+                width = png.getWidth();
+                height = png.getHeight();
+                strips = (y, rows) -> png.readRows(rows);
+            } else {
+                BufferedImage image = ImageIO.read(imageFile);
+                if (image == null) {
+                    throw new IOException(imageFile.getName() + " is not a supported image");
+                }
+                width = image.getWidth();
+                height = image.getHeight();
+                strips = (y, rows) -> image.getRGB(0, y, image.getWidth(), rows, null, 0, image.getWidth());
+            }
+
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(rasterFile, "rw");
+                    FileChannel channel = randomAccessFile.getChannel()) {
+                randomAccessFile.setLength(0);
+                return writeRaster(channel, width, height, strips, true, new byte[0]);
+            }
+        }
+    }
+
+    /**
+     * Writes a full color raster file, with metadata. The pixels are read in
+     * strips, so rasters much larger than the heap can be written.
+     *
+     * @param rasterFile the raster file to create, which is replaced if it exists
+     * @param width      the width of the raster, in pixels
+     * @param height     the height of the raster, in pixels
+     * @param pixels     gets the ARGB color of each pixel
+     * @param metadata   the metadata to store in the header, up to
+     *                   {@link #MAX_METADATA_BYTES}
+     * @throws IOException if the pixels can't be read, or the raster can't be
+     *                     written
+     */
+    public static void write(File rasterFile, int width, int height, PixelSource pixels, byte[] metadata)
+            throws IOException {
+        if (metadata.length > MAX_METADATA_BYTES) {
+            throw new IOException("Raster metadata is too large, found " + metadata.length + " bytes");
+        }
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(rasterFile, "rw");
+                FileChannel channel = randomAccessFile.getChannel()) {
+            randomAccessFile.setLength(0);
+            writeRaster(channel, width, height, pixels, false, metadata);
+        }
+    }
+
+    /**
+     * Writes the tiles and header of a raster, reading each strip of pixels once.
+     * <p>
+     * Indexed rasters collect the colors of each strip before it's written. If a
+     * strip has too many colors, the tiles already written are expanded to full
+     * colors, using the colors collected so far, and the rest of the raster is
+     * written in full color.
+     *
+     * @param indexed whether to store indexed colors, if there are few enough
+     * @return the number of colors in the image, or -1 if it has too many colors
+     *         to index, or 0 if the raster isn't indexed
+     */
+    private static int writeRaster(FileChannel channel, int width, int height, PixelSource pixelSource,
+            boolean indexed, byte[] metadata) throws IOException {
+        int pixelBytes = indexed ? 1 : 4;
+        int tilesPerRow = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+
+        // Decode as many rows of tiles at once as fit in the strip size
+        int stripTileRows = (int) Math.max(1, MAX_STRIP_PIXELS / ((long) Math.max(width, 1) * TILE_SIZE));
+        int stripHeight = stripTileRows * TILE_SIZE;
+
+        int[] colors = new int[MAX_INDEXED_COLORS];
+        long[] colorCounts = new long[MAX_INDEXED_COLORS];
+        int colorCount = 0;
+        byte[] indices = indexed ? new byte[(int) Math.min((long) width * stripHeight, (long) width * height)] : null;
+
+        for (int stripY = 0; stripY < height; stripY += stripHeight) {
+            int rows = Math.min(stripHeight, height - stripY);
+            int[] pixels = pixelSource.getRows(stripY, rows);
+
+            if (pixelBytes == 1) {
+                colorCount = indexColors(pixels, width * rows, indices, colors, colorCounts, colorCount);
+                if (colorCount < 0) {
+                    expandTiles(channel, (stripY >> TILE_SHIFT) * tilesPerRow, colors);
+                    pixelBytes = 4;
+                }
+            }
+
+            long rowBytes = getTileRowBytes(width, pixelBytes);
+            ByteBuffer tile = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * pixelBytes);
+            for (int tileRowY = 0; tileRowY < rows; tileRowY += TILE_SIZE) {
+                long rowPosition = HEADER_BYTES + ((stripY + tileRowY) >> TILE_SHIFT) * rowBytes;
+                for (int tileX = 0; tileX < tilesPerRow; tileX++) {
+                    tile.clear();
+                    for (int y = tileRowY; y < tileRowY + TILE_SIZE; y++) {
+                        for (int x = tileX * TILE_SIZE; x < (tileX + 1) * TILE_SIZE; x++) {
+                            // Pixels past the edge of the image pad the tile, and are never read
+                            boolean inImage = y < rows && x < width;
+                            if (pixelBytes == 4) {
+                                tile.putInt(inImage ? pixels[y * width + x] : 0);
+                            } else {
+                                tile.put(inImage ? indices[y * width + x] : 0);
+                            }
+                        }
+                    }
+                    tile.flip();
+                    long position = rowPosition + (long) tileX * tile.capacity();
+                    while (tile.hasRemaining()) {
+                        position += channel.write(tile, position);
+                    }
+                }
+            }
+        }
+
+        // The header is written last, so an unfinished raster isn't valid
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height).putInt(TILE_SIZE).putInt(pixelBytes);
+        int storedColors = pixelBytes == 1 ? colorCount : 0;
+        header.putInt(storedColors);
+        for (int color = 0; color < storedColors; color++) {
+            header.putInt(colors[color]);
+        }
+        for (int color = 0; color < storedColors; color++) {
+            header.putLong(colorCounts[color]);
+        }
+        if (header.remaining() < 4 + metadata.length) {
+            throw new IOException("Raster metadata is too large, found " + metadata.length + " bytes");
+        }
+        header.putInt(metadata.length);
+        header.put(metadata);
+        header.clear();
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+        channel.force(true);
+        return colorCount;
+    }
+
+    /**
+     * Finds the color table index of each pixel in a strip, adding new colors to
+     * the table, and counting the pixels with each color.
+     *
+     * @return the number of colors in the table, or -1 if there are too many
+     *         colors
+     */
+    private static int indexColors(int[] pixels, int pixelCount, byte[] indices, int[] colors, long[] colorCounts,
+            int colorCount) {
+        // Neighbouring pixels usually have the same color, so the last color is checked first
+        int lastRgb = 0;
+        int lastIndex = -1;
+        for (int pixel = 0; pixel < pixelCount; pixel++) {
+            int rgb = pixels[pixel];
+            int index = lastIndex >= 0 && rgb == lastRgb ? lastIndex : findColor(colors, colorCount, rgb);
+            if (index < 0) {
+                if (colorCount == MAX_INDEXED_COLORS) {
+                    return -1;
+                }
+                index = colorCount++;
+                colors[index] = rgb;
+            }
+            colorCounts[index]++;
+            indices[pixel] = (byte) index;
+            lastRgb = rgb;
+            lastIndex = index;
+        }
+        return colorCount;
+    }
+
+    /**
+     * Rewrites indexed tiles as full color tiles, in place. Each full color tile
+     * starts at or after its indexed tile, so the tiles are expanded from last to
+     * first, and no tile is overwritten before it's read.
+     *
+     * @param tileCount the number of tiles already written
+     * @param colors    the color of each index
+     */
+    private static void expandTiles(FileChannel channel, int tileCount, int[] colors) throws IOException {
+        ByteBuffer indexedTile = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE);
+        ByteBuffer tile = ByteBuffer.allocate(TILE_SIZE * TILE_SIZE * 4);
+        for (int tileIndex = tileCount - 1; tileIndex >= 0; tileIndex--) {
+            indexedTile.clear();
+            long position = HEADER_BYTES + (long) tileIndex * indexedTile.capacity();
+            while (indexedTile.hasRemaining()) {
+                int read = channel.read(indexedTile, position);
+                if (read < 0) {
+                    throw new IOException("Raster tile " + tileIndex + " is missing");
+                }
+                position += read;
+            }
+            indexedTile.flip();
+
+            tile.clear();
+            while (indexedTile.hasRemaining()) {
+                tile.putInt(colors[indexedTile.get() & 0xFF]);
+            }
+            tile.flip();
+            position = HEADER_BYTES + (long) tileIndex * tile.capacity();
+            while (tile.hasRemaining()) {
+                position += channel.write(tile, position);
+            }
+        }
+    }
+
+    /**
+     * @return the index of a color in the color table, or -1 if it isn't there
+     */
+    private static int findColor(int[] colors, int colorCount, int rgb) {
+        for (int color = 0; color < colorCount; color++) {
+            if (colors[color] == rgb) {
+                return color;
+            }
+        }
+        return -1;
+    }
+
+}
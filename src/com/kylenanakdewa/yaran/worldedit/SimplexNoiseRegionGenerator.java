@@ -1,8 +1,9 @@
 package com.kylenanakdewa.yaran.worldedit;
 
 import java.util.Map;
-import java.util.Map.Entry;
 
+import com.kylenanakdewa.yaran.generation.OctaveStack;
+import com.kylenanakdewa.yaran.generation.YaranSimplexNoiseGenerator;
 import com.sk89q.worldedit.EditSession;
 import com.sk89q.worldedit.MaxChangedBlocksException;
 import com.sk89q.worldedit.bukkit.BukkitAdapter;
@@ -12,7 +13,6 @@ import com.sk89q.worldedit.math.BlockVector3;
 import com.sk89q.worldedit.regions.CuboidRegion;
 
 import org.bukkit.World;
-import org.bukkit.util.noise.SimplexNoiseGenerator;
 
 /**
  * A WorldEdit region generator that uses the SimplexNoiseGenerator. The
@@ -32,7 +32,7 @@ public class SimplexNoiseRegionGenerator {
      * The frequencies to use, and their sizes. At least one is required. More will
      * increase terrain variation.
      */
-    private Map<Double, Double> frequencies;
+    private OctaveStack octaves;
 
     /**
      * The exponent to raise noise to.
@@ -53,7 +53,7 @@ public class SimplexNoiseRegionGenerator {
     public SimplexNoiseRegionGenerator(CuboidRegion region, int amplitude, Map<Double, Double> frequencies,
             double exponent) {
         this.region = region;
-        this.frequencies = frequencies;
+        octaves = new OctaveStack(frequencies);
         this.exponent = exponent;
         finalAmplitude = amplitude;
         minimumHeight = region.getMinimumY();
@@ -63,25 +63,9 @@ public class SimplexNoiseRegionGenerator {
      * Gets the terrain height for the specified world coordinates, using 2D simplex
      * noise.
      */
-    private int getTerrainHeight(int worldX, int worldZ, SimplexNoiseGenerator generator) {
+    private int getTerrainHeight(int worldX, int worldZ, YaranSimplexNoiseGenerator generator) {
         // Generate noise at various frequencies (octaves)
-        double noise = 0;
-        for (Entry<Double, Double> entry : frequencies.entrySet()) {
-            double frequency = entry.getKey();
-            double size = entry.getValue();
-
-            // Generate noise in -1 to 1 range
-            double singleNoise = generator.noise(worldX * frequency, worldZ * frequency);
-
-            // Convert from -1 to 1 range, into 0 to 1 range
-            singleNoise = (singleNoise + 1) / 2;
-
-            // Adjust noise using amplitude modifier
-            singleNoise = size * singleNoise;
-
-            // Add to total noise
-            noise += singleNoise;
-        }
+        double noise = octaves.sum(generator, worldX, worldZ);
 
         // Raise noise to a power (redistribution)
         noise = Math.pow(noise, exponent);
@@ -96,7 +80,7 @@ public class SimplexNoiseRegionGenerator {
         int blocksChanged = 0;
 
         World world = BukkitAdapter.adapt(region.getWorld());
-        SimplexNoiseGenerator generator = new SimplexNoiseGenerator(world);
+        YaranSimplexNoiseGenerator generator = new YaranSimplexNoiseGenerator(world);
 
         for (BlockVector2 column : region.asFlatRegion()) {
             int x = column.getX();